@@ -0,0 +1,40 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Entry point of benchmarks.jar
+ *
+ * Same as the JMH launcher, except that unless told otherwise (-rf / -rff), results are written as JSON to jmh-result.json so
+ * that runs can be compared with each other. For example:
+ *
+ * java -jar benchmarks/target/benchmarks.jar                     (everything)
+ * java -jar benchmarks/target/benchmarks.jar ParserBenchmark     (only the parser)
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+		if (!arguments.contains("-rf")) {
+			arguments.add(0, "json");
+			arguments.add(0, "-rf");
+		}
+		if (!arguments.contains("-rff")) {
+			arguments.add(0, "jmh-result.json");
+			arguments.add(0, "-rff");
+		}
+		Main.main(arguments.toArray(new String[arguments.size()]));
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.benchmark;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+import com.thirdchimpanzee.myreminderbot.service.ReminderBotService;
+import com.thirdchimpanzee.myreminderbot.store.InMemoryReminderStore;
+import com.thirdchimpanzee.myreminderbot.store.ReminderStore;
+import com.thirdchimpanzee.myreminderbot.store.TimedReminderStore;
+import com.thirdchimpanzee.myreminderbot.transport.XMPPMessageTransport;
+
+/**
+ * Shared setup for the benchmarks
+ *
+ * The ReminderBotService is a singleton, so the in-memory store has to be selected before anything touches it. Every
+ * benchmark therefore gets the service through this class. Outgoing XMPP messages go through the synchronous
+ * XMPPMessageTransport to a RecordingXMPPService.
+ *
+ * Catch-up mode is switched off, so that a sweep always sends everything that is due, however big the burst.
+ *
+ * The per-message INFO logging of the application is turned down to WARNING, otherwise the console output of the runs
+ * would drown in it.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public final class BenchmarkSupport {
+
+	public static final int USERS = 1000;
+
+	private static final String[] MESSAGES = {
+		"Call Dentist", "Send email on Project Status", "Standup", "Pay rent", "Pick up the kids",
+		"Submit the timesheet", "Renew the car insurance", "Team lunch", "Review the pull requests", "Backup the laptop"
+	};
+
+	private static final RecordingXMPPService xmpp = new RecordingXMPPService();
+
+	static {
+		System.setProperty("myreminderbot.store", "memory");
+		System.setProperty("myreminderbot.catchup.threshold", "1000000000");
+		Logger.getLogger("").setLevel(Level.WARNING);
+		ReminderBotService.getInstance().setMessageTransport(new XMPPMessageTransport(xmpp));
+	}
+
+	private BenchmarkSupport() {
+	}
+
+	public static ReminderBotService service() {
+		return ReminderBotService.getInstance();
+	}
+
+	public static InMemoryReminderStore store() {
+		ReminderStore store = service().getStore();
+		if (store instanceof TimedReminderStore) store = ((TimedReminderStore)store).getDelegate();
+		if (!(store instanceof InMemoryReminderStore)) throw new IllegalStateException("The benchmarks need the in-memory store");
+		return (InMemoryReminderStore)store;
+	}
+
+	public static RecordingXMPPService xmpp() {
+		return xmpp;
+	}
+
+	public static String emailOf(int user) {
+		return "user" + user + "@example.com";
+	}
+
+	public static String jidOf(int user) {
+		return emailOf(user) + "/Talk";
+	}
+
+	public static String message(Random random) {
+		return MESSAGES[random.nextInt(MESSAGES.length)];
+	}
+
+	/**
+	 * Builds an ACTIVE Reminder for a random user
+	 */
+	public static Reminder reminder(Random random, long requestTime, long reminderTime) {
+		int user = random.nextInt(USERS);
+		Reminder r = new Reminder();
+		r.setUserid(jidOf(user));
+		r.setEmailAddress(emailOf(user));
+		r.setMsg(message(random));
+		r.setRequestDate(new Date(requestTime));
+		r.setReminderDate(new Date(reminderTime));
+		r.setStatus(ReminderStatus.ACTIVE);
+		return r;
+	}
+}
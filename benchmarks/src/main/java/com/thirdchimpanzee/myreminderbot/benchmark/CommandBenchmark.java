@@ -0,0 +1,106 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.thirdchimpanzee.myreminderbot.MyReminderBotChatServlet;
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+
+/**
+ * Cost of handling each chat command in MyReminderBotChatServlet.processCommand(), i.e. everything the servlet does for a
+ * message apart from the XMPP parsing and the reply itself. Reminders live in the in-memory store.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+
+	/**
+	 * Number of ACTIVE Reminders held by the user issuing the list command
+	 */
+	@Param({"5", "50"})
+	public int listSize;
+
+	private static final int USER = 0;
+
+	private MyReminderBotChatServlet servlet;
+	private String userId;
+	private String emailId;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		servlet = new MyReminderBotChatServlet();
+		userId = BenchmarkSupport.jidOf(USER);
+		emailId = BenchmarkSupport.emailOf(USER);
+		//Start every iteration from the same data so that the add benchmark does not grow the list of the user for ever
+		BenchmarkSupport.store().clear();
+		Random random = new Random(42);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < listSize; i++) {
+			Reminder r = BenchmarkSupport.reminder(random, now, now + (i + 1) * 60 * 60 * 1000L);
+			r.setUserid(userId);
+			r.setEmailAddress(emailId);
+			BenchmarkSupport.store().put(r);
+		}
+	}
+
+	@Benchmark
+	public String help() throws Exception {
+		return servlet.processCommand(userId, emailId, "help");
+	}
+
+	@Benchmark
+	public String about() throws Exception {
+		return servlet.processCommand(userId, emailId, "about");
+	}
+
+	@Benchmark
+	public String list() throws Exception {
+		return servlet.processCommand(userId, emailId, "list");
+	}
+
+	@Benchmark
+	public String add() throws Exception {
+		return servlet.processCommand(BenchmarkSupport.jidOf(1), BenchmarkSupport.emailOf(1), "10m Send email on Project Status");
+	}
+
+	/**
+	 * Adds a Reminder and removes it again, so that the remove command always has something to work on
+	 */
+	@Benchmark
+	public String addAndRemove() throws Exception {
+		Reminder r = BenchmarkSupport.reminder(new Random(7), 0, 60 * 1000);
+		r.setEmailAddress(emailId);
+		BenchmarkSupport.store().put(r);
+		return servlet.processCommand(userId, emailId, "remove " + r.getId());
+	}
+
+	@Benchmark
+	public String invalid() throws Exception {
+		return servlet.processCommand(userId, emailId, "tomorrow Call Dentist");
+	}
+}
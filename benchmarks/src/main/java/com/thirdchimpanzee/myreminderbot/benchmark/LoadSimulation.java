@@ -0,0 +1,341 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.benchmark;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.xmpp.XMPPService;
+import com.thirdchimpanzee.myreminderbot.CronJobServlet;
+import com.thirdchimpanzee.myreminderbot.MyReminderBotChatServlet;
+import com.thirdchimpanzee.myreminderbot.StartupListener;
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+import com.thirdchimpanzee.myreminderbot.metrics.Counter;
+import com.thirdchimpanzee.myreminderbot.metrics.Histogram;
+import com.thirdchimpanzee.myreminderbot.metrics.Metrics;
+import com.thirdchimpanzee.myreminderbot.service.ReminderBotConfig;
+import com.thirdchimpanzee.myreminderbot.service.ReminderBotService;
+import com.thirdchimpanzee.myreminderbot.store.ReminderStore;
+import com.thirdchimpanzee.myreminderbot.transport.AsyncMessageTransport;
+import com.thirdchimpanzee.myreminderbot.transport.MessageTransport;
+import com.thirdchimpanzee.myreminderbot.transport.XMPPMessageTransport;
+
+/**
+ * Replays synthetic chat traffic against the real servlets and service, with a SimulatedXMPPService and the in-memory
+ * Reminder store standing in for App Engine. Nothing goes over the network, so it runs on any box with a JVM:
+ *
+ * java -cp benchmarks/target/benchmarks.jar com.thirdchimpanzee.myreminderbot.benchmark.LoadSimulation [name=value ...]
+ *
+ * The instance is started through the StartupListener. Chat messages are posted to MyReminderBotChatServlet at a fixed rate by a pool of client threads, while
+ * CronJobServlet is invoked every sweep milliseconds like the App Engine Cron Job. Once the traffic stops, the Cron Job
+ * keeps running until every Reminder added has been delivered or given up on (or the drain time is over).
+ *
+ * The options (defaults in brackets) :
+ *
+ * rate     : chat messages per second [50]
+ * duration : how long (in seconds) the traffic runs [60]
+ * clients  : number of client threads [8]
+ * users    : number of distinct users [1000]
+ * mix      : share of add, list and remove commands [add:70,list:20,remove:10]
+ * due      : when the Reminders added go off, in minutes : fixed:N, uniform:A-B or exponential:MEAN [fixed:1]
+ * sweep    : interval (in milliseconds) of the Cron Job [60000]
+ * drain    : maximum time (in seconds) to wait for the Reminders after the traffic has stopped [900]
+ * latency, jitter, failure : see SimulatedXMPPService [20, 10, 0.01]
+ * seed     : seed of the traffic and of the SimulatedXMPPService [42]
+ *
+ * The myreminderbot.* settings of the application (e.g. -Dmyreminderbot.digest.enabled=true) are taken from the system
+ * properties as usual, except that the store is always the in-memory one. Unlike the JMH benchmarks, nothing else is
+ * changed: the chat rate limiter and catch-up mode are in effect, and the Cron Job sends the Reminders that are due within
+ * the next minute, which count as a lateness of 0.
+ *
+ * The sequence of commands, their users and the due times are given by the seed. Each message is sent at its planned time
+ * whether or not the previous ones have finished, and its latency is measured from that planned time, so a stall shows up
+ * in the latency of all the messages queued behind it. The lateness of the Reminders is the myreminderbot_delivery_lag_millis
+ * metric of the dispatcher, i.e. from the reminderDate until the XMPP send returned.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class LoadSimulation {
+
+	private static final String[] COMMANDS = { "add", "list", "remove" };
+
+	private static final String[] MESSAGES = {
+		"Call Dentist", "Send email on Project Status", "Standup", "Pay rent", "Pick up the kids",
+		"Submit the timesheet", "Renew the car insurance", "Team lunch", "Review the pull requests", "Backup the laptop"
+	};
+
+	private final Map<String, String> options = new LinkedHashMap<String, String>();
+	private final Random random;
+	private final SimulatedXMPPService xmpp;
+	private final MyReminderBotChatServlet chat;
+	private final CronJobServlet cron = new CronJobServlet();
+	private final StartupListener startup = new StartupListener();
+	private final Histogram[] latency = new Histogram[COMMANDS.length];
+	private final AtomicLong errors = new AtomicLong();
+
+	LoadSimulation(String[] args) {
+		options.put("rate", "50");
+		options.put("duration", "60");
+		options.put("clients", "8");
+		options.put("users", "1000");
+		options.put("mix", "add:70,list:20,remove:10");
+		options.put("due", "fixed:1");
+		options.put("sweep", "60000");
+		options.put("drain", "900");
+		options.put("latency", "20");
+		options.put("jitter", "10");
+		options.put("failure", "0.01");
+		options.put("seed", "42");
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0 || !options.containsKey(arg.substring(0, eq))) throw new IllegalArgumentException("Unknown option " + arg);
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		random = new Random(getLong("seed"));
+		xmpp = new SimulatedXMPPService(getLong("latency"), getLong("jitter"), Double.parseDouble(options.get("failure")), getLong("seed"));
+		final XMPPService _xmpp = xmpp;
+		chat = new MyReminderBotChatServlet() {
+			@Override
+			protected XMPPService getXMPPService() {
+				return _xmpp;
+			}
+		};
+		for (int i = 0; i < COMMANDS.length; i++) {
+			latency[i] = Metrics.histogram("loadsim_command_micros", "command=\"" + COMMANDS[i] + "\"", "Latency of the simulated chat messages in microseconds");
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty(ReminderBotConfig.STORE, "memory");
+		Logger.getLogger("").setLevel(Level.WARNING);
+		new LoadSimulation(args).run();
+		System.exit(0);
+	}
+
+	private long getLong(String name) {
+		return Long.parseLong(options.get(name));
+	}
+
+	void run() throws Exception {
+		ReminderBotService service = ReminderBotService.getInstance();
+		service.setMessageTransport(createTransport());
+		System.out.println("Load simulation " + options);
+
+		int[] mix = parseMix(options.get("mix"));
+		int users = (int)getLong("users");
+		double rate = Double.parseDouble(options.get("rate"));
+		long count = (long)(rate * getLong("duration"));
+		long sweep = getLong("sweep");
+
+		startup.contextInitialized(null);
+		ScheduledExecutorService cronTimer = Executors.newSingleThreadScheduledExecutor();
+		cronTimer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					cron.doGet(request(null, null), response());
+				}
+				catch (Exception ex) {
+					System.out.println("Cron Job failed : " + ex);
+				}
+			}
+		}, sweep, sweep, TimeUnit.MILLISECONDS);
+
+		ExecutorService clients = Executors.newFixedThreadPool((int)getLong("clients"));
+		long start = System.nanoTime();
+		for (long i = 0; i < count; i++) {
+			final long planned = start + (long)(i * 1000000000L / rate);
+			final int user = random.nextInt(users);
+			final int command = pick(mix);
+			final String body = (command == 0) ? dueIn() + "m " + MESSAGES[random.nextInt(MESSAGES.length)] : COMMANDS[command];
+			long wait = planned - System.nanoTime();
+			if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+			clients.execute(new Runnable() {
+				public void run() {
+					post(user, command, body, planned);
+				}
+			});
+		}
+		clients.shutdown();
+		clients.awaitTermination(1, TimeUnit.HOURS);
+		long traffic = System.nanoTime() - start;
+
+		//Let the Cron Job send what is left
+		long drainUntil = System.currentTimeMillis() + getLong("drain") * 1000;
+		ReminderStore store = service.getStore();
+		Date never = new Date(Long.MAX_VALUE);
+		while (System.currentTimeMillis() < drainUntil && (store.countDue(never, 1) > 0 || !store.findRetriesDue(never, 1).isEmpty())) {
+			Thread.sleep(1000);
+		}
+		cronTimer.shutdown();
+		cronTimer.awaitTermination(1, TimeUnit.MINUTES);
+		startup.contextDestroyed(null);
+		report(count, traffic, store);
+	}
+
+	/**
+	 * Sends one chat message through the servlet, as App Engine would post it
+	 */
+	private void post(int user, int command, String body, long planned) {
+		try {
+			if (command == 2) {
+				//The users remove one of their own Reminders, which they would have looked up with list
+				List<Reminder> active = ReminderBotService.getInstance().getStore().findByOwner(emailOf(user), ReminderStatus.ACTIVE);
+				body = "remove " + (active.isEmpty() ? "1" : active.get(0).getId().toString());
+			}
+			chat.doPost(request(emailOf(user) + "/Talk", body), response());
+		}
+		catch (Exception ex) {
+			errors.incrementAndGet();
+		}
+		finally {
+			latency[command].record((System.nanoTime() - planned) / 1000);
+		}
+	}
+
+	private static String emailOf(int user) {
+		return "user" + user + "@example.com";
+	}
+
+	private MessageTransport createTransport() {
+		MessageTransport transport = new XMPPMessageTransport(xmpp);
+		if (ReminderBotConfig.getString(ReminderBotConfig.TRANSPORT, "sync").equalsIgnoreCase("async")) {
+			transport = new AsyncMessageTransport(transport,
+					Math.max(1, ReminderBotConfig.getInt(ReminderBotConfig.TRANSPORT_WORKERS, 2)),
+					ReminderBotConfig.getInt(ReminderBotConfig.TRANSPORT_QUEUE, 1000));
+		}
+		return transport;
+	}
+
+	/**
+	 * @return The number of minutes from now after which a new Reminder goes off, following the due option
+	 */
+	private long dueIn() {
+		String due = options.get("due");
+		String value = due.substring(due.indexOf(':') + 1);
+		if (due.startsWith("uniform:")) {
+			long from = Long.parseLong(value.substring(0, value.indexOf('-')));
+			long to = Long.parseLong(value.substring(value.indexOf('-') + 1));
+			return from + random.nextInt((int)(to - from + 1));
+		}
+		if (due.startsWith("exponential:")) {
+			return Math.max(1, Math.round(-Math.log(1 - random.nextDouble()) * Double.parseDouble(value)));
+		}
+		if (due.startsWith("fixed:")) {
+			return Long.parseLong(value);
+		}
+		throw new IllegalArgumentException("Unknown due time distribution " + due);
+	}
+
+	private static int[] parseMix(String mix) {
+		int[] weights = new int[COMMANDS.length];
+		for (String part : mix.split(",")) {
+			String name = part.substring(0, part.indexOf(':'));
+			int i = 0;
+			while (i < COMMANDS.length && !COMMANDS[i].equals(name)) i++;
+			if (i == COMMANDS.length) throw new IllegalArgumentException("Unknown command " + name + " in the mix");
+			weights[i] = Integer.parseInt(part.substring(part.indexOf(':') + 1));
+		}
+		return weights;
+	}
+
+	private int pick(int[] weights) {
+		int total = 0;
+		for (int w : weights) total += w;
+		int n = random.nextInt(total);
+		for (int i = 0; i < weights.length; i++) {
+			n -= weights[i];
+			if (n < 0) return i;
+		}
+		return weights.length - 1;
+	}
+
+	private void report(long count, long trafficNanos, ReminderStore store) {
+		double seconds = trafficNanos / 1e9;
+		System.out.println();
+		System.out.printf("Chat messages : %d in %.1f s (%.1f/s), %d errors, %d handled with an error reply%n", count, seconds, count / seconds,
+				errors.get(), counter("myreminderbot_chat_errors_total", null).get());
+		for (int i = 0; i < COMMANDS.length; i++) {
+			Histogram h = latency[i];
+			System.out.printf("  %-8s : %8d   p50 %8.2f ms   p99 %8.2f ms   max %8.2f ms%n", COMMANDS[i], h.getCount(),
+					h.getQuantile(0.5) / 1000.0, h.getQuantile(0.99) / 1000.0, h.getMax() / 1000.0);
+		}
+		System.out.printf("XMPP          : %d messages, %d recipients, %d failed%n", xmpp.getMessages(), xmpp.getRecipients(), xmpp.getFailures());
+		Histogram lag = Metrics.histogram("myreminderbot_delivery_lag_millis", "");
+		System.out.printf("Reminders     : %d delivered, %d retried, %d given up, %d still pending%n",
+				counter("myreminderbot_reminders_total", "outcome=\"delivered\"").get(),
+				counter("myreminderbot_reminders_total", "outcome=\"retry_scheduled\"").get(),
+				counter("myreminderbot_reminders_total", "outcome=\"dead_lettered\"").get(),
+				store.countDue(new Date(Long.MAX_VALUE), Integer.MAX_VALUE) + store.findRetriesDue(new Date(Long.MAX_VALUE), Integer.MAX_VALUE).size());
+		System.out.printf("Lateness      : p50 %d ms   p99 %d ms   max %d ms%n", lag.getQuantile(0.5), lag.getQuantile(0.99), lag.getMax());
+		System.out.println();
+		StringWriter metrics = new StringWriter();
+		Metrics.writeTo(new PrintWriter(metrics));
+		System.out.print(metrics);
+	}
+
+	/**
+	 * Looks up a counter of the application. The help text is only used if it does not exist yet.
+	 */
+	private static Counter counter(String name, String labels) {
+		return Metrics.counter(name, labels, "");
+	}
+
+	/**
+	 * @return A request that carries a chat message the way App Engine posts it
+	 */
+	private static HttpServletRequest request(final String from, final String body) {
+		return (HttpServletRequest)Proxy.newProxyInstance(LoadSimulation.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getParameter")) {
+					if ("from".equals(args[0])) return from;
+					if ("to".equals(args[0])) return "myreminderbot@appspot.com";
+					if ("body".equals(args[0])) return body;
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	/**
+	 * @return A response that throws away what is written to it
+	 */
+	private static HttpServletResponse response() {
+		final PrintWriter writer = new PrintWriter(new StringWriter());
+		return (HttpServletResponse)Proxy.newProxyInstance(LoadSimulation.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getWriter")) return writer;
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) return Boolean.FALSE;
+		if (type == int.class) return Integer.valueOf(0);
+		if (type == long.class) return Long.valueOf(0);
+		return null;
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.thirdchimpanzee.myreminderbot.MessageParseException;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderCommand;
+import com.thirdchimpanzee.myreminderbot.service.ReminderBotService;
+
+/**
+ * Throughput of ReminderBotService.validateAndParseMessage() over a realistic mix of reminder commands, including a share of
+ * malformed ones
+ *
+ * The *RegexBaseline benchmarks run the regular expression based parser (plus the split of the message into words that the
+ * servlet used to do) that the ReminderCommandParser replaced, so that the two can be compared.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+	static final String[] COMMANDS = {
+		"10m Call Dentist",
+		"2h Send email on Project Status",
+		"1d Pay rent",
+		"1h30m Leave for the airport",
+		"45m Standup in the big meeting room",
+		"3d Renew the car insurance before it expires",
+		"90m Pick up the kids",
+		"7d Submit the timesheet",
+		"15M Team lunch",
+		"12h Review the pull requests",
+		"xyz Not a reminder at all",
+	};
+
+	private ReminderBotService service;
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		service = BenchmarkSupport.service();
+	}
+
+	@Benchmark
+	public void parseMix(Blackhole bh) {
+		String command = COMMANDS[next];
+		next = (next + 1) % COMMANDS.length;
+		try {
+			bh.consume(service.validateAndParseMessage(command));
+		}
+		catch (MessageParseException ex) {
+			bh.consume(ex);
+		}
+	}
+
+	@Benchmark
+	public Object parseValid() throws MessageParseException {
+		return service.validateAndParseMessage("45m Standup in the big meeting room");
+	}
+
+	@Benchmark
+	public void parseMixRegexBaseline(Blackhole bh) {
+		String command = COMMANDS[next];
+		next = (next + 1) % COMMANDS.length;
+		try {
+			bh.consume(command.split(" "));
+			bh.consume(regexParse(command));
+		}
+		catch (MessageParseException ex) {
+			bh.consume(ex);
+		}
+	}
+
+	@Benchmark
+	public Object parseValidRegexBaseline() throws MessageParseException {
+		String command = "45m Standup in the big meeting room";
+		command.split(" ");
+		return regexParse(command);
+	}
+
+	/**
+	 * The original regular expression based parser
+	 */
+	static ReminderCommand regexParse(String message) throws MessageParseException {
+		ReminderCommand reminder = null;
+		if (message != null && message.trim().length() > 0){
+			String remindeAtStr = message.substring(0, message.indexOf(" ")).trim().toLowerCase();
+			Pattern pattern = Pattern.compile("(\\d*)([dhm])");
+			Matcher matcher = pattern.matcher(remindeAtStr);
+			if (matcher.matches()){
+				int reminderValue;
+				try{
+					reminderValue = Integer.parseInt(matcher.group(1));
+				}catch (Exception e) {
+					throw new MessageParseException("Invalid Value");
+				}
+				String reminderType = matcher.group(2);
+				if (reminderType.equals("d")){
+					reminderValue = reminderValue * 24 * 60;
+				}else if (reminderType.equals("h")){
+					reminderValue = reminderValue * 60;
+				}
+				reminder = new ReminderCommand();
+				reminder.setMessage(message.substring(message.indexOf(" ")));
+				reminder.setMinutes(reminderValue);
+			}else{
+				throw new MessageParseException("Invalid Reminder format");
+			}
+		}
+		return reminder;
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.appengine.api.xmpp.JID;
+import com.google.appengine.api.xmpp.Message;
+import com.google.appengine.api.xmpp.Presence;
+import com.google.appengine.api.xmpp.PresenceShow;
+import com.google.appengine.api.xmpp.PresenceType;
+import com.google.appengine.api.xmpp.SendResponse;
+import com.google.appengine.api.xmpp.XMPPService;
+
+/**
+ * Stand-in for the App Engine XMPP service that accepts every message and only counts what would have been sent
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class RecordingXMPPService implements XMPPService {
+
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong recipients = new AtomicLong();
+
+	public SendResponse sendMessage(Message message) {
+		messages.incrementAndGet();
+		SendResponse response = new SendResponse();
+		for (JID jid : message.getRecipientJids()) {
+			recipients.incrementAndGet();
+			response.addStatus(jid, SendResponse.Status.SUCCESS);
+		}
+		return response;
+	}
+
+	/**
+	 * @return The number of messages sent so far
+	 */
+	public long getMessages() {
+		return messages.get();
+	}
+
+	/**
+	 * @return The number of recipients over all the messages sent so far
+	 */
+	public long getRecipients() {
+		return recipients.get();
+	}
+
+	public Presence getPresence(JID jabberId) {
+		throw new UnsupportedOperationException();
+	}
+
+	public Presence getPresence(JID jabberId, JID fromJid) {
+		throw new UnsupportedOperationException();
+	}
+
+	public void sendPresence(JID jabberId, PresenceType type, PresenceShow show, String status) {
+	}
+
+	public void sendPresence(JID jabberId, PresenceType type, PresenceShow show, String status, JID fromJid) {
+	}
+
+	public void sendInvitation(JID jabberId) {
+	}
+
+	public void sendInvitation(JID jabberId, JID fromJid) {
+	}
+
+	public Message parseMessage(HttpServletRequest request) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	public Presence parsePresence(HttpServletRequest request) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	public com.google.appengine.api.xmpp.Subscription parseSubscription(HttpServletRequest request) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+}
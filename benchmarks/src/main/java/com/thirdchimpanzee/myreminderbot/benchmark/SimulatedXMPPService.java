@@ -0,0 +1,144 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.appengine.api.xmpp.JID;
+import com.google.appengine.api.xmpp.Message;
+import com.google.appengine.api.xmpp.MessageBuilder;
+import com.google.appengine.api.xmpp.Presence;
+import com.google.appengine.api.xmpp.PresenceShow;
+import com.google.appengine.api.xmpp.PresenceType;
+import com.google.appengine.api.xmpp.SendResponse;
+import com.google.appengine.api.xmpp.XMPPService;
+
+/**
+ * Stand-in for the App Engine XMPP service used by the LoadSimulation
+ *
+ * Every message takes latency + (0 to jitter) milliseconds to send, and each recipient fails with the given probability
+ * (status OTHER_ERROR), which puts the Reminder into the retry queue just like a real delivery failure would. The delays
+ * and failures come from a Random seeded by the caller.
+ *
+ * parseMessage() reads the incoming chat message from the from, to and body parameters of the request, which are the
+ * fields App Engine posts to /_ah/xmpp/message/chat/.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class SimulatedXMPPService implements XMPPService {
+
+	private final long latency;
+	private final long jitter;
+	private final double failureRate;
+	private final Random random;
+
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong recipients = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param latency Time (in milliseconds) every message takes to send
+	 * @param jitter Maximum extra time (in milliseconds) added at random to the latency
+	 * @param failureRate Probability (0 to 1) that the message is not delivered to a recipient
+	 * @param seed Seed of the delays and failures
+	 */
+	public SimulatedXMPPService(long latency, long jitter, double failureRate, long seed) {
+		this.latency = latency;
+		this.jitter = jitter;
+		this.failureRate = failureRate;
+		this.random = new Random(seed);
+	}
+
+	public SendResponse sendMessage(Message message) {
+		long delay = latency;
+		SendResponse response = new SendResponse();
+		synchronized (random) {
+			if (jitter > 0) delay += (long)(random.nextDouble() * jitter);
+			for (JID jid : message.getRecipientJids()) {
+				if (random.nextDouble() < failureRate) {
+					failures.incrementAndGet();
+					response.addStatus(jid, SendResponse.Status.OTHER_ERROR);
+				}
+				else {
+					response.addStatus(jid, SendResponse.Status.SUCCESS);
+				}
+			}
+		}
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		messages.incrementAndGet();
+		recipients.addAndGet(message.getRecipientJids().length);
+		return response;
+	}
+
+	public Message parseMessage(HttpServletRequest request) throws IOException {
+		return new MessageBuilder()
+			.withFromJid(new JID(request.getParameter("from")))
+			.withRecipientJids(new JID(request.getParameter("to")))
+			.withBody(request.getParameter("body"))
+			.build();
+	}
+
+	/**
+	 * @return The number of messages sent so far
+	 */
+	public long getMessages() {
+		return messages.get();
+	}
+
+	/**
+	 * @return The number of recipients over all the messages sent so far
+	 */
+	public long getRecipients() {
+		return recipients.get();
+	}
+
+	/**
+	 * @return The number of recipients to whom a message could not be delivered
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	public Presence getPresence(JID jabberId) {
+		throw new UnsupportedOperationException();
+	}
+
+	public Presence getPresence(JID jabberId, JID fromJid) {
+		throw new UnsupportedOperationException();
+	}
+
+	public void sendPresence(JID jabberId, PresenceType type, PresenceShow show, String status) {
+	}
+
+	public void sendPresence(JID jabberId, PresenceType type, PresenceShow show, String status, JID fromJid) {
+	}
+
+	public void sendInvitation(JID jabberId) {
+	}
+
+	public void sendInvitation(JID jabberId, JID fromJid) {
+	}
+
+	public Presence parsePresence(HttpServletRequest request) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	public com.google.appengine.api.xmpp.Subscription parseSubscription(HttpServletRequest request) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.benchmark;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+import com.thirdchimpanzee.myreminderbot.store.InMemoryReminderStore;
+
+/**
+ * Cost of one Cron Job run (ReminderBotService.sendNotifications()) against stores of different sizes and due time
+ * distributions:
+ *
+ * idle    : every Reminder is set for the next 7 days, nothing is due
+ * uniform : the Reminders are spread evenly from 1 minute ago to 7 days ahead, so a handful are due on every run
+ * burst   : like uniform, but 1% of the Reminders are due right now (the top of the hour spike)
+ *
+ * After every run the Reminders that were sent are put back to ACTIVE so that each invocation sees the same due set. The
+ * next due watermark is dropped along with them, as adding those Reminders would have lowered it. In the idle case the
+ * watermark lets the runs skip the sweep, which is what this benchmark shows for it.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class SweepBenchmark {
+
+	private static final long MINUTE = 60 * 1000L;
+	private static final long WEEK = 7 * 24 * 60 * MINUTE;
+
+	@Param({"10000", "100000", "1000000"})
+	public int reminders;
+
+	@Param({"idle", "uniform", "burst"})
+	public String distribution;
+
+	private List<Long> dueIds;
+
+	@Setup(Level.Trial)
+	public void populate() {
+		InMemoryReminderStore store = BenchmarkSupport.store();
+		store.clear();
+		Random random = new Random(42);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < reminders; i++) {
+			long reminderTime;
+			if (distribution.equals("idle")) {
+				reminderTime = now + 2 * MINUTE + (long)(random.nextDouble() * WEEK);
+			}
+			else if (distribution.equals("burst") && random.nextInt(100) == 0) {
+				reminderTime = now;
+			}
+			else {
+				reminderTime = now - MINUTE + (long)(random.nextDouble() * WEEK);
+			}
+			store.put(BenchmarkSupport.reminder(random, now, reminderTime));
+		}
+		//Remember what a run will send, with a margin for the time that passes during the trial
+		dueIds = new ArrayList<Long>();
+		for (Reminder r : store.findDue(new Date(now + 10 * MINUTE))) {
+			dueIds.add(r.getId());
+		}
+	}
+
+	@Benchmark
+	public void sweep() {
+		BenchmarkSupport.service().sendNotifications();
+	}
+
+	@TearDown(Level.Invocation)
+	public void rearm() {
+		InMemoryReminderStore store = BenchmarkSupport.store();
+		List<Reminder> sent = new ArrayList<Reminder>();
+		for (Long id : dueIds) {
+			Reminder r = store.find(id);
+			if (r.getStatus() != ReminderStatus.ACTIVE) {
+				r.setStatus(ReminderStatus.ACTIVE);
+				r.setLeaseOwner(null);
+				r.setLeaseExpiry(null);
+				sent.add(r);
+			}
+		}
+		store.putAll(sent);
+		if (!sent.isEmpty()) store.saveCheckpoint("nextdue", null);
+	}
+
+	@TearDown(Level.Trial)
+	public void clear() {
+		BenchmarkSupport.store().clear();
+	}
+}
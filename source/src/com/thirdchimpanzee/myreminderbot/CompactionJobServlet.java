@@ -0,0 +1,47 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+
+package com.thirdchimpanzee.myreminderbot;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.*;
+
+import com.thirdchimpanzee.myreminderbot.service.ReminderBotService;
+
+/**
+ * Google App Engine Cron Job Class for the clean up of sent Reminders
+ * 
+ * This Cron Job is fired every hour (see WEB-INF\cron.xml) and invokes the compactReminders method in the ReminderBotService,
+ * which archives or deletes the Reminders that were sent longer ago than the configured retention. That keeps the Reminder
+ * kind, and the indexes used by the Cron Job that sends out the Reminders, down to the live data.
+ * 
+ * @author irani_r
+ * @version 1.0
+ * 
+ */
+@SuppressWarnings("serial")
+public class CompactionJobServlet extends HttpServlet {
+ private static final Logger _logger = Logger.getLogger(CompactionJobServlet.class.getName());
+
+ public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+	 try {
+		 _logger.info("Compaction Cron Job has been executed");
+		 ReminderBotService.getInstance().compactReminders();
+	 }
+	 catch (Exception ex) {
+		 //Log any exceptions in your Cron Job
+		 _logger.info("Error in executing Compaction Cron Job : " + ex.getMessage());
+	 }
+ }
+
+ @Override
+ public void doPost(HttpServletRequest req, HttpServletResponse resp)
+ throws ServletException, IOException {
+ doGet(req, resp);
+ }
+}
@@ -25,6 +25,9 @@ import com.thirdchimpanzee.myreminderbot.service.ReminderBotService;
  * The Cron Job currently invokes the sendNotifications method in the ReminderBotService that 
  * takes care of the sending out the notifications.
  * 
+ * When the in-process ReminderScheduler is enabled (it is started by the StartupListener), the Cron Job remains as a
+ * safety net sweep.
+ * 
  * @author irani_r
  * @version 1.0
  * 
@@ -32,6 +35,7 @@ import com.thirdchimpanzee.myreminderbot.service.ReminderBotService;
 @SuppressWarnings("serial")
 public class CronJobServlet extends HttpServlet {
  private static final Logger _logger = Logger.getLogger(CronJobServlet.class.getName());
+
  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
 	 try {
 		 _logger.info("Cron Job has been executed");
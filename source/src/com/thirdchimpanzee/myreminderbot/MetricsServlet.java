@@ -0,0 +1,36 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+
+package com.thirdchimpanzee.myreminderbot;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.*;
+
+import com.thirdchimpanzee.myreminderbot.metrics.Metrics;
+
+/**
+ * Metrics endpoint
+ * 
+ * Returns the counters and latency histograms of this instance (see the Metrics class) in the Prometheus text format, so that
+ * they can be scraped from /metrics. The values are per instance and start from zero when the instance starts. Only the
+ * administrators of the application can read them (see WEB-INF\web.xml).
+ * 
+ * @author irani_r
+ * @version 1.0
+ * 
+ */
+@SuppressWarnings("serial")
+public class MetricsServlet extends HttpServlet {
+
+ public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+	 resp.setContentType("text/plain; version=0.0.4");
+	 resp.setCharacterEncoding("UTF-8");
+	 PrintWriter out = resp.getWriter();
+	 Metrics.writeTo(out);
+	 out.flush();
+ }
+}
@@ -0,0 +1,47 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+
+package com.thirdchimpanzee.myreminderbot;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.*;
+
+import com.thirdchimpanzee.myreminderbot.service.ReminderBotService;
+
+/**
+ * Google App Engine Cron Job Class for the migration of the Reminders to the current entity layout
+ * 
+ * This Cron Job is fired every 10 minutes (see WEB-INF\cron.xml) and invokes the migrateReminders method in the
+ * ReminderBotService, which rewrites a time-boxed batch of the Reminders saved in the old layout. Once the migration is
+ * complete, a run only reads its checkpoint.
+ * 
+ * @author irani_r
+ * @version 1.0
+ * 
+ */
+@SuppressWarnings("serial")
+public class MigrationJobServlet extends HttpServlet {
+ private static final Logger _logger = Logger.getLogger(MigrationJobServlet.class.getName());
+
+ public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+	 try {
+		 _logger.info("Migration Cron Job has been executed");
+		 ReminderBotService.getInstance().migrateReminders();
+	 }
+	 catch (Exception ex) {
+		 //Log any exceptions in your Cron Job
+		 _logger.info("Error in executing Migration Cron Job : " + ex.getMessage());
+	 }
+ }
+
+ @Override
+ public void doPost(HttpServletRequest req, HttpServletResponse resp)
+ throws ServletException, IOException {
+ doGet(req, resp);
+ }
+}
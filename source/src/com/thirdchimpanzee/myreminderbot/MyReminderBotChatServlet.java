@@ -6,8 +6,9 @@ package com.thirdchimpanzee.myreminderbot;
 
 import java.io.IOException;
 import java.util.Date;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServlet;
@@ -22,7 +23,14 @@ import com.google.appengine.api.xmpp.XMPPService;
 import com.google.appengine.api.xmpp.XMPPServiceFactory;
 import com.thirdchimpanzee.myreminderbot.entity.Reminder;
 import com.thirdchimpanzee.myreminderbot.entity.ReminderCommand;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+import com.thirdchimpanzee.myreminderbot.metrics.Counter;
+import com.thirdchimpanzee.myreminderbot.metrics.Histogram;
+import com.thirdchimpanzee.myreminderbot.metrics.Metrics;
+import com.thirdchimpanzee.myreminderbot.service.ChatDeduplicator;
+import com.thirdchimpanzee.myreminderbot.service.ChatRateLimiter;
 import com.thirdchimpanzee.myreminderbot.service.ReminderBotService;
+import com.thirdchimpanzee.myreminderbot.store.ReminderPage;
 
 /**
  * This is the Chat Interface to the Application. All interactions between the Google Talk User and the application is routed through this.
@@ -31,9 +39,18 @@ import com.thirdchimpanzee.myreminderbot.service.ReminderBotService;
  * 1. The main message pump is the doGet method below from which we first use some XMPP semantics to retrieve out who is sending us the message
  * and the text of the message.
  * 
+ * Before it is interpreted, the message has to pass the ChatRateLimiter, which turns away users that send too many messages and
+ * messages that arrive while the instance is already handling too many.
+ * A message that adds a Reminder is checked by the ChatDeduplicator, so that a redelivery of the webhook or a resend by
+ * the client within a short window is acknowledged without adding the Reminder again. A copy that arrives while the first
+ * one is still being added gets the busy reply, as that add may still fail.
+ * 
  * 2. Once we have the message, we need to interpret it and compare it against the commands that we understand. If we understand the command i.e. help,
  * about, remove then we can process them otherwise we need to send back a message saying that we do not understand the command. 
  * 
+ * The reply is handed to the MessageTransport of the ReminderBotService, which sends it right away or queues it (see the 
+ * myreminderbot.transport property). The time taken by each message is recorded in the metrics (see the /metrics servlet).
+ * 
  * @author irani_r
  * @version 1.0
  * 
@@ -43,8 +60,19 @@ import com.thirdchimpanzee.myreminderbot.service.ReminderBotService;
 @SuppressWarnings("serial")
 public class MyReminderBotChatServlet extends HttpServlet {
 	public static final Logger _log = Logger.getLogger(MyReminderBotChatServlet.class.getName());
+	private static final Histogram requestTime = Metrics.histogram("myreminderbot_chat_request_micros", "Time taken to handle a chat message in microseconds");
+	private static final Counter errorCount = Metrics.counter("myreminderbot_chat_errors_total", "Chat messages that could not be handled");
+	private static final ChatRateLimiter limiter = new ChatRateLimiter();
+	private static final ChatDeduplicator dedup = new ChatDeduplicator();
+	static final String ADDED = "Added the Reminder successfully.";
+	static final String RATE_LIMITED = "You are sending messages too fast. Please wait a moment and try again.";
+	static final String BUSY = "MyReminderBot is busy right now. Please try again in a moment.";
+	static final String ABOUT = "Hello! I am the MyReminderBot version 1.0"+"\r\n"+"Developer: Romin Irani"+"\r\n"+"(http://myreminderbot.appspot.com)";
+	//Built once, the page size in it does not change while the instance runs
+	private static volatile String helpText = null;
 	public void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws IOException {
+		long tStart = System.nanoTime();
 		String strCallResult="";
 		String strStatus="";
 		resp.setContentType("text/plain");
@@ -53,7 +81,7 @@ public class MyReminderBotChatServlet extends HttpServlet {
 		try {
 	
 			//STEP 1 - Extract out the message and the Jabber Id of the user sending us the message via the Google Talk client
-			xmpp = XMPPServiceFactory.getXMPPService();
+			xmpp = getXMPPService();
 			Message msg = xmpp.parseMessage(req);
 
 			fromJid = msg.getFromJid();
@@ -65,159 +93,282 @@ public class MyReminderBotChatServlet extends HttpServlet {
 			//String userId = fromJid.getId();
 			_log.info("Email Id : " + userId);
 			
-			//String strWord = req.getParameter("command");
-			String strCommand = body;
-			
-			//Do validations here. Only basic ones i.e. cannot be null/empty
-			if (strCommand == null) throw new Exception("You must give a command.");
-			
-			//Trim the stuff
-			strCommand = strCommand.trim();
-			if (strCommand.length() == 0) throw new Exception("You must give a command.");
-			
-			/**
-			 * STEP 2 : Now that we have something, compare it against the commands that understand and process them accordingly.
-			 * 
-			 * We currently support only 2 commands that are not single word commands. 
-			 * 1. remove [ID] : This removes a particular specified ACTIVE Reminder in the system. ACTIVE Reminders are those reminders that have not yet 
-			 * got triggered. The reminder is specified by an ID, which are retrieved by the list command
-			 * 2. 
-			 */
-			
-			String[] words = strCommand.split(" ");
-			if (words.length >= 2) {
+			//Turn away floods with a canned reply, before the message can cost any datastore work
+			if (!limiter.enter()) {
+				strCallResult = BUSY;
+			}
+			else {
 				try {
-					boolean bRemoveCommand = false;
-					if (words.length == 2) {
-						String command = words[0];
-						String command_data = words[1];
-						//Parse the stuff over here
-						if (command.equalsIgnoreCase("remove")) {
-							//Get the email id
-							//Get user by email id
-							String txtStatus = ReminderBotService.getInstance().removeReminderByIDandEmailId(command_data,emailId);
-							//if user present, sent reply about Status
-							if (txtStatus.equals("success")) {
-								strCallResult = "The Reminder has been deleted successfully.";
-								bRemoveCommand = true;
-							}
-							else {
-								strCallResult = "Sorry! This does not seem to be a valid Reminder record in my system or you do not own that Reminder.";
-								throw new Exception(strCallResult);
-							}
-						}
-					}
-						if (!bRemoveCommand) {
-							/**
-							 * Call the validateAndParseMessage to determine if the format is correct. If correct, the ReminderCommand object will
-							 * have the value in minutes.
-							 */
-							
-							ReminderCommand _command = ReminderBotService.getInstance().validateAndParseMessage(strCommand);
-							if (_command != null){
-								
-								//Create the reminder
-								long requestTime = System.currentTimeMillis();
-								long reminderTime = requestTime + _command.getMinutes()*60*1000;
-								Date requestDate = new Date(requestTime);
-								Date reminderDate = new Date(reminderTime);
-								//Add the Reminder (Persist) to the Datastore
-								String txtStatus = ReminderBotService.getInstance().addReminder(userId, emailId,_command.getMessage(), requestDate, reminderDate, "ACTIVE");
-								if (txtStatus.equals("success")) {
-									strCallResult = "Added the Reminder successfully.";
-								}
-								else {
-									strCallResult = "There was an error in adding the Reminder. Please try again.";
-								}
-							}
-						}
-				}
-				catch (Exception ex) {
-					strCallResult = ex.getMessage();
-				}
-			}			
-			/**
-			 * THESE are single word commands that we understand. Currently we understands help, about and list
-			 * 
-			 * 1. help : This prints out a mini user manual to help the user understand what commands the Bot can request. 
-			 * 2. about : A brief message indicating who wrote this Bot or maybe some more details about the Bot
-			 * 3. list : This command is used to list down the current Reminders that the user owns and which are ACTIVE in the system. By ACTIVE, it means
-			 * that the Reminders have not yet got triggered. A user can look at the Ids returned in this list and use those ids to remove the Reminder
-			 * at any time via the : remove [ID] command
-			 */
-			else if (words.length == 1) {
-				if (words[0].equalsIgnoreCase("help")) {
-					//Print out help
-					//strCallResult = "Help Text Over Here";
-					StringBuffer SB = new StringBuffer();
-					SB.append("***** Welcome to MyReminderBot *****");
-					SB.append("\r\nI understand the following commands:");
-					SB.append("\r\n1. Type help to get the list of commands.");
-					SB.append("\r\n2. To create a reminder, type a text that follows this format [When] [ReminderText], where [When] is a positive number followed by either d or h or m. d = Days, h = Hours and m = Minutes. [ReminderText] is the message that you want to receive when the reminder goes off. Examples: 10m Send email on Project Status. This will set a reminder 10 minutes from now and when the reminder is triggered, you will receive a message \"Send email on Project Status\" from the bot");
-					SB.append("\r\n3. Type list to get your currently active list of reminders which are set for some time in the future.");
-					SB.append("\r\n4. Type remove [ID] to delete any active reminder, where [ID] is the reminder ID. You can get your current active list of reminders by typing list.");
-					SB.append("\r\n5. Type about to get more information about this Agent.");
-					strCallResult = SB.toString();
-					
+					strCallResult = limiter.tryAcquire(emailId) ? processCommand(userId, emailId, body) : RATE_LIMITED;
 				}
-				else if (words[0].equalsIgnoreCase("about")) {
-					strCallResult = "Hello! I am the MyReminderBot version 1.0"+"\r\n"+"Developer: Romin Irani"+"\r\n"+"(http://myreminderbot.appspot.com)";
-				}
-				else if (words[0].equalsIgnoreCase("list")) {
-					//Retrieve the list of the Reminders via the Service and list down with the IDs/
-					List<Reminder> ReminderList = ReminderBotService.getInstance().getAllRemindersByEmailId(emailId,"ACTIVE");
-					Iterator<Reminder> it = ReminderList.iterator();
-					while (it.hasNext()) {
-						Reminder _Reminder = it.next();
-						strCallResult = strCallResult + "ID=" + _Reminder.getId() + " " + "Reminder Msg = " + _Reminder.getMsg() + " on " + _Reminder.getReminderDate().toString() + "\r\n";
-					}
-					if (ReminderList.size() == 0) strCallResult = "You do not have any Reminders currently in the system.";
+				finally {
+					limiter.exit();
 				}
 			}
-			else {
-				strCallResult = "Sorry! Could not understand your command.";
-			}
 			
 			//Send out the Response message on the same XMPP channel. This will be delivered to the user via the Google Talk client.
 	        Message replyMessage = new MessageBuilder().withRecipientJids(fromJid).withBody(strCallResult).build();
                 
-	        boolean messageSent = false;
 	        //if (xmpp.getPresence(fromJid).isAvailable()) {
-	        SendResponse status = xmpp.sendMessage(replyMessage);
-	        messageSent = (status.getStatusMap().get(fromJid) == SendResponse.Status.SUCCESS);
+	        strStatus = sendReply(replyMessage, fromJid);
 	        //}
-	        if (messageSent) {
-	        	strStatus = "Message has been sent successfully";
-	        }
-	        else {
-	        	strStatus = "Message could not be sent";
-	        }
 	        _log.info(strStatus);
 		}
 		catch (Exception ex) {
 			
 			//If there is an exception then we send back a generic message to the client i.e. MyReminderBot could not understand your command. Please
 			//try again. We log the exception internally.
+			errorCount.inc();
 			_log.info("Something went wrong. Please try again!" + ex.getMessage());
 	        Message replyMessage = new MessageBuilder()
             .withRecipientJids(fromJid)
             .withBody("MyReminderBot could not understand your command. Please try again.")
             .build();
                 
-	        boolean messageSent = false;
 	        //The condition is commented out so that it can work over non Google Talk XMPP providers also.
 	        //if (xmpp.getPresence(fromJid).isAvailable()) {
-	        SendResponse status = xmpp.sendMessage(replyMessage);
-	        messageSent = (status.getStatusMap().get(fromJid) == SendResponse.Status.SUCCESS);
+	        strStatus = sendReply(replyMessage, fromJid);
 	        //}
-	        if (messageSent) {
-	        	strStatus = "Message has been sent successfully";
-	        }
-	        else {
-	        	strStatus = "Message could not be sent";
-	        }
 	        _log.info(strStatus);
 		}
+		finally {
+			requestTime.recordSince(tStart);
+		}
+	}
+	
+	/**
+	 * @return The XMPP service that parses the incoming messages. The load simulation of the benchmarks replaces it with a
+	 * local stand-in.
+	 */
+	protected XMPPService getXMPPService() {
+		return XMPPServiceFactory.getXMPPService();
+	}
+	
+	/**
+	 * Hands the reply over to the MessageTransport of the ReminderBotService. With the async transport the reply is only queued
+	 * here, so the chat request does not wait for XMPP.
+	 * @param replyMessage The reply to send
+	 * @param fromJid The JabberId of the user who sent us the message
+	 * @return The status to log
+	 */
+	private String sendReply(Message replyMessage, JID fromJid) {
+		Future<Map<String, SendResponse.Status>> result = ReminderBotService.getInstance().getMessageTransport().send(replyMessage);
+		if (!result.isDone()) return "Message has been queued";
+		try {
+			if (result.get().get(fromJid.getId()) == SendResponse.Status.SUCCESS) {
+				return "Message has been sent successfully";
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException ex) {
+			_log.info("Error in sending the reply to " + fromJid.getId() + " : " + ex.getCause());
+		}
+		return "Message could not be sent";
+	}
+	
+	/**
+	 * Interprets a chat message and carries out the command in it. This is STEP 2 of the message pump and it does not do any
+	 * XMPP work itself, the caller is responsible for sending back the reply.
+	 * @param userId The Jabber Id (with resource) of the user sending the message
+	 * @param emailId The email id of the user sending the message
+	 * @param body The text of the message
+	 * @return The reply to send back to the user
+	 * @throws Exception If the message is empty
+	 */
+	public String processCommand(String userId, String emailId, String body) throws Exception {
+		String strCallResult="";
+		//String strWord = req.getParameter("command");
+		String strCommand = body;
+		
+		//Do validations here. Only basic ones i.e. cannot be null/empty
+		if (strCommand == null) throw new Exception("You must give a command.");
+		
+		//Trim the stuff
+		strCommand = strCommand.trim();
+		if (strCommand.length() == 0) throw new Exception("You must give a command.");
+		
+		/**
+		 * STEP 2 : Now that we have something, compare it against the commands that understand and process them accordingly.
+		 * 
+		 * We currently support only 2 commands that are not single word commands. 
+		 * 1. remove [ID] : This removes a particular specified ACTIVE Reminder in the system. ACTIVE Reminders are those reminders that have not yet 
+		 * got triggered. The reminder is specified by an ID, which are retrieved by the list command
+		 * 2. list more / list [PAGE] : This shows the next page of the ACTIVE Reminders after the last one listed, or a given page.
+		 */
+		
+		//Look at the words without splitting the message up. Commands are separated by a single space.
+		int firstSpace = strCommand.indexOf(' ');
+		if (firstSpace > 0) {
+			try {
+				boolean bRemoveCommand = false;
+				if (strCommand.indexOf(' ', firstSpace + 1) < 0) {
+					//Parse the stuff over here
+					if (firstSpace == 6 && strCommand.regionMatches(true, 0, "remove", 0, 6)) {
+						String command_data = strCommand.substring(firstSpace + 1);
+						//Get the email id
+						//Get user by email id
+						String txtStatus = ReminderBotService.getInstance().removeReminderByIDandEmailId(command_data,emailId);
+						//if user present, sent reply about Status
+						if (txtStatus.equals("success")) {
+							strCallResult = "The Reminder has been deleted successfully.";
+							bRemoveCommand = true;
+						}
+						else {
+							strCallResult = "Sorry! This does not seem to be a valid Reminder record in my system or you do not own that Reminder.";
+							throw new Exception(strCallResult);
+						}
+					}
+					else if (firstSpace == 4 && strCommand.regionMatches(true, 0, "list", 0, 4)) {
+						String command_data = strCommand.substring(firstSpace + 1);
+						ReminderPage _page = null;
+						if (command_data.equalsIgnoreCase("more")) {
+							_page = ReminderBotService.getInstance().getNextActiveRemindersPage(emailId);
+							if (_page == null) return "There are no more Reminders to list. Type list to start from the first page.";
+						}
+						else if (isPageNumber(command_data)) {
+							_page = ReminderBotService.getInstance().getActiveRemindersPage(emailId, Integer.parseInt(command_data));
+						}
+						if (_page != null) return formatReminderPage(_page);
+					}
+				}
+					if (!bRemoveCommand) {
+						/**
+						 * Call the validateAndParseMessage to determine if the format is correct. If correct, the ReminderCommand object will
+						 * have the value in minutes.
+						 */
+						
+						ReminderCommand _command = ReminderBotService.getInstance().validateAndParseMessage(strCommand);
+						ChatDeduplicator.Outcome _seen = _command != null ? dedup.begin(emailId, strCommand) : null;
+						if (_seen == ChatDeduplicator.Outcome.DUPLICATE) {
+							//A redelivery or a resend of a message that has just added this Reminder. Acknowledge it without adding it again.
+							strCallResult = ADDED;
+						}
+						else if (_seen == ChatDeduplicator.Outcome.PENDING) {
+							//The same message is being added right now and may still fail, so it cannot be acknowledged yet
+							strCallResult = BUSY;
+						}
+						else if (_command != null){
+							
+							//Create the reminder
+							long requestTime = System.currentTimeMillis();
+							long reminderTime = requestTime + _command.getMinutes()*60L*1000;
+							Date requestDate = new Date(requestTime);
+							Date reminderDate = new Date(reminderTime);
+							boolean added = false;
+							try {
+								//Add the Reminder (Persist) to the Datastore
+								String txtStatus = ReminderBotService.getInstance().addReminder(userId, emailId,_command.getMessage(), requestDate, reminderDate, ReminderStatus.ACTIVE, _command.getRepeatMinutes());
+								added = txtStatus.equals("success");
+							}
+							finally {
+								//Remember it only once the Reminder is saved, otherwise let the user (or the webhook) try again
+								if (added) dedup.done(emailId, strCommand);
+								else dedup.forget(emailId, strCommand);
+							}
+							if (added) {
+								strCallResult = ADDED;
+							}
+							else {
+								strCallResult = "There was an error in adding the Reminder. Please try again.";
+							}
+						}
+					}
+			}
+			catch (Exception ex) {
+				strCallResult = ex.getMessage();
+			}
+		}			
+		/**
+		 * THESE are single word commands that we understand. Currently we understands help, about and list
+		 * 
+		 * 1. help : This prints out a mini user manual to help the user understand what commands the Bot can request. 
+		 * 2. about : A brief message indicating who wrote this Bot or maybe some more details about the Bot
+		 * 3. list : This command is used to list down the current Reminders that the user owns and which are ACTIVE in the system. By ACTIVE, it means
+		 * that the Reminders have not yet got triggered. A user can look at the Ids returned in this list and use those ids to remove the Reminder
+		 * at any time via the : remove [ID] command. The Reminders are shown one page at a time, the next page is shown by : list more
+		 */
+		else if (firstSpace < 0) {
+			if (strCommand.equalsIgnoreCase("help")) {
+				//Print out help
+				strCallResult = getHelpText();
+				
+			}
+			else if (strCommand.equalsIgnoreCase("about")) {
+				strCallResult = ABOUT;
+			}
+			else if (strCommand.equalsIgnoreCase("list")) {
+				//Retrieve the first page of the Reminders via the Service and list down with the IDs
+				ReminderPage _page = ReminderBotService.getInstance().getActiveRemindersPage(emailId, 1);
+				if (_page.getReminders().size() == 0) {
+					strCallResult = "You do not have any Reminders currently in the system.";
+				}
+				else {
+					strCallResult = formatReminderPage(_page);
+				}
+			}
+		}
+		else {
+			strCallResult = "Sorry! Could not understand your command.";
+		}
+		return strCallResult;
+	}
+	
+	/**
+	 * @return The mini user manual that is sent back for the help command
+	 */
+	static String getHelpText() {
+		String text = helpText;
+		if (text == null) {
+			StringBuilder SB = new StringBuilder(1024);
+			SB.append("***** Welcome to MyReminderBot *****");
+			SB.append("\r\nI understand the following commands:");
+			SB.append("\r\n1. Type help to get the list of commands.");
+			SB.append("\r\n2. To create a reminder, type a text that follows this format [When] [ReminderText], where [When] is a positive number followed by either d or h or m. d = Days, h = Hours and m = Minutes. You can also combine them, for example 1h30m or 2d4h. [ReminderText] is the message that you want to receive when the reminder goes off. Examples: 10m Send email on Project Status. This will set a reminder 10 minutes from now and when the reminder is triggered, you will receive a message \"Send email on Project Status\" from the bot. To repeat a reminder, put every and an interval in the same format before the text, for example every 1d Standup or 15h every 1d Standup (the first one in 15 hours, then every day).");
+			SB.append("\r\n3. Type list to get your currently active list of reminders which are set for some time in the future. The reminders are shown " + ReminderBotService.getInstance().getListPageSize() + " at a time, type list more to see the next ones or list [PAGE] to jump to a page.");
+			SB.append("\r\n4. Type remove [ID] to delete any active reminder, where [ID] is the reminder ID. You can get your current active list of reminders by typing list.");
+			SB.append("\r\n5. Type about to get more information about this Agent.");
+			text = SB.toString();
+			helpText = text;
+		}
+		return text;
+	}
+	
+	/**
+	 * Builds the reply for one page of the list command
+	 * @param page The page of Reminders
+	 * @return The text to send back to the user
+	 */
+	private String formatReminderPage(ReminderPage page) {
+		if (page.getReminders().size() == 0) return "There are no Reminders on page " + page.getNumber() + ".";
+		StringBuilder SB = new StringBuilder(page.getReminders().size() * 80);
+		if (page.getNumber() > 1 || page.hasMore()) SB.append("Page ").append(page.getNumber()).append("\r\n");
+		for (Reminder _Reminder : page.getReminders()) {
+			SB.append("ID=").append(_Reminder.getId()).append(" Reminder Msg = ").append(_Reminder.getMsg());
+			SB.append(" on ").append(_Reminder.getReminderDate());
+			if (_Reminder.isRepeating()) appendInterval(SB.append(" repeats every "), _Reminder.getRepeatMinutes());
+			SB.append("\r\n");
+		}
+		if (page.hasMore()) SB.append("Type list more to see the next Reminders.");
+		return SB.toString();
+	}
+	
+	/**
+	 * Writes an interval in the [When] format of the Reminder syntax, e.g. 1d or 2h30m
+	 */
+	private static void appendInterval(StringBuilder SB, int minutes) {
+		if (minutes >= 24 * 60) SB.append(minutes / (24 * 60)).append('d');
+		if (minutes % (24 * 60) >= 60) SB.append(minutes % (24 * 60) / 60).append('h');
+		if (minutes % 60 > 0) SB.append(minutes % 60).append('m');
+	}
+	
+	private static boolean isPageNumber(String s) {
+		if (s.length() == 0 || s.length() > 9) return false;
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) < '0' || s.charAt(i) > '9') return false;
+		}
+		return Integer.parseInt(s) > 0;
 	}
 	
 	public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
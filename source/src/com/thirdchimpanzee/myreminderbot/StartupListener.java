@@ -0,0 +1,113 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+
+package com.thirdchimpanzee.myreminderbot;
+
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import com.thirdchimpanzee.myreminderbot.metrics.Gauge;
+import com.thirdchimpanzee.myreminderbot.metrics.Metrics;
+import com.thirdchimpanzee.myreminderbot.scheduler.ReminderScheduler;
+import com.thirdchimpanzee.myreminderbot.service.ReminderBotConfig;
+import com.thirdchimpanzee.myreminderbot.service.ReminderBotService;
+
+/**
+ * Startup phase of an instance
+ *
+ * Without it, the first chat message or Cron Job run after an instance has been started pays for creating the
+ * ReminderBotService, registering the entities with Objectify and loading and interpreting the classes on the hot paths.
+ * The listener (declared in WEB-INF\web.xml) does that work before the instance takes any request. With the warmup inbound
+ * service enabled in WEB-INF\appengine-web.xml, App Engine starts new instances with a /_ah/warmup request, so the work is
+ * done before user traffic is routed to them.
+ *
+ * The steps, each timed in the myreminderbot_startup_micros gauge :
+ *
+ * 1. service : creates the ReminderBotService, its ReminderStore (which registers the entities) and the dispatcher.
+ * 2. replies : builds the static replies (help, about).
+ * 3. warmup  : runs the parser over the Reminder syntax and the chat commands that do not touch the datastore,
+ *              myreminderbot.startup.warmup times.
+ * 4. scheduler : starts the in-process ReminderScheduler when it is enabled.
+ *
+ * The step total is the time of the whole startup phase. Note that the parses of the warm-up are counted in the
+ * myreminderbot_command_parse_micros metric like any other.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class StartupListener implements ServletContextListener {
+	private static final Logger _logger = Logger.getLogger(StartupListener.class.getName());
+
+	//Covers the branches of the parser : single and combined units, repeating Reminders and the errors
+	private static final String[] WARMUP_MESSAGES = {
+		"10m Call Dentist", "1h30m Send email on Project Status", "2d4h Pay rent", "every 1d Standup", "15h every 1d Standup",
+		"10m every day is the same", "tomorrow Call Dentist", "99999999999d Too far away", "every 1m Too often"
+	};
+	private static final String[] WARMUP_COMMANDS = { "help", "about", "tomorrow Call Dentist", "what" };
+	//Not a real user, the commands above never look it up
+	private static final String WARMUP_USER = "warmup@myreminderbot.appspotchat.com";
+
+	public void contextInitialized(ServletContextEvent event) {
+		long start = System.nanoTime();
+		long t = start;
+		ReminderBotService service = ReminderBotService.getInstance();
+		t = step("service", t);
+
+		MyReminderBotChatServlet.getHelpText();
+		t = step("replies", t);
+
+		int iterations = ReminderBotConfig.getInt(ReminderBotConfig.STARTUP_WARMUP, 100);
+		MyReminderBotChatServlet chat = new MyReminderBotChatServlet();
+		for (int i = 0; i < iterations; i++) {
+			for (String message : WARMUP_MESSAGES) {
+				try {
+					service.validateAndParseMessage(message);
+				}
+				catch (MessageParseException ex) {
+					//Expected for the invalid ones
+				}
+			}
+			for (String command : WARMUP_COMMANDS) {
+				try {
+					chat.processCommand(WARMUP_USER + "/warmup", WARMUP_USER, command);
+				}
+				catch (Exception ex) {
+					_logger.warning("Error in warming up the " + command + " command : " + ex.getMessage());
+				}
+			}
+		}
+		t = step("warmup", t);
+
+		if (ReminderBotConfig.getBoolean(ReminderBotConfig.SCHEDULER_ENABLED, false)) {
+			ReminderScheduler.getInstance().start();
+		}
+		t = step("scheduler", t);
+
+		step("total", start);
+		_logger.info("MyReminderBot started in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	public void contextDestroyed(ServletContextEvent event) {
+		ReminderScheduler.getInstance().stop();
+	}
+
+	/**
+	 * Publishes the time taken by a step of the startup
+	 * @return The end of the step, i.e. the start of the next one
+	 */
+	private static long step(String name, long start) {
+		long end = System.nanoTime();
+		final long micros = (end - start) / 1000;
+		Metrics.gauge("myreminderbot_startup_micros", "step=\"" + name + "\"", "Time taken by the steps of the instance startup in microseconds", new Gauge() {
+			public long get() {
+				return micros;
+			}
+		});
+		return end;
+	}
+}
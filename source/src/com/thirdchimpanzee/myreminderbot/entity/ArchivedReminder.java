@@ -0,0 +1,122 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.entity;
+
+import java.util.Date;
+
+import javax.persistence.Id;
+
+import com.googlecode.objectify.annotation.Indexed;
+import com.googlecode.objectify.annotation.Unindexed;
+
+/**
+ * Entity class for a Reminder that has been sent (or given up on) and moved out of the Reminder kind by the compaction job
+ * 
+ * Only what is needed to tell the user what they were reminded of is kept. Nothing but the emailAddress is indexed, so an
+ * archived Reminder costs a fraction of the storage and write operations of a live one.
+ * 
+ * @author irani_r
+ * @version 1.0
+ * 
+ * id           : The ID the Reminder had in the Reminder kind
+ * emailAddress : Email address of the user that made the request 
+ * msg          : The Reminder text
+ * reminderDate : The date/time on which the Reminder was triggered
+ * archivedDate : The date/time on which the Reminder was archived
+ * status       : SENT, or DEAD if it could never be delivered. Archives made before DEAD Reminders were compacted have none.
+ */
+@Unindexed
+public class ArchivedReminder {
+	@Id private Long id;
+	@Indexed private String emailAddress;
+	private String msg;
+	private Date reminderDate;
+	private Date archivedDate;
+	private ReminderStatus status;
+	
+	public ArchivedReminder() {
+	}
+	
+	public ArchivedReminder(Reminder r, Date archivedDate) {
+		this.id = r.getId();
+		this.emailAddress = r.getEmailAddress();
+		this.msg = r.getMsg();
+		this.reminderDate = r.getReminderDate();
+		this.archivedDate = archivedDate;
+		this.status = r.getStatus();
+	}
+	/**
+	 * @return the id
+	 */
+	public Long getId() {
+		return id;
+	}
+	/**
+	 * @param id the id to set
+	 */
+	public void setId(Long id) {
+		this.id = id;
+	}
+	/**
+	 * @return the emailAddress
+	 */
+	public String getEmailAddress() {
+		return emailAddress;
+	}
+	/**
+	 * @param emailAddress the emailAddress to set
+	 */
+	public void setEmailAddress(String emailAddress) {
+		this.emailAddress = emailAddress;
+	}
+	/**
+	 * @return the msg
+	 */
+	public String getMsg() {
+		return msg;
+	}
+	/**
+	 * @param msg the msg to set
+	 */
+	public void setMsg(String msg) {
+		this.msg = msg;
+	}
+	/**
+	 * @return the reminderDate
+	 */
+	public Date getReminderDate() {
+		return reminderDate;
+	}
+	/**
+	 * @param reminderDate the reminderDate to set
+	 */
+	public void setReminderDate(Date reminderDate) {
+		this.reminderDate = reminderDate;
+	}
+	/**
+	 * @return the archivedDate
+	 */
+	public Date getArchivedDate() {
+		return archivedDate;
+	}
+	/**
+	 * @param archivedDate the archivedDate to set
+	 */
+	public void setArchivedDate(Date archivedDate) {
+		this.archivedDate = archivedDate;
+	}
+	/**
+	 * @return the status
+	 */
+	public ReminderStatus getStatus() {
+		return status;
+	}
+	/**
+	 * @param status the status to set
+	 */
+	public void setStatus(ReminderStatus status) {
+		this.status = status;
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.entity;
+
+import java.util.Date;
+
+import javax.persistence.Id;
+
+import com.googlecode.objectify.annotation.Unindexed;
+
+/**
+ * Entity class for the progress of a background job
+ * 
+ * Jobs that cannot finish within a single request save where they stopped under their name, so that the next run carries
+ * on from there.
+ * 
+ * @author irani_r
+ * @version 1.0
+ * 
+ * name    : The name of the job
+ * value   : Where the job stopped, in a format that only the job itself understands
+ * updated : The date/time on which the value was saved
+ */
+@Unindexed
+public class Checkpoint {
+	@Id private String name;
+	private String value;
+	private Date updated;
+	/**
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+	/**
+	 * @param name the name to set
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+	/**
+	 * @return the value
+	 */
+	public String getValue() {
+		return value;
+	}
+	/**
+	 * @param value the value to set
+	 */
+	public void setValue(String value) {
+		this.value = value;
+	}
+	/**
+	 * @return the updated
+	 */
+	public Date getUpdated() {
+		return updated;
+	}
+	/**
+	 * @param updated the updated to set
+	 */
+	public void setUpdated(Date updated) {
+		this.updated = updated;
+	}
+}
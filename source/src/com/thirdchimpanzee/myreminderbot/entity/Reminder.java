@@ -7,6 +7,10 @@ package com.thirdchimpanzee.myreminderbot.entity;
 import java.util.Date;
 
 import javax.persistence.Id;
+import javax.persistence.Transient;
+
+import com.googlecode.objectify.annotation.AlsoLoad;
+import com.googlecode.objectify.annotation.Unindexed;
 
 /**
  * Entity class for Reminder object
@@ -15,22 +19,41 @@ import javax.persistence.Id;
  * @version 1.0
  * 
  * id           : Internal ID used for storage
- * userid       : Jabber/XMPP ID of the user making the request
  * emailAddress : Email address of the user making the request 
+ * resource     : The resource part of the Jabber/XMPP ID of the user making the request, i.e. what follows the emailAddress
+ *                and the "/". The full Jabber ID (userid) is derived from the two.
  * msg          : The Reminder text
  * requestDate  : The date/time of making the request
  * reminderDate : The date/time of when the Reminder needs to be triggered
  * status       : The current status of the Reminder object. When it is created, the status is ACTIVE,
- *                when the reminder is triggered and sent successfully, it is set to DONE.
+ *                when the reminder is triggered and sent successfully, it is set to SENT. If sending it failed, it is
+ *                set to RETRY and, once it has failed too many times, to DEAD.
+ * leaseOwner   : The token of the dispatcher instance that has claimed the Reminder for sending, if any
+ * leaseExpiry  : The date/time until which the claim of the leaseOwner is valid. Once it has passed, any other 
+ *                dispatcher instance can claim the Reminder again.
+ * attempts     : The number of failed attempts to send the Reminder
+ * nextAttempt  : The date/time of the next attempt to send a Reminder in RETRY
+ * repeatMinutes: For a repeating Reminder, the interval in minutes between two occurrences, 0 otherwise. A repeating
+ *                Reminder is a single entity whose reminderDate is moved to the next occurrence every time it goes off.
+ * 
+ * Only the properties that are queried on (emailAddress, reminderDate, status and nextAttempt) are indexed. Entities saved
+ * before this layout have a userid property and index every property, they are rewritten by the ReminderMigrator.
  */
 public class Reminder {
 	@Id private Long id;
-	private String userid;
 	private String emailAddress;
-	private String msg;
-	private Date requestDate;
+	@Unindexed private String resource;
+	@Unindexed private String msg;
+	@Unindexed private Date requestDate;
 	private Date reminderDate;
-	private String status;
+	private ReminderStatus status;
+	@Unindexed private String leaseOwner;
+	@Unindexed private Date leaseExpiry;
+	@Unindexed private int attempts;
+	private Date nextAttempt;
+	@Unindexed private int repeatMinutes;
+	//Not saved (Objectify ignores the transient keyword) : true if the entity was loaded from the layout with the userid property
+	@Transient private boolean legacyLayout;
 	/**
 	 * @return the id
 	 */
@@ -44,16 +67,57 @@ public class Reminder {
 		this.id = id;
 	}
 	/**
-	 * @return the userid
+	 * @return the userid i.e. the full Jabber ID, emailAddress/resource
 	 */
 	public String getUserid() {
-		return userid;
+		if (resource == null) return emailAddress;
+		return emailAddress + "/" + resource;
 	}
 	/**
+	 * Sets the emailAddress and the resource from a full Jabber ID
 	 * @param userid the userid to set
 	 */
 	public void setUserid(String userid) {
-		this.userid = userid;
+		if (userid == null) {
+			this.resource = null;
+			return;
+		}
+		int slash = userid.indexOf('/');
+		this.emailAddress = (slash < 0) ? userid : userid.substring(0, slash);
+		this.resource = (slash < 0) ? null : userid.substring(slash + 1);
+	}
+	/**
+	 * Loads the userid property of the entities saved before the resource was split off
+	 * @param userid the userid saved with the entity
+	 */
+	void importUserid(@AlsoLoad("userid") String userid) {
+		if (userid == null) return;
+		setUserid(userid);
+		legacyLayout = true;
+	}
+	/**
+	 * @return the repeatMinutes
+	 */
+	public int getRepeatMinutes() {
+		return repeatMinutes;
+	}
+	/**
+	 * @param repeatMinutes the repeatMinutes to set
+	 */
+	public void setRepeatMinutes(int repeatMinutes) {
+		this.repeatMinutes = repeatMinutes;
+	}
+	/**
+	 * @return true if the Reminder repeats
+	 */
+	public boolean isRepeating() {
+		return repeatMinutes > 0;
+	}
+	/**
+	 * @return true if the entity is still stored in the layout with the userid property and all properties indexed
+	 */
+	public boolean isLegacyLayout() {
+		return legacyLayout;
 	}
 	/**
 	 * @return the emailAddress
@@ -106,15 +170,63 @@ public class Reminder {
 	/**
 	 * @return the status
 	 */
-	public String getStatus() {
+	public ReminderStatus getStatus() {
 		return status;
 	}
 	/**
 	 * @param status the status to set
 	 */
-	public void setStatus(String status) {
+	public void setStatus(ReminderStatus status) {
 		this.status = status;
 	}
+	/**
+	 * @return the leaseOwner
+	 */
+	public String getLeaseOwner() {
+		return leaseOwner;
+	}
+	/**
+	 * @param leaseOwner the leaseOwner to set
+	 */
+	public void setLeaseOwner(String leaseOwner) {
+		this.leaseOwner = leaseOwner;
+	}
+	/**
+	 * @return the leaseExpiry
+	 */
+	public Date getLeaseExpiry() {
+		return leaseExpiry;
+	}
+	/**
+	 * @param leaseExpiry the leaseExpiry to set
+	 */
+	public void setLeaseExpiry(Date leaseExpiry) {
+		this.leaseExpiry = leaseExpiry;
+	}
+	/**
+	 * @return the attempts
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+	/**
+	 * @param attempts the attempts to set
+	 */
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+	/**
+	 * @return the nextAttempt
+	 */
+	public Date getNextAttempt() {
+		return nextAttempt;
+	}
+	/**
+	 * @param nextAttempt the nextAttempt to set
+	 */
+	public void setNextAttempt(Date nextAttempt) {
+		this.nextAttempt = nextAttempt;
+	}
 	
 
 }
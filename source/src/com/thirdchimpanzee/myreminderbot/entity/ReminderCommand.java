@@ -11,6 +11,9 @@ package com.thirdchimpanzee.myreminderbot.entity;
  * gives the following command 10h Call Dentist, the minutes field will be populated with 
  * 10 * 60 mins = 600 (minutes) and the msg field will be populated with  'Call Dentist'
  * 
+ * For a repeating Reminder, e.g. every 1d Standup, the interval is normalized in minutes as well (repeatMinutes). It is 0 
+ * for a Reminder that goes off only once.
+ * 
  * @author irani_r
  * @version 1.0
  * 
@@ -21,6 +24,7 @@ public class ReminderCommand {
 
 	private static final long serialVersionUID = 1L;
 	private int minutes;
+	private int repeatMinutes;
 	private String message;
 	/**
 	 * @return the minutes
@@ -34,6 +38,18 @@ public class ReminderCommand {
 	public void setMinutes(int minutes) {
 		this.minutes = minutes;
 	}
+	/**
+	 * @return the repeatMinutes
+	 */
+	public int getRepeatMinutes() {
+		return repeatMinutes;
+	}
+	/**
+	 * @param repeatMinutes the repeatMinutes to set
+	 */
+	public void setRepeatMinutes(int repeatMinutes) {
+		this.repeatMinutes = repeatMinutes;
+	}
 	/**
 	 * @return the message
 	 */
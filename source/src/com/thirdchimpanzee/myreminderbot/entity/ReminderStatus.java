@@ -0,0 +1,26 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.entity;
+
+/**
+ * The states a Reminder goes through
+ * 
+ * Objectify stores an enum by its name, so the status is saved as the same strings that were used before the enum existed
+ * and the existing entities and status indexes stay valid.
+ * 
+ * @author irani_r
+ * @version 1.0
+ * 
+ * ACTIVE : The Reminder is waiting for its trigger time
+ * SENT   : The Reminder has been delivered
+ * RETRY  : Delivering the Reminder failed, it is tried again at its nextAttempt
+ * DEAD   : Delivering the Reminder failed too many times, it is not tried again
+ */
+public enum ReminderStatus {
+	ACTIVE,
+	SENT,
+	RETRY,
+	DEAD
+}
@@ -0,0 +1,34 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that only goes up, e.g. the number of Reminders delivered
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public final class Counter {
+
+	private final AtomicLong value = new AtomicLong();
+
+	Counter() {
+	}
+
+	public void inc() {
+		value.incrementAndGet();
+	}
+
+	public void add(long n) {
+		value.addAndGet(n);
+	}
+
+	public long get() {
+		return value.get();
+	}
+}
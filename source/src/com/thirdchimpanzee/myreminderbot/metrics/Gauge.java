@@ -0,0 +1,20 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.metrics;
+
+/**
+ * A value that is read when the metrics are scraped, e.g. the size of a cache
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public interface Gauge {
+
+	/**
+	 * @return The current value
+	 */
+	long get();
+}
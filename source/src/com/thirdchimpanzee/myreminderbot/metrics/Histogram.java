@@ -0,0 +1,107 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values such as latencies, in the style of an HDR histogram
+ *
+ * Values are counted in log-linear buckets: every power of two is split into SUB_BUCKETS buckets of equal width, so a value
+ * is known to within 1 / SUB_BUCKETS (12.5%) of itself over the whole range of a long, with a fixed array of a few hundred
+ * counters. Recording a value is a handful of shifts and one atomic increment, without any locking, so it is cheap enough for
+ * the request path.
+ *
+ * The quantiles are computed from the buckets when the metrics are scraped. They report the upper end of the bucket, capped
+ * at the largest value recorded.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public final class Histogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	Histogram() {
+	}
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 * @param value The value to record
+	 */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		counts.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Records the time in microseconds since a start time taken with System.nanoTime()
+	 * @param startNanos The start time
+	 */
+	public void recordSince(long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param q The quantile, between 0 and 1
+	 * @return The value below which that part of the recorded values lie, or 0 if nothing has been recorded
+	 */
+	public long getQuantile(double q) {
+		long total = count.get();
+		if (total == 0) return 0;
+		long rank = (long)Math.ceil(q * total);
+		if (rank < 1) rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) return Math.min(upperBoundOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) return (int)value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BITS);
+		long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+		//The very last bucket ends at Long.MAX_VALUE
+		return (lower + width - 1 < lower) ? Long.MAX_VALUE : lower + width - 1;
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.metrics;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Registry of the metrics of the application
+ *
+ * A metric is identified by its name and an optional set of labels, e.g. myreminderbot_store_micros with op="findDue". The
+ * hot-path code looks its Counter / Histogram up once and keeps it in a static field, so recording costs no map lookups.
+ *
+ * writeTo() prints all the metrics in the Prometheus text exposition format, which is what the /metrics servlet returns.
+ * Histograms are printed as summaries (the 0.5, 0.9, 0.99 and 0.999 quantiles, _sum and _count) plus a _max gauge.
+ *
+ * Metrics live in memory and are per instance, they start from zero whenever an instance is started.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public final class Metrics {
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	//Sorted by name and labels, so that the metrics of one name are printed together
+	private static final Map<String, Metric> metrics = new ConcurrentSkipListMap<String, Metric>();
+
+	private Metrics() {
+	}
+
+	public static Counter counter(String name, String help) {
+		return counter(name, null, help);
+	}
+
+	/**
+	 * @param name The name of the counter, it should end with _total
+	 * @param labels The labels, e.g. op="find", or null
+	 * @param help The description of the counter
+	 * @return The counter with that name and labels, created if needed
+	 */
+	public static Counter counter(String name, String labels, String help) {
+		return (Counter)register(name, labels, help, "counter", new Counter()).value;
+	}
+
+	public static Histogram histogram(String name, String help) {
+		return histogram(name, null, help);
+	}
+
+	/**
+	 * @param name The name of the histogram, it should end with the unit of the values e.g. _micros
+	 * @param labels The labels, e.g. op="find", or null
+	 * @param help The description of the histogram
+	 * @return The histogram with that name and labels, created if needed
+	 */
+	public static Histogram histogram(String name, String labels, String help) {
+		return (Histogram)register(name, labels, help, "summary", new Histogram()).value;
+	}
+
+	/**
+	 * Registers a gauge. A gauge registered again under the same name and labels replaces the previous one.
+	 * @param name The name of the gauge
+	 * @param labels The labels, e.g. op="find", or null
+	 * @param help The description of the gauge
+	 * @param gauge The gauge
+	 */
+	public static void gauge(String name, String labels, String help, Gauge gauge) {
+		metrics.put(key(name, labels), new Metric(name, labels, help, "gauge", gauge));
+	}
+
+	private static Metric register(String name, String labels, String help, String type, Object value) {
+		String key = key(name, labels);
+		Metric metric = metrics.get(key);
+		if (metric == null) {
+			synchronized (metrics) {
+				metric = metrics.get(key);
+				if (metric == null) {
+					metric = new Metric(name, labels, help, type, value);
+					metrics.put(key, metric);
+				}
+			}
+		}
+		return metric;
+	}
+
+	private static String key(String name, String labels) {
+		//The space sorts before any character of a name, so a name is never split up by a longer name starting with it
+		return (labels == null) ? name : name + " " + labels;
+	}
+
+	/**
+	 * Prints all the metrics in the Prometheus text exposition format
+	 * @param out Where to print them
+	 */
+	public static void writeTo(PrintWriter out) {
+		String lastName = null;
+		StringBuilder maxes = new StringBuilder();
+		for (Metric m : metrics.values()) {
+			if (!m.name.equals(lastName)) {
+				out.print(maxes);
+				maxes.setLength(0);
+				out.print("# HELP " + m.name + " " + m.help + "\n");
+				out.print("# TYPE " + m.name + " " + m.type + "\n");
+				lastName = m.name;
+			}
+			if (m.value instanceof Counter) {
+				out.print(m.name + labels(m.labels, null) + " " + ((Counter)m.value).get() + "\n");
+			}
+			else if (m.value instanceof Gauge) {
+				out.print(m.name + labels(m.labels, null) + " " + ((Gauge)m.value).get() + "\n");
+			}
+			else {
+				Histogram h = (Histogram)m.value;
+				for (double q : QUANTILES) {
+					out.print(m.name + labels(m.labels, "quantile=\"" + q + "\"") + " " + h.getQuantile(q) + "\n");
+				}
+				out.print(m.name + "_sum" + labels(m.labels, null) + " " + h.getSum() + "\n");
+				out.print(m.name + "_count" + labels(m.labels, null) + " " + h.getCount() + "\n");
+				if (maxes.length() == 0) maxes.append("# TYPE " + m.name + "_max gauge\n");
+				maxes.append(m.name + "_max" + labels(m.labels, null) + " " + h.getMax() + "\n");
+			}
+		}
+		out.print(maxes);
+	}
+
+	private static String labels(String labels, String extra) {
+		if (labels == null && extra == null) return "";
+		if (labels == null) return "{" + extra + "}";
+		if (extra == null) return "{" + labels + "}";
+		return "{" + labels + "," + extra + "}";
+	}
+
+	private static class Metric {
+		final String name;
+		final String labels;
+		final String help;
+		final String type;
+		final Object value;
+
+		Metric(String name, String labels, String help, String type, Object value) {
+			this.name = name;
+			this.labels = labels;
+			this.help = help;
+			this.type = type;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.scheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel
+ *
+ * The wheel keeps items that need to be fired at a given time. Level 0 has one slot per tick, level 1 has one slot per
+ * (wheelSize) ticks, level 2 one slot per (wheelSize * wheelSize) ticks and so on. An item is placed in the lowest level
+ * that can hold its deadline and, as time moves on, the slots of the higher levels are cascaded down into the lower
+ * ones. Adding an item and firing it are therefore constant time operations no matter how many items are waiting.
+ *
+ * Items are never fired before their deadline. They fire on the first tick at or after it, i.e. at most one tick late
+ * (plus however late advanceTo() itself is called).
+ *
+ * Items whose deadline is beyond the span of the highest level are kept in an overflow list that is looked at each time
+ * the highest level cascades.
+ *
+ * This class is not thread safe. The caller is expected to synchronize access to it.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class HierarchicalTimingWheel<T> {
+
+	private final long tickMillis;
+	private final int wheelSize;
+	private final int levels;
+	//Number of ticks covered by one slot of each level
+	private final long[] slotTicks;
+	private final List<List<Entry<T>>> slots;
+	private final List<Entry<T>> overflow = new ArrayList<Entry<T>>();
+	private long currentTick;
+	private int size = 0;
+
+	/**
+	 * @param tickMillis The duration of one tick in milliseconds
+	 * @param wheelSize The number of slots at each level
+	 * @param levels The number of levels
+	 * @param startTime The time (in milliseconds) at which the wheel starts
+	 */
+	public HierarchicalTimingWheel(long tickMillis, int wheelSize, int levels, long startTime) {
+		if (tickMillis <= 0 || wheelSize < 2 || levels < 1) throw new IllegalArgumentException("Invalid timing wheel configuration");
+		this.tickMillis = tickMillis;
+		this.wheelSize = wheelSize;
+		this.levels = levels;
+		this.slotTicks = new long[levels];
+		long ticks = 1;
+		for (int i = 0; i < levels; i++) {
+			slotTicks[i] = ticks;
+			ticks = ticks * wheelSize;
+		}
+		this.slots = new ArrayList<List<Entry<T>>>(levels * wheelSize);
+		for (int i = 0; i < levels * wheelSize; i++) {
+			slots.add(new ArrayList<Entry<T>>());
+		}
+		this.currentTick = startTime / tickMillis;
+	}
+
+	/**
+	 * Adds an item to the wheel
+	 * @param deadline The time (in milliseconds) at which the item needs to be fired
+	 * @param item The item
+	 * @return true if the item was added, false if the deadline has already been reached and the caller should fire it right away
+	 */
+	public boolean add(long deadline, T item) {
+		//Round up so that we never fire early
+		long deadlineTick = (deadline + tickMillis - 1) / tickMillis;
+		if (deadlineTick <= currentTick) return false;
+		place(new Entry<T>(deadlineTick, item));
+		size++;
+		return true;
+	}
+
+	/**
+	 * Moves the wheel forward to the given time and collects every item whose deadline has been reached
+	 * @param now The current time in milliseconds
+	 * @param expired The list to which the fired items are added
+	 */
+	public void advanceTo(long now, List<T> expired) {
+		long targetTick = now / tickMillis;
+		while (currentTick < targetTick) {
+			currentTick++;
+			//Cascade from the top so that items can fall through several levels in the same tick
+			for (int level = levels - 1; level >= 1; level--) {
+				if (currentTick % slotTicks[level] == 0) {
+					cascade(level, expired);
+				}
+			}
+			if (currentTick % (slotTicks[levels - 1] * wheelSize) == 0 && !overflow.isEmpty()) {
+				List<Entry<T>> pending = new ArrayList<Entry<T>>(overflow);
+				overflow.clear();
+				reinsert(pending, expired);
+			}
+			List<Entry<T>> slot = slots.get(slotIndex(0, currentTick));
+			for (Entry<T> entry : slot) {
+				expired.add(entry.item);
+				size--;
+			}
+			slot.clear();
+		}
+	}
+
+	/**
+	 * @return The number of items waiting in the wheel
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The time (in milliseconds) up to which the wheel has been advanced
+	 */
+	public long getCurrentTime() {
+		return currentTick * tickMillis;
+	}
+
+	private void cascade(int level, List<T> expired) {
+		List<Entry<T>> slot = slots.get(slotIndex(level, currentTick / slotTicks[level]));
+		if (slot.isEmpty()) return;
+		List<Entry<T>> pending = new ArrayList<Entry<T>>(slot);
+		slot.clear();
+		reinsert(pending, expired);
+	}
+
+	private void reinsert(List<Entry<T>> pending, List<T> expired) {
+		for (Entry<T> entry : pending) {
+			if (entry.deadlineTick <= currentTick) {
+				expired.add(entry.item);
+				size--;
+			}
+			else {
+				place(entry);
+			}
+		}
+	}
+
+	private void place(Entry<T> entry) {
+		for (int level = 0; level < levels; level++) {
+			long distance = entry.deadlineTick / slotTicks[level] - currentTick / slotTicks[level];
+			if (distance < wheelSize) {
+				slots.get(slotIndex(level, entry.deadlineTick / slotTicks[level])).add(entry);
+				return;
+			}
+		}
+		overflow.add(entry);
+	}
+
+	private int slotIndex(int level, long slotNumber) {
+		return level * wheelSize + (int)(slotNumber % wheelSize);
+	}
+
+	private static class Entry<T> {
+		final long deadlineTick;
+		final T item;
+
+		Entry(long deadlineTick, T item) {
+			this.deadlineTick = deadlineTick;
+			this.item = item;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.scheduler;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.service.ReminderBotConfig;
+import com.thirdchimpanzee.myreminderbot.service.ReminderBotService;
+
+/**
+ * In-process Reminder Scheduler
+ *
+ * The Cron Job only runs once a minute, which means that a Reminder can go out up to a minute late. When the scheduler is
+ * enabled (myreminderbot.scheduler.enabled in WEB-INF\appengine-web.xml) the upcoming Reminders are kept in a
+ * HierarchicalTimingWheel that is advanced every second by a background thread, so that each Reminder is sent within about a
+ * second of its reminderDate.
+ *
+ * The wheel only holds the Reminders that are due within the lookahead window. It is filled:
+ * 1. On startup, from the datastore (see start())
+ * 2. By every Cron Job run, which now acts as a safety net sweep (see ReminderBotService.sendNotifications())
+ * 3. By addReminder() for Reminders that are set for the near future
+ *
+ * The wheel only holds Reminder Ids. When an Id fires, the Reminder is read again from the datastore and is only sent if it is
+ * still ACTIVE, so Reminders that got removed in the meantime are simply skipped.
+ *
+ * Note that the scheduler needs a runtime that allows background threads. It is off by default.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class ReminderScheduler {
+	private static final Logger _logger = Logger.getLogger(ReminderScheduler.class.getName());
+
+	public static final long TICK = 1000;
+	private static final int WHEEL_SIZE = 60;
+	private static final int WHEEL_LEVELS = 3;
+
+	private static final ReminderScheduler _self = new ReminderScheduler();
+
+	private HierarchicalTimingWheel<Long> wheel = null;
+	private final Set<Long> scheduledIds = new HashSet<Long>();
+	private ScheduledExecutorService executor = null;
+	private long lookahead;
+	private volatile boolean running = false;
+
+	private ReminderScheduler() {
+	}
+
+	public static ReminderScheduler getInstance() {
+		return _self;
+	}
+
+	/**
+	 * @return true if the scheduler has been started
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return The lookahead window (in milliseconds) for which Reminders are held in the wheel
+	 */
+	public long getLookahead() {
+		return lookahead;
+	}
+
+	/**
+	 * Starts the background thread and rebuilds the wheel from the datastore.
+	 */
+	public void start() {
+		synchronized (this) {
+			if (running) return;
+			lookahead = ReminderBotConfig.getLong(ReminderBotConfig.SCHEDULER_LOOKAHEAD, 2 * 60 * 1000);
+			wheel = new HierarchicalTimingWheel<Long>(TICK, WHEEL_SIZE, WHEEL_LEVELS, System.currentTimeMillis());
+			scheduledIds.clear();
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ReminderScheduler");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			executor.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					tick();
+				}
+			}, TICK, TICK, TimeUnit.MILLISECONDS);
+			running = true;
+		}
+		try {
+			//Reminders that are already late (e.g. after an outage) are left to the Cron Job, which drains them at a steady rate
+			long now = System.currentTimeMillis();
+			long grace = ReminderBotConfig.getLong(ReminderBotConfig.SCHEDULER_GRACE, 5 * 1000);
+			List<Reminder> upcoming = ReminderBotService.getInstance().getStore().findDue(new Date(now - grace), new Date(now + lookahead), Integer.MAX_VALUE);
+			for (Reminder r : upcoming) {
+				schedule(r);
+			}
+			_logger.info("Reminder Scheduler started with " + upcoming.size() + " upcoming Reminders");
+		}
+		catch (Exception ex) {
+			_logger.info("Error in loading upcoming Reminders : " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Stops the background thread. Reminders that were in the wheel are left to the Cron Job.
+	 */
+	public synchronized void stop() {
+		if (!running) return;
+		running = false;
+		executor.shutdownNow();
+		executor = null;
+		wheel = null;
+		scheduledIds.clear();
+		_logger.info("Reminder Scheduler stopped");
+	}
+
+	/**
+	 * Puts a Reminder in the wheel if it is due within the lookahead window. A Reminder that is already in the wheel is not
+	 * added twice.
+	 * @param r The Reminder to schedule
+	 * @return true if the scheduler has taken care of the Reminder, false if it is left to the Cron Job
+	 */
+	public boolean schedule(Reminder r) {
+		if (!running || r.getId() == null) return false;
+		long tReminder = r.getReminderDate().getTime();
+		if (tReminder > System.currentTimeMillis() + lookahead) return false;
+		ScheduledExecutorService _executor;
+		synchronized (this) {
+			if (!running) return false;
+			if (scheduledIds.contains(r.getId())) return true;
+			if (wheel.add(tReminder, r.getId())) {
+				scheduledIds.add(r.getId());
+				return true;
+			}
+			_executor = executor;
+		}
+		//Already due. Let the scheduler thread send it right away.
+		final Long id = r.getId();
+		_executor.execute(new Runnable() {
+			public void run() {
+				fire(id);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * @return The number of Reminders currently waiting in the wheel
+	 */
+	public synchronized int size() {
+		return (wheel == null) ? 0 : wheel.size();
+	}
+
+	private void tick() {
+		List<Long> fired = new ArrayList<Long>();
+		synchronized (this) {
+			if (!running) return;
+			wheel.advanceTo(System.currentTimeMillis(), fired);
+			scheduledIds.removeAll(fired);
+		}
+		for (Long id : fired) {
+			fire(id);
+		}
+	}
+
+	private void fire(Long id) {
+		try {
+			ReminderBotService.getInstance().dispatchReminder(id);
+		}
+		catch (Exception ex) {
+			//Never let an exception kill the scheduler thread
+			_logger.info("Error in sending Reminder " + id + " : " + ex.getMessage());
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+
+/**
+ * Read-through cache of the ACTIVE Reminders of each user
+ *
+ * The list and remove commands need the ACTIVE Reminders of a user, which only change when a Reminder is added, removed or
+ * sent. The ReminderBotService keeps them here and invalidates a user's entry on each of those three paths, so repeated
+ * list / remove interactions do not hit the datastore.
+ *
+ * The cache holds at most myreminderbot.cache.size users and evicts the least recently used one when it is full. An entry is
+ * also dropped once it is older than myreminderbot.cache.ttl milliseconds, which bounds how stale it can get when the
+ * Reminder was changed by another instance.
+ *
+ * A load that raced with a change of the same user is not stored : beginLoad() leaves a stamped placeholder in the user's
+ * entry, invalidate() drops it, and put() only replaces the placeholder with the same stamp. Changes to other users (e.g.
+ * the Reminders sent by a sweep) therefore do not keep a user's list out of the cache.
+ *
+ * The hit, miss, eviction and invalidation counters are there for tuning the two settings.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class ActiveReminderCache {
+
+	private final int maxUsers;
+	private final long ttl;
+	private final Map<String, Entry> entries;
+	//Stamps the loads
+	private long clock = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	@SuppressWarnings("serial")
+	ActiveReminderCache(int maxUsers, long ttl) {
+		this.maxUsers = maxUsers;
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() > ActiveReminderCache.this.maxUsers) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param emailAddress The email address of the user
+	 * @return A copy of the cached list of ACTIVE Reminders of the user, or null if it is not cached
+	 */
+	synchronized List<Reminder> get(String emailAddress) {
+		Entry entry = entries.get(emailAddress);
+		if (entry != null && entry.loadedAt + ttl < System.currentTimeMillis()) {
+			entries.remove(emailAddress);
+			if (entry.reminders != null) evictions.incrementAndGet();
+			entry = null;
+		}
+		if (entry == null || entry.reminders == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return new ArrayList<Reminder>(entry.reminders);
+	}
+
+	/**
+	 * To be called before loading the Reminders of a user from the store after a miss
+	 * @param emailAddress The email address of the user
+	 * @return The token to hand to put()
+	 */
+	synchronized long beginLoad(String emailAddress) {
+		long token = ++clock;
+		Entry entry = entries.get(emailAddress);
+		//A list loaded in the meantime by somebody else stays, the put() of this load is then ignored
+		if (entry == null || entry.reminders == null) {
+			entries.put(emailAddress, new Entry(null, System.currentTimeMillis(), token));
+		}
+		return token;
+	}
+
+	/**
+	 * Caches the ACTIVE Reminders of a user, unless the user was invalidated since the load started
+	 * @param emailAddress The email address of the user
+	 * @param reminders The ACTIVE Reminders of the user
+	 * @param token The token returned by beginLoad()
+	 */
+	synchronized void put(String emailAddress, List<Reminder> reminders, long token) {
+		if (maxUsers <= 0) return;
+		Entry entry = entries.get(emailAddress);
+		//Dropped by an invalidation (or evicted), or taken over by a later load
+		if (entry == null || entry.reminders != null || entry.token != token) return;
+		entries.put(emailAddress, new Entry(new ArrayList<Reminder>(reminders), System.currentTimeMillis(), token));
+	}
+
+	/**
+	 * Drops the entry of a user because one of the Reminders of that user has changed
+	 * @param emailAddress The email address of the user
+	 */
+	synchronized void invalidate(String emailAddress) {
+		Entry entry = entries.remove(emailAddress);
+		if (entry != null && entry.reminders != null) invalidations.incrementAndGet();
+	}
+
+	/**
+	 * @return The number of users currently cached, including those whose Reminders are being loaded
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	/**
+	 * The cached Reminders of a user, or a placeholder (no reminders) while they are being loaded
+	 */
+	private static class Entry {
+		final List<Reminder> reminders;
+		final long loadedAt;
+		final long token;
+
+		Entry(List<Reminder> reminders, long loadedAt, long token) {
+			this.reminders = reminders;
+			this.loadedAt = loadedAt;
+			this.token = token;
+		}
+	}
+}
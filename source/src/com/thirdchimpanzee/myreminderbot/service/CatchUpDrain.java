@@ -0,0 +1,134 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.store.ReminderStore;
+
+/**
+ * Picks the overdue Reminders that a Cron Job run sends, and drains a backlog at a steady rate
+ *
+ * Normally a run sends everything that is due. After an outage or a missed Cron Job window though, thousands of Reminders
+ * can be overdue at once, and sending them all in one request runs into the request deadline and the XMPP quota.
+ *
+ * When more than myreminderbot.catchup.threshold Reminders are due, the runs switch to catch-up mode: each run only sends
+ * the oldest ones, at myreminderbot.catchup.rate Reminders per minute since the previous run, until the backlog is below the
+ * threshold again. Since the sent Reminders leave the ACTIVE set, every run simply continues with the oldest ones left.
+ *
+ * The progress (start time, Reminders sent so far, time of the last run) is saved in the catchup Checkpoint, so the rate
+ * holds across instances and restarts. Each run logs the size of the backlog and the estimated time to drain it, which are
+ * also exposed as metrics.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+class CatchUpDrain {
+	private static final Logger _logger = Logger.getLogger(CatchUpDrain.class.getName());
+
+	/**
+	 * The name under which the progress of a catch-up is saved
+	 */
+	static final String CHECKPOINT = "catchup";
+
+	//Upper bound of a backlog count, the keys-only count query stops there
+	private static final int MAX_COUNT = 100000;
+	//Longest gap between two runs that is credited to the rate, so that a long pause does not turn into a burst
+	private static final long MAX_INTERVAL = 5 * 60 * 1000;
+	private static final long MINUTE = 60 * 1000;
+
+	private final ReminderStore store;
+	private final int threshold;
+	private final int rate;
+
+	private volatile long backlog = 0;
+	private volatile long eta = 0;
+
+	CatchUpDrain(ReminderStore store) {
+		this.store = store;
+		this.threshold = Math.max(1, ReminderBotConfig.getInt(ReminderBotConfig.CATCHUP_THRESHOLD, 500));
+		this.rate = Math.max(1, ReminderBotConfig.getInt(ReminderBotConfig.CATCHUP_RATE, 300));
+	}
+
+	/**
+	 * @param now The current time
+	 * @param dueBy The latest due time that the run sends
+	 * @return The ACTIVE Reminders to send in this run, oldest first
+	 */
+	List<Reminder> select(long now, Date dueBy) {
+		List<Reminder> due = store.findDue(null, dueBy, threshold + 1);
+		String checkpoint = store.loadCheckpoint(CHECKPOINT);
+		if (due.size() <= threshold) {
+			//The backlog went away in some other way, e.g. the Reminders were removed
+			if (checkpoint != null) store.saveCheckpoint(CHECKPOINT, null);
+			backlog = 0;
+			eta = 0;
+			return due;
+		}
+
+		//Catch-up mode : [started];[sent so far];[last run]
+		long[] progress = parse(checkpoint, now);
+		long interval = Math.min(Math.max(now - progress[2], 0), MAX_INTERVAL);
+		int quota = (int)Math.max(1, rate * interval / MINUTE);
+		List<Reminder> batch;
+		if (quota <= due.size()) {
+			batch = new ArrayList<Reminder>(due.subList(0, quota));
+		}
+		else {
+			batch = store.findDue(null, dueBy, quota);
+		}
+		int count = store.countDue(dueBy, MAX_COUNT);
+		long sent = progress[1] + batch.size();
+		_logger.warning("Catch-up mode : " + (count >= MAX_COUNT ? "over " : "") + count + " overdue Reminders, sending the oldest " + batch.size()
+				+ " at " + rate + " per minute");
+		//What is left after this run
+		backlog = Math.max(0, count - batch.size());
+		eta = (backlog * MINUTE / rate) / 1000;
+		if (backlog <= threshold) {
+			_logger.info("Catch-up finished, sent " + sent + " overdue Reminders in " + (now - progress[0]) / MINUTE + " minutes");
+			store.saveCheckpoint(CHECKPOINT, null);
+			backlog = 0;
+			eta = 0;
+		}
+		else {
+			_logger.warning("Catch-up backlog left : " + backlog + " Reminders, about " + (eta + 59) / 60 + " minutes to drain");
+			store.saveCheckpoint(CHECKPOINT, progress[0] + ";" + sent + ";" + now);
+		}
+		return batch;
+	}
+
+	/**
+	 * @return The number of overdue Reminders seen by the last run, 0 when not catching up
+	 */
+	long getBacklog() {
+		return backlog;
+	}
+
+	/**
+	 * @return The estimated time (in seconds) to drain the backlog at the configured rate, 0 when not catching up
+	 */
+	long getEta() {
+		return eta;
+	}
+
+	private static long[] parse(String checkpoint, long now) {
+		if (checkpoint != null) {
+			String[] parts = checkpoint.split(";");
+			try {
+				return new long[] { Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]) };
+			}
+			catch (RuntimeException ex) {
+				_logger.warning("Ignoring invalid catch-up checkpoint " + checkpoint);
+			}
+		}
+		//A new catch-up, credit it with one minute worth of Reminders
+		return new long[] { now, 0, now - MINUTE };
+	}
+}
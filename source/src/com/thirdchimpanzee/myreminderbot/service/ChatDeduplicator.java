@@ -0,0 +1,314 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.thirdchimpanzee.myreminderbot.metrics.Counter;
+import com.thirdchimpanzee.myreminderbot.metrics.Gauge;
+import com.thirdchimpanzee.myreminderbot.metrics.Metrics;
+
+/**
+ * Detects chat messages that add a Reminder and that have already been handled a moment ago
+ *
+ * App Engine retries the XMPP webhook when a request fails or times out, and chat clients resend messages when the
+ * connection drops, so the same message can arrive more than once. Each copy would add another Reminder. A message is a
+ * duplicate when the same user (bare Jabber ID) sent the same text, ignoring case and extra spaces, within the last
+ * myreminderbot.chat.dedup.window milliseconds.
+ *
+ * A message is only recorded once the Reminder it adds has been saved (done()). From the check (begin()) until then it is
+ * pending : a copy that arrives in the meantime is neither added nor acknowledged, as the first one may still fail. If it
+ * does fail, the message is dropped (forget()) and the next copy is new again.
+ *
+ * The messages recorded are kept in two structures:
+ *
+ * 1. A Bloom filter, sized for myreminderbot.chat.dedup.capacity messages at a false positive rate of
+ *    myreminderbot.chat.dedup.fpp. A message it does not contain is new, so most messages are recorded without looking
+ *    them up. The filter cannot forget, so there are two generations: a new one is started once per window (or earlier when
+ *    it is full) and the one before it is dropped. A message stays in the filter for at least one window as long as
+ *    fewer than capacity messages arrive per window.
+ * 2. A map from message to the time it was seen, which gives the exact answer when the filter says the message may have
+ *    been seen. It is spread over stripes like the buckets of the ChatRateLimiter and keeps only the most recently seen
+ *    messages, capacity in total. Each stripe also holds the pending messages.
+ *
+ * The lookups of one message are done under the lock of its stripe, so two copies that arrive at the same time cannot both
+ * be taken as new. The outcomes (new, duplicate, pending, or a false positive of the filter), the memory taken by the
+ * filters and the false positive rate expected from their current fill are published as metrics. Only the messages that
+ * were recorded are added to the filters, so the ones dropped by forget() never show up as false positives.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class ChatDeduplicator {
+
+	/**
+	 * The outcome of the check of a message
+	 */
+	public enum Outcome {
+		/** Not seen within the window, it is now pending */
+		NEW,
+		/** Recorded within the window, i.e. it has already added its Reminder */
+		DUPLICATE,
+		/** The same message is being handled right now */
+		PENDING
+	}
+
+	private static final int STRIPES = 16;
+
+	private static final Counter fresh = Metrics.counter("myreminderbot_chat_dedup_total", "result=\"new\"", "Chat messages checked for duplicates, by result");
+	private static final Counter duplicates = Metrics.counter("myreminderbot_chat_dedup_total", "result=\"duplicate\"", "Chat messages checked for duplicates, by result");
+	private static final Counter falsePositives = Metrics.counter("myreminderbot_chat_dedup_total", "result=\"false_positive\"", "Chat messages checked for duplicates, by result");
+	private static final Counter pendings = Metrics.counter("myreminderbot_chat_dedup_total", "result=\"pending\"", "Chat messages checked for duplicates, by result");
+
+	private final long window;
+	private final int capacity;
+	private final int bits;
+	private final int hashes;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private volatile BloomFilter current;
+	private volatile BloomFilter previous;
+
+	public ChatDeduplicator() {
+		this(ReminderBotConfig.getLong(ReminderBotConfig.CHAT_DEDUP_WINDOW, 60 * 1000),
+				ReminderBotConfig.getInt(ReminderBotConfig.CHAT_DEDUP_CAPACITY, 10000),
+				ReminderBotConfig.getDouble(ReminderBotConfig.CHAT_DEDUP_FPP, 0.01));
+	}
+
+	/**
+	 * @param window How long (in milliseconds) a message is remembered, 0 or less to switch the deduplication off
+	 * @param capacity Number of messages remembered
+	 * @param fpp Target false positive rate of the Bloom filter, between 0 and 1
+	 */
+	public ChatDeduplicator(long window, int capacity, double fpp) {
+		this.window = window;
+		this.capacity = Math.max(1, capacity);
+		if (fpp <= 0 || fpp >= 1) fpp = 0.01;
+		//The usual sizing : m = -n ln(p) / ln(2)^2 bits and k = m / n ln(2) hash functions
+		long m = (long)Math.ceil(-this.capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+		this.bits = (int)Math.min(Integer.MAX_VALUE - 63, Math.max(64, m));
+		this.hashes = Math.max(1, (int)Math.round((double)bits / this.capacity * Math.log(2)));
+		int perStripe = Math.max(1, this.capacity / STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(perStripe);
+		}
+		long now = System.currentTimeMillis();
+		current = new BloomFilter(bits, now);
+		previous = new BloomFilter(bits, now);
+		Metrics.gauge("myreminderbot_chat_dedup_bloom_bytes", null, "Memory taken by the Bloom filters of the chat deduplication", new Gauge() {
+			public long get() {
+				return isEnabled() ? 2L * (bits / 64 + 1) * 8 : 0;
+			}
+		});
+		Metrics.gauge("myreminderbot_chat_dedup_fpp_ppm", null, "False positive rate of the chat deduplication Bloom filters expected from their fill, in parts per million", new Gauge() {
+			public long get() {
+				return Math.round(expectedFalsePositiveRate() * 1000000);
+			}
+		});
+	}
+
+	/**
+	 * @return false if the deduplication is switched off
+	 */
+	public boolean isEnabled() {
+		return window > 0;
+	}
+
+	/**
+	 * Checks a message. A NEW message is pending until done() or forget() is called for it, which the caller must do.
+	 * @param jid The bare Jabber ID of the user
+	 * @param body The text of the message
+	 * @return NEW if the message has to be handled, DUPLICATE if the same message was recorded within the window, PENDING if
+	 *         it is being handled right now
+	 */
+	public Outcome begin(String jid, String body) {
+		if (!isEnabled()) return Outcome.NEW;
+		String key = key(jid, body);
+		long hash = fingerprint(key);
+		long now = System.currentTimeMillis();
+		Stripe stripe = stripe(hash);
+		synchronized (stripe) {
+			if (stripe.pending.contains(key)) {
+				pendings.inc();
+				return Outcome.PENDING;
+			}
+			if (current.mightContain(hash, hashes) || previous.mightContain(hash, hashes)) {
+				Long seen = stripe.get(key);
+				if (seen != null && now - seen < window) {
+					duplicates.inc();
+					return Outcome.DUPLICATE;
+				}
+				//Seen too long ago or not at all, in which case the filter was wrong or the map has dropped it
+				if (seen == null) falsePositives.inc();
+			}
+			stripe.pending.add(key);
+		}
+		fresh.inc();
+		return Outcome.NEW;
+	}
+
+	/**
+	 * Records a message for which begin() returned NEW, once it has been handled
+	 * @param jid The bare Jabber ID of the user
+	 * @param body The text of the message
+	 */
+	public void done(String jid, String body) {
+		if (!isEnabled()) return;
+		String key = key(jid, body);
+		long hash = fingerprint(key);
+		long now = System.currentTimeMillis();
+		BloomFilter filter = rotate(now);
+		Stripe stripe = stripe(hash);
+		synchronized (stripe) {
+			stripe.pending.remove(key);
+			stripe.put(key, now);
+			filter.add(hash, hashes);
+		}
+	}
+
+	/**
+	 * Drops a message for which begin() returned NEW but that could not be handled, so that a retry is new again
+	 * @param jid The bare Jabber ID of the user
+	 * @param body The text of the message
+	 */
+	public void forget(String jid, String body) {
+		if (!isEnabled()) return;
+		String key = key(jid, body);
+		Stripe stripe = stripe(fingerprint(key));
+		synchronized (stripe) {
+			stripe.pending.remove(key);
+		}
+	}
+
+	private Stripe stripe(long hash) {
+		return stripes[(int)((hash >>> 1) % STRIPES)];
+	}
+
+	/**
+	 * @return The filter to add to, after starting a new generation if the window is over or the filter is full
+	 */
+	private BloomFilter rotate(long now) {
+		BloomFilter filter = current;
+		if (now - filter.created < window && filter.count.get() < capacity) return filter;
+		synchronized (this) {
+			filter = current;
+			if (now - filter.created >= window || filter.count.get() >= capacity) {
+				previous = filter;
+				filter = new BloomFilter(bits, now);
+				current = filter;
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * @return The chance that a new message is found in one of the filters, given the number of messages in them
+	 */
+	double expectedFalsePositiveRate() {
+		if (!isEnabled()) return 0;
+		double p1 = Math.pow(1 - Math.exp(-(double)hashes * current.count.get() / bits), hashes);
+		double p2 = Math.pow(1 - Math.exp(-(double)hashes * previous.count.get() / bits), hashes);
+		return 1 - (1 - p1) * (1 - p2);
+	}
+
+	/**
+	 * @return The user and the text with case and runs of white space folded
+	 */
+	static String key(String jid, String body) {
+		StringBuilder SB = new StringBuilder(jid.length() + body.length() + 1);
+		SB.append(jid.toLowerCase(Locale.ENGLISH)).append('\n');
+		boolean space = false;
+		for (int i = 0; i < body.length(); i++) {
+			char c = body.charAt(i);
+			if (Character.isWhitespace(c)) {
+				space = true;
+				continue;
+			}
+			if (space && SB.charAt(SB.length() - 1) != '\n') SB.append(' ');
+			space = false;
+			SB.append(Character.toLowerCase(c));
+		}
+		return SB.toString();
+	}
+
+	/**
+	 * 64 bit FNV-1a hash, the String hash code is too short to derive the bit positions from
+	 */
+	static long fingerprint(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * A fixed size Bloom filter. The bit positions are derived from the two halves of the fingerprint (double hashing).
+	 */
+	private static class BloomFilter {
+		final AtomicLongArray words;
+		final int bits;
+		final long created;
+		final AtomicInteger count = new AtomicInteger();
+
+		BloomFilter(int bits, long created) {
+			this.words = new AtomicLongArray(bits / 64 + 1);
+			this.bits = bits;
+			this.created = created;
+		}
+
+		void add(long hash, int hashes) {
+			int h1 = (int)hash;
+			int h2 = (int)(hash >>> 32);
+			for (int i = 0; i < hashes; i++) {
+				int bit = ((h1 + i * h2) & 0x7fffffff) % bits;
+				long mask = 1L << bit;
+				int word = bit >>> 6;
+				long old;
+				do {
+					old = words.get(word);
+					if ((old & mask) != 0) break;
+				} while (!words.compareAndSet(word, old, old | mask));
+			}
+			count.incrementAndGet();
+		}
+
+		boolean mightContain(long hash, int hashes) {
+			int h1 = (int)hash;
+			int h2 = (int)(hash >>> 32);
+			for (int i = 0; i < hashes; i++) {
+				int bit = ((h1 + i * h2) & 0x7fffffff) % bits;
+				if ((words.get(bit >>> 6) & (1L << bit)) == 0) return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * The messages of one stripe with the time they were recorded, least recently seen first, and the pending ones
+	 */
+	@SuppressWarnings("serial")
+	private static class Stripe extends LinkedHashMap<String, Long> {
+		private final int maxMessages;
+		final Set<String> pending = new HashSet<String>();
+
+		Stripe(int maxMessages) {
+			super(16, 0.75f, true);
+			this.maxMessages = maxMessages;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > maxMessages;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import com.thirdchimpanzee.myreminderbot.metrics.Counter;
+import com.thirdchimpanzee.myreminderbot.metrics.Metrics;
+
+/**
+ * Admission control for the chat endpoint
+ *
+ * Every chat message can cost a datastore write (a new Reminder) or a query (list), so a single client that floods the bot
+ * would slow it down for everybody. Two checks are done before a message is handled:
+ *
+ * 1. A global cap of myreminderbot.chat.maxconcurrent messages handled at the same time (enter() / exit()).
+ * 2. A token bucket per user (bare Jabber ID) that holds up to myreminderbot.chat.burst messages and refills at
+ *    myreminderbot.chat.rate messages per minute (tryAcquire()).
+ *
+ * The buckets are spread over a fixed number of stripes, each with its own lock, so that concurrent messages from different
+ * users rarely wait on each other. Each stripe keeps only its most recently seen users, which bounds the memory to
+ * myreminderbot.chat.trackedusers buckets in total. A user that drops out simply starts again with a full bucket.
+ *
+ * Every rejection is counted in the myreminderbot_chat_rejected_total metric, by reason.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class ChatRateLimiter {
+
+	private static final int STRIPES = 16;
+
+	private static final Counter rateLimited = Metrics.counter("myreminderbot_chat_rejected_total", "reason=\"rate\"", "Chat messages turned away by the admission control");
+	private static final Counter busy = Metrics.counter("myreminderbot_chat_rejected_total", "reason=\"busy\"", "Chat messages turned away by the admission control");
+
+	private final double burst;
+	//Tokens added per nanosecond
+	private final double refill;
+	private final Semaphore concurrent;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	public ChatRateLimiter() {
+		this(ReminderBotConfig.getInt(ReminderBotConfig.CHAT_RATE, 30), 
+				ReminderBotConfig.getInt(ReminderBotConfig.CHAT_BURST, 10), 
+				ReminderBotConfig.getInt(ReminderBotConfig.CHAT_MAX_CONCURRENT, 20), 
+				ReminderBotConfig.getInt(ReminderBotConfig.CHAT_TRACKED_USERS, 10000));
+	}
+
+	/**
+	 * @param ratePerMinute Messages per minute a user may send in the long run, 0 or less for no limit
+	 * @param burst Messages a user may send in a row
+	 * @param maxConcurrent Messages handled at the same time, 0 or less for no limit
+	 * @param trackedUsers Users for whom a bucket is kept
+	 */
+	public ChatRateLimiter(int ratePerMinute, int burst, int maxConcurrent, int trackedUsers) {
+		this.burst = Math.max(1, burst);
+		this.refill = (ratePerMinute <= 0) ? 0 : ratePerMinute / (60 * 1e9);
+		this.concurrent = (maxConcurrent <= 0) ? null : new Semaphore(maxConcurrent);
+		int perStripe = Math.max(1, trackedUsers / STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(perStripe);
+		}
+	}
+
+	/**
+	 * Takes a slot for handling a message. Every successful call must be followed by a call to exit().
+	 * @return false if too many messages are being handled already
+	 */
+	public boolean enter() {
+		if (concurrent == null || concurrent.tryAcquire()) return true;
+		busy.inc();
+		return false;
+	}
+
+	/**
+	 * Gives back the slot taken by enter()
+	 */
+	public void exit() {
+		if (concurrent != null) concurrent.release();
+	}
+
+	/**
+	 * Takes a token from the bucket of a user
+	 * @param jid The bare Jabber ID of the user
+	 * @return false if the user has sent too many messages
+	 */
+	public boolean tryAcquire(String jid) {
+		if (refill == 0) return true;
+		long now = System.nanoTime();
+		Stripe stripe = stripes[(jid.hashCode() & 0x7fffffff) % STRIPES];
+		synchronized (stripe) {
+			Bucket bucket = stripe.get(jid);
+			if (bucket == null) {
+				bucket = new Bucket(burst, now);
+				stripe.put(jid, bucket);
+			}
+			bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updated) * refill);
+			bucket.updated = now;
+			if (bucket.tokens >= 1) {
+				bucket.tokens -= 1;
+				return true;
+			}
+		}
+		rateLimited.inc();
+		return false;
+	}
+
+	private static class Bucket {
+		double tokens;
+		long updated;
+
+		Bucket(double tokens, long updated) {
+			this.tokens = tokens;
+			this.updated = updated;
+		}
+	}
+
+	/**
+	 * The buckets of one stripe, least recently used first
+	 */
+	@SuppressWarnings("serial")
+	private static class Stripe extends LinkedHashMap<String, Bucket> {
+		private final int maxUsers;
+
+		Stripe(int maxUsers) {
+			super(16, 0.75f, true);
+			this.maxUsers = maxUsers;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+			return size() > maxUsers;
+		}
+	}
+}
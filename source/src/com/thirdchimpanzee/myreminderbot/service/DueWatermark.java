@@ -0,0 +1,125 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import java.util.Date;
+import java.util.logging.Logger;
+
+import com.thirdchimpanzee.myreminderbot.store.ReminderStore;
+
+/**
+ * Persisted lower bound of the time at which the next Reminder becomes due
+ *
+ * Most Cron Job runs find nothing to send. To make those runs cheap, the earliest reminderDate of the ACTIVE Reminders (or
+ * nextAttempt of the Reminders in RETRY) is kept in a Checkpoint named nextdue. A run first reads it and returns straight
+ * away when nothing can be due yet, so an idle run costs a single datastore get instead of a query.
+ *
+ * The value is only ever a lower bound:
+ * - Adding a Reminder (or putting one into RETRY) lowers it if the new Reminder is due earlier.
+ * - A full run recomputes it from the datastore. So does removing the Reminder the watermark points at.
+ * Both updates are compare-and-set on the Checkpoint, so a recompute never overwrites a concurrent lowering.
+ *
+ * Datastore queries are eventually consistent, so a recompute may still miss a Reminder that has just been added. To bound
+ * the damage of that, a full run is done at least every myreminderbot.watermark.maxidle milliseconds whatever the watermark
+ * says.
+ *
+ * The checkpoint is [watermark in milliseconds];[time of the last full run in milliseconds].
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+class DueWatermark {
+	private static final Logger _logger = Logger.getLogger(DueWatermark.class.getName());
+
+	/**
+	 * The name under which the watermark is saved
+	 */
+	static final String CHECKPOINT = "nextdue";
+
+	//How many times to try a compare-and-set that keeps losing against concurrent updates
+	private static final int MAX_TRIES = 5;
+
+	private final ReminderStore store;
+	private final long maxIdle;
+
+	DueWatermark(ReminderStore store) {
+		this.store = store;
+		this.maxIdle = ReminderBotConfig.getLong(ReminderBotConfig.WATERMARK_MAX_IDLE, 5 * 60 * 1000);
+	}
+
+	/**
+	 * @param now The current time
+	 * @param horizon The latest due time that the run would send
+	 * @return true if nothing can be due by the horizon, so that the run can be skipped
+	 */
+	boolean isIdle(long now, long horizon) {
+		long[] value = parse(store.loadCheckpoint(CHECKPOINT));
+		if (value == null) return false;
+		return value[0] > horizon && now - value[1] < maxIdle;
+	}
+
+	/**
+	 * Lowers the watermark to the given due time, if it is earlier than the current one
+	 * @param due The due time of a Reminder
+	 */
+	void lower(Date due) {
+		if (due == null) return;
+		for (int i = 0; i < MAX_TRIES; i++) {
+			String current = store.loadCheckpoint(CHECKPOINT);
+			long[] value = parse(current);
+			//Without a watermark every run is a full run anyway
+			if (value == null || value[0] <= due.getTime()) return;
+			if (store.replaceCheckpoint(CHECKPOINT, current, format(due.getTime(), value[1]))) return;
+		}
+		//Give up rather than block the request, the next full run puts things right
+		_logger.warning("Could not lower the next due watermark, dropping it");
+		store.saveCheckpoint(CHECKPOINT, null);
+	}
+
+	/**
+	 * Recomputes the watermark after a full run
+	 * @param now The time at which the run started
+	 */
+	void refresh(long now) {
+		recompute(now);
+	}
+
+	/**
+	 * Recomputes the watermark if it points at the given due time, e.g. because the Reminder due at that time was removed
+	 * @param due The due time of the Reminder
+	 */
+	void removed(Date due) {
+		if (due == null) return;
+		long[] value = parse(store.loadCheckpoint(CHECKPOINT));
+		if (value != null && value[0] == due.getTime()) recompute(value[1]);
+	}
+
+	private void recompute(long lastRun) {
+		//Read the current value before the query, so that a lowering done in the meantime makes the update fail
+		String current = store.loadCheckpoint(CHECKPOINT);
+		Date next = store.findEarliestDue();
+		long watermark = (next == null) ? Long.MAX_VALUE : next.getTime();
+		if (!store.replaceCheckpoint(CHECKPOINT, current, format(watermark, lastRun))) {
+			_logger.info("The next due watermark changed during the recompute, keeping the newer value");
+		}
+	}
+
+	private static String format(long watermark, long lastRun) {
+		return watermark + ";" + lastRun;
+	}
+
+	private static long[] parse(String value) {
+		if (value == null) return null;
+		int sep = value.indexOf(';');
+		try {
+			return new long[] { Long.parseLong(value.substring(0, sep)), Long.parseLong(value.substring(sep + 1)) };
+		}
+		catch (RuntimeException ex) {
+			_logger.warning("Ignoring invalid next due watermark " + value);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import java.util.logging.Logger;
+
+/**
+ * Runtime settings for the Bot
+ *
+ * All settings are read from Java system properties. On Google App Engine these are declared in the
+ * system-properties section of WEB-INF\appengine-web.xml, which is where the defaults for this application live.
+ * If a property is missing or cannot be parsed, the default value given by the caller is used.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public final class ReminderBotConfig {
+	private static final Logger _logger = Logger.getLogger(ReminderBotConfig.class.getName());
+
+	/**
+	 * The ReminderStore to use : objectify (the App Engine datastore, default) or memory.
+	 */
+	public static final String STORE = "myreminderbot.store";
+	/**
+	 * Local file for the write-behind log of new Reminders (see WriteBehindReminderStore). Write-behind is off when not set.
+	 */
+	public static final String WRITE_BEHIND_LOG = "myreminderbot.writebehind.log";
+	/**
+	 * Size (in bytes) of the write-behind log.
+	 */
+	public static final String WRITE_BEHIND_CAPACITY = "myreminderbot.writebehind.capacity";
+	/**
+	 * How often (in milliseconds) the Reminders in the write-behind log are written to the store.
+	 */
+	public static final String WRITE_BEHIND_INTERVAL = "myreminderbot.writebehind.interval";
+	/**
+	 * Maximum number of users whose ACTIVE Reminders are kept in the ActiveReminderCache.
+	 */
+	public static final String CACHE_SIZE = "myreminderbot.cache.size";
+	/**
+	 * How long (in milliseconds) an entry of the ActiveReminderCache may be used before it is loaded again.
+	 */
+	public static final String CACHE_TTL = "myreminderbot.cache.ttl";
+	/**
+	 * Number of Reminders shown per page by the list command.
+	 */
+	public static final String LIST_PAGE_SIZE = "myreminderbot.list.pagesize";
+	/**
+	 * What the compaction job does with old SENT and DEAD Reminders : archive (move them to the ArchivedReminder kind, default) or delete.
+	 */
+	public static final String COMPACTION_MODE = "myreminderbot.compaction.mode";
+	/**
+	 * How long (in milliseconds) after its trigger time a SENT or DEAD Reminder is kept before the compaction job picks it up.
+	 */
+	public static final String COMPACTION_RETENTION = "myreminderbot.compaction.retention";
+	/**
+	 * Number of Reminders the compaction job reads and writes per batch.
+	 */
+	public static final String COMPACTION_BATCH = "myreminderbot.compaction.batch";
+	/**
+	 * How long (in milliseconds) a single run of the compaction job may take before it saves its checkpoint and stops.
+	 */
+	public static final String COMPACTION_BUDGET = "myreminderbot.compaction.budget";
+	/**
+	 * true to run the in-process timing wheel scheduler (see ReminderScheduler). The Cron Job is then only a safety net.
+	 */
+	public static final String SCHEDULER_ENABLED = "myreminderbot.scheduler.enabled";
+	/**
+	 * How far ahead (in milliseconds) the scheduler loads upcoming Reminders into the timing wheel.
+	 */
+	public static final String SCHEDULER_LOOKAHEAD = "myreminderbot.scheduler.lookahead";
+	/**
+	 * How late (in milliseconds) a Reminder may be before the Cron Job sends it instead of leaving it to the scheduler.
+	 */
+	public static final String SCHEDULER_GRACE = "myreminderbot.scheduler.grace";
+	/**
+	 * Number of worker threads used to send out due Reminders. 1 sends everything on the request thread.
+	 */
+	public static final String DISPATCH_WORKERS = "myreminderbot.dispatch.workers";
+	/**
+	 * Maximum number of XMPP messages that the workers may have in flight at the same time.
+	 */
+	public static final String DISPATCH_MAX_IN_FLIGHT = "myreminderbot.dispatch.maxinflight";
+	/**
+	 * Delay (in milliseconds) before the first retry of a Reminder that could not be delivered. It doubles with every attempt.
+	 */
+	public static final String RETRY_BASE = "myreminderbot.retry.base";
+	/**
+	 * Longest delay (in milliseconds) between two attempts to deliver a Reminder.
+	 */
+	public static final String RETRY_MAX = "myreminderbot.retry.max";
+	/**
+	 * Number of failed attempts after which a Reminder is set to DEAD.
+	 */
+	public static final String RETRY_MAX_ATTEMPTS = "myreminderbot.retry.maxattempts";
+	/**
+	 * Maximum number of Reminders retried per Cron Job run.
+	 */
+	public static final String RETRY_BATCH = "myreminderbot.retry.batch";
+	/**
+	 * Number of due Reminders above which the Cron Job switches to catch-up mode and drains them at a fixed rate.
+	 */
+	public static final String CATCHUP_THRESHOLD = "myreminderbot.catchup.threshold";
+	/**
+	 * Number of overdue Reminders sent per minute in catch-up mode.
+	 */
+	public static final String CATCHUP_RATE = "myreminderbot.catchup.rate";
+	/**
+	 * Longest time (in milliseconds) the Cron Job may skip its sweep because the next due watermark says nothing is due.
+	 */
+	public static final String WATERMARK_MAX_IDLE = "myreminderbot.watermark.maxidle";
+	/**
+	 * How long (in milliseconds) a claim on a Reminder is valid before another dispatcher instance may take it over.
+	 */
+	public static final String DISPATCH_LEASE = "myreminderbot.dispatch.lease";
+	/**
+	 * true to send a user the Reminders that are due in the same run as one combined message (a digest) instead of one each.
+	 */
+	public static final String DIGEST_ENABLED = "myreminderbot.digest.enabled";
+	/**
+	 * Maximum length (in characters) of a digest message. Longer digests are split over several messages.
+	 */
+	public static final String DIGEST_MAX_LENGTH = "myreminderbot.digest.maxlength";
+	/**
+	 * Number of chat messages per minute a user may send in the long run. 0 switches the per user limit off.
+	 */
+	public static final String CHAT_RATE = "myreminderbot.chat.rate";
+	/**
+	 * Number of chat messages a user may send in a row before the per minute rate applies.
+	 */
+	public static final String CHAT_BURST = "myreminderbot.chat.burst";
+	/**
+	 * Maximum number of chat messages handled at the same time by an instance. 0 switches the cap off.
+	 */
+	public static final String CHAT_MAX_CONCURRENT = "myreminderbot.chat.maxconcurrent";
+	/**
+	 * Maximum number of users for whom the chat rate limiter keeps track of the messages sent.
+	 */
+	public static final String CHAT_TRACKED_USERS = "myreminderbot.chat.trackedusers";
+	/**
+	 * How long (in milliseconds) a chat message that added a Reminder is remembered, so that the same message sent again by
+	 * the same user is not added twice (see ChatDeduplicator). 0 switches the deduplication off.
+	 */
+	public static final String CHAT_DEDUP_WINDOW = "myreminderbot.chat.dedup.window";
+	/**
+	 * Maximum number of chat messages remembered for the deduplication.
+	 */
+	public static final String CHAT_DEDUP_CAPACITY = "myreminderbot.chat.dedup.capacity";
+	/**
+	 * Target false positive rate (between 0 and 1) of the Bloom filter of the deduplication. Lower rates take more memory.
+	 */
+	public static final String CHAT_DEDUP_FPP = "myreminderbot.chat.dedup.fpp";
+	/**
+	 * Number of times the StartupListener runs the chat commands and the parser to warm them up. 0 switches the warm-up off.
+	 */
+	public static final String STARTUP_WARMUP = "myreminderbot.startup.warmup";
+	/**
+	 * How replies and Reminders are handed to XMPP : sync (on the calling thread, default) or async (through a bounded queue
+	 * drained by background workers).
+	 */
+	public static final String TRANSPORT = "myreminderbot.transport";
+	/**
+	 * Number of worker threads of the async transport.
+	 */
+	public static final String TRANSPORT_WORKERS = "myreminderbot.transport.workers";
+	/**
+	 * Number of messages the async transport may queue before the caller has to send them itself.
+	 */
+	public static final String TRANSPORT_QUEUE = "myreminderbot.transport.queue";
+
+	private ReminderBotConfig() {
+	}
+
+	public static String getString(String name, String defaultValue) {
+		String value = System.getProperty(name);
+		if (value == null || value.trim().length() == 0) return defaultValue;
+		return value.trim();
+	}
+
+	public static boolean getBoolean(String name, boolean defaultValue) {
+		String value = getString(name, null);
+		if (value == null) return defaultValue;
+		return Boolean.parseBoolean(value);
+	}
+
+	public static long getLong(String name, long defaultValue) {
+		String value = getString(name, null);
+		if (value == null) return defaultValue;
+		try {
+			return Long.parseLong(value);
+		}
+		catch (NumberFormatException ex) {
+			_logger.warning("Invalid value " + value + " for " + name + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public static int getInt(String name, int defaultValue) {
+		return (int)getLong(name, defaultValue);
+	}
+
+	public static double getDouble(String name, double defaultValue) {
+		String value = getString(name, null);
+		if (value == null) return defaultValue;
+		try {
+			return Double.parseDouble(value);
+		}
+		catch (NumberFormatException ex) {
+			_logger.warning("Invalid value " + value + " for " + name + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+}
@@ -4,34 +4,53 @@
  */
 package com.thirdchimpanzee.myreminderbot.service;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import com.google.appengine.api.xmpp.JID;
 import com.google.appengine.api.xmpp.Message;
 import com.google.appengine.api.xmpp.MessageBuilder;
 import com.google.appengine.api.xmpp.SendResponse;
-import com.google.appengine.api.xmpp.XMPPService;
-import com.google.appengine.api.xmpp.XMPPServiceFactory;
-import com.googlecode.objectify.Objectify;
-import com.googlecode.objectify.ObjectifyService;
 import com.thirdchimpanzee.myreminderbot.MessageParseException;
 import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
 import com.thirdchimpanzee.myreminderbot.entity.ReminderCommand;
+import com.thirdchimpanzee.myreminderbot.metrics.Counter;
+import com.thirdchimpanzee.myreminderbot.metrics.Gauge;
+import com.thirdchimpanzee.myreminderbot.metrics.Histogram;
+import com.thirdchimpanzee.myreminderbot.metrics.Metrics;
+import com.thirdchimpanzee.myreminderbot.scheduler.ReminderScheduler;
+import com.thirdchimpanzee.myreminderbot.store.InMemoryReminderStore;
+import com.thirdchimpanzee.myreminderbot.store.ObjectifyReminderStore;
+import com.thirdchimpanzee.myreminderbot.store.ReminderPage;
+import com.thirdchimpanzee.myreminderbot.store.ReminderStore;
+import com.thirdchimpanzee.myreminderbot.store.TimedReminderStore;
+import com.thirdchimpanzee.myreminderbot.store.WriteBehindReminderStore;
+import com.thirdchimpanzee.myreminderbot.transport.AsyncMessageTransport;
+import com.thirdchimpanzee.myreminderbot.transport.MessageTransport;
+import com.thirdchimpanzee.myreminderbot.transport.XMPPMessageTransport;
 
 /**
  * Main Service Functionality
  * 
  * This is the workhorse of the application. This class is responsible for 2 main types of functionalities:
  * 
- * 1. All Database interactions
+ * 1. All Database interactions (through the configured ReminderStore)
  * 2. The method sendNotifications() which is invoked by the Cron Job to send out Reminders that have got triggered.
  * 
+ * The method compactReminders() is invoked by a second Cron Job to clean up the Reminders that have been sent, and
+ * migrateReminders() by a third one to rewrite the Reminders saved in the old entity layout.
+ * 
  * It also contains other utility methods that are central to the Bot like parsing the Reminder string.
  * 
  * @author irani_r
@@ -42,63 +61,249 @@ import com.thirdchimpanzee.myreminderbot.entity.ReminderCommand;
 public class ReminderBotService {
 	public static final Logger _logger = Logger.getLogger(ReminderBotService.class.toString());
 
-	private static ReminderBotService _self = null;
+	/**
+	 * The lookahead (in milliseconds) used by the Cron Job. A Reminder that is due within this window is sent in the current run
+	 * rather than waiting for the next one.
+	 */
+	public static final long NOTIFICATION_THRESHOLD = 60 * 1000;
+	
+	private static final Histogram parseTime = Metrics.histogram("myreminderbot_command_parse_micros", "Time taken to parse a Reminder message in microseconds");
+	private static final Histogram sweepTime = Metrics.histogram("myreminderbot_cron_sweep_micros", "job=\"sendreminders\"", "Duration of the Cron Job runs in microseconds");
+	private static final Counter idleTicks = Metrics.counter("myreminderbot_cron_ticks_total", "result=\"idle\"", "Cron Job runs, by whether they swept the due Reminders or were skipped by the watermark");
+	private static final Counter sweepTicks = Metrics.counter("myreminderbot_cron_ticks_total", "result=\"sweep\"", "Cron Job runs, by whether they swept the due Reminders or were skipped by the watermark");
+	private static final Histogram compactTime = Metrics.histogram("myreminderbot_cron_sweep_micros", "job=\"compactreminders\"", "Duration of the Cron Job runs in microseconds");
+	private static final Histogram migrateTime = Metrics.histogram("myreminderbot_cron_sweep_micros", "job=\"migratereminders\"", "Duration of the Cron Job runs in microseconds");
 
+	private static volatile ReminderBotService _self = null;
+	
+	private final ReminderStore store;
+	
+	private final ActiveReminderCache activeCache;
+	
+	private final int pageSize;
+	
+	//Where the next "list more" of each user continues : emailAddress -> the page after the last one shown
+	private final Map<String, ReminderPage> listPositions;
+	
+	private final ReminderDispatcher dispatcher;
+	
+	private final ReminderCompactor compactor;
+	private final ReminderMigrator migrator;
+	
+	private final int retryBatch;
+	
+	private final DueWatermark watermark;
+	
+	private final CatchUpDrain catchUp;
+	
+	//Identifies this instance in the leases it takes on Reminders, random so that no two instances share it
+	private final String nodeId = UUID.randomUUID().toString();
+	
+	//Numbers the claims of this instance
+	private final AtomicLong claims = new AtomicLong();
+	
+	private volatile MessageTransport transport = null;
+
+	@SuppressWarnings("serial")
 	private ReminderBotService() {
+		store = createStore();
+		activeCache = new ActiveReminderCache(ReminderBotConfig.getInt(ReminderBotConfig.CACHE_SIZE, 1000), 
+				ReminderBotConfig.getLong(ReminderBotConfig.CACHE_TTL, 60 * 1000));
+		pageSize = Math.max(1, ReminderBotConfig.getInt(ReminderBotConfig.LIST_PAGE_SIZE, 20));
+		final int maxPositions = Math.max(1, ReminderBotConfig.getInt(ReminderBotConfig.CACHE_SIZE, 1000));
+		listPositions = new LinkedHashMap<String, ReminderPage>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ReminderPage> eldest) {
+				return size() > maxPositions;
+			}
+		};
+		dispatcher = new ReminderDispatcher(this);
+		compactor = new ReminderCompactor(store);
+		migrator = new ReminderMigrator(store);
+		retryBatch = Math.max(1, ReminderBotConfig.getInt(ReminderBotConfig.RETRY_BATCH, 100));
+		watermark = new DueWatermark(store);
+		catchUp = new CatchUpDrain(store);
+		registerCacheGauges();
+	}
+	
+	private void registerCacheGauges() {
+		String help = "Lookups, evictions and invalidations of the per user cache of ACTIVE Reminders";
+		Metrics.gauge("myreminderbot_active_cache_events", "event=\"hit\"", help, new Gauge() {
+			public long get() {
+				return activeCache.getHits();
+			}
+		});
+		Metrics.gauge("myreminderbot_active_cache_events", "event=\"miss\"", help, new Gauge() {
+			public long get() {
+				return activeCache.getMisses();
+			}
+		});
+		Metrics.gauge("myreminderbot_active_cache_events", "event=\"eviction\"", help, new Gauge() {
+			public long get() {
+				return activeCache.getEvictions();
+			}
+		});
+		Metrics.gauge("myreminderbot_active_cache_events", "event=\"invalidation\"", help, new Gauge() {
+			public long get() {
+				return activeCache.getInvalidations();
+			}
+		});
+		Metrics.gauge("myreminderbot_active_cache_users", null, "Number of users in the per user cache of ACTIVE Reminders", new Gauge() {
+			public long get() {
+				return activeCache.size();
+			}
+		});
+		Metrics.gauge("myreminderbot_catchup_backlog", null, "Overdue Reminders seen by the last Cron Job run in catch-up mode, 0 otherwise", new Gauge() {
+			public long get() {
+				return catchUp.getBacklog();
+			}
+		});
+		Metrics.gauge("myreminderbot_catchup_eta_seconds", null, "Estimated time to drain the catch-up backlog", new Gauge() {
+			public long get() {
+				return catchUp.getEta();
+			}
+		});
 	}
 
+	/**
+	 * @return The service, created on the first call. Concurrent first calls wait for the same instance, the StartupListener
+	 * normally creates it before any request comes in.
+	 */
 	public static ReminderBotService getInstance() {
-		if (_self == null) {
-			_self = new ReminderBotService();
-			ObjectifyService.register(Reminder.class);
+		ReminderBotService self = _self;
+		if (self == null) {
+			synchronized (ReminderBotService.class) {
+				self = _self;
+				if (self == null) {
+					self = new ReminderBotService();
+					_self = self;
+				}
+			}
+		}
+		return self;
+	}
+	
+	/**
+	 * Picks the ReminderStore implementation given by the myreminderbot.store property. The calls to it are timed by a 
+	 * TimedReminderStore.
+	 */
+	private static ReminderStore createStore() {
+		String type = ReminderBotConfig.getString(ReminderBotConfig.STORE, "objectify");
+		ReminderStore _store;
+		if (type.equalsIgnoreCase("memory")) {
+			_logger.info("Using the in-memory Reminder store");
+			_store = new InMemoryReminderStore();
+		}
+		else {
+			_store = new ObjectifyReminderStore();
 		}
-		return _self;
+		String logFile = ReminderBotConfig.getString(ReminderBotConfig.WRITE_BEHIND_LOG, null);
+		if (logFile != null) {
+			try {
+				_store = new WriteBehindReminderStore(_store, new File(logFile), 
+						ReminderBotConfig.getInt(ReminderBotConfig.WRITE_BEHIND_CAPACITY, 4 * 1024 * 1024), 
+						Math.max(1, ReminderBotConfig.getLong(ReminderBotConfig.WRITE_BEHIND_INTERVAL, 5)));
+				_logger.info("Using the write-behind log " + logFile);
+			}
+			catch (IOException ex) {
+				//Without the log new Reminders are simply written straight away
+				_logger.warning("Error in opening the write-behind log " + logFile + " : " + ex.getMessage());
+			}
+		}
+		return new TimedReminderStore(_store);
+	}
+	
+	/**
+	 * Replaces the MessageTransport that is used to send out the Reminders and the replies. By default the one given by the 
+	 * myreminderbot.transport property is used. This is meant for running the service outside of App Engine, e.g. in the benchmarks.
+	 * @param transport The MessageTransport to use
+	 */
+	public void setMessageTransport(MessageTransport transport) {
+		this.transport = transport;
 	}
 	
 	/**
-	 * This method is invoked by the Chat Servlet to interpret and parse out the Reminder message. The input parameter message is checked for a 
-	 * Regular Expression that contains the day (d) , minutes (m) and hours (h). On successful parsing, it builds a ReminderCommand that always 
+	 * @return The MessageTransport that is used to send out the Reminders and the replies
+	 */
+	public MessageTransport getMessageTransport() {
+		MessageTransport _transport = transport;
+		if (_transport == null) {
+			synchronized (this) {
+				if (transport == null) transport = createTransport();
+				_transport = transport;
+			}
+		}
+		return _transport;
+	}
+	
+	/**
+	 * Picks the MessageTransport implementation given by the myreminderbot.transport property
+	 */
+	private static MessageTransport createTransport() {
+		String type = ReminderBotConfig.getString(ReminderBotConfig.TRANSPORT, "sync");
+		if (type.equalsIgnoreCase("async")) {
+			_logger.info("Using the asynchronous message transport");
+			return new AsyncMessageTransport(new XMPPMessageTransport(), 
+					Math.max(1, ReminderBotConfig.getInt(ReminderBotConfig.TRANSPORT_WORKERS, 2)), 
+					ReminderBotConfig.getInt(ReminderBotConfig.TRANSPORT_QUEUE, 1000));
+		}
+		return new XMPPMessageTransport();
+	}
+	
+	/**
+	 * @return The ReminderStore that holds the Reminders
+	 */
+	public ReminderStore getStore() {
+		return store;
+	}
+	
+	/**
+	 * @return The cache of ACTIVE Reminders per user, e.g. to look at its counters
+	 */
+	public ActiveReminderCache getActiveReminderCache() {
+		return activeCache;
+	}
+	
+	/**
+	 * Drops the cached ACTIVE Reminders of a user. To be called whenever one of the Reminders of the user changes.
+	 * @param emailAddress The email address of the user
+	 */
+	void reminderChanged(String emailAddress) {
+		activeCache.invalidate(emailAddress);
+	}
+	
+	/**
+	 * Lowers the next due watermark (see DueWatermark) for a Reminder that becomes due, or is to be retried, at the given time
+	 * @param due The date/time at which the Reminder has to be sent
+	 */
+	void reminderDue(Date due) {
+		watermark.lower(due);
+	}
+	
+	/**
+	 * This method is invoked by the Chat Servlet to interpret and parse out the Reminder message. The [When] part at the start of the
+	 * message is made of one or more numbers, each followed by day (d), hours (h) or minutes (m) e.g. 10m, 2h or 1h30m. The parsing is
+	 * done by the ReminderCommandParser in a single pass over the message. On successful parsing, it builds a ReminderCommand that always 
 	 * normalizes the reminder trigger time in minutes
 	 * @param message The string to parse
 	 * @return ReminderCommand The object that contains the successfully parsed Reminder message in interval of minutes
 	 * @throws MessageParseException
 	 */
 	public ReminderCommand validateAndParseMessage(String message) throws MessageParseException{
-		ReminderCommand reminder = null;
-		if (message != null && message.trim().length() > 0){
-			String remindeAtStr = message.substring(0, message.indexOf(" ")).trim().toLowerCase();			
-			String regexPattern = "(\\d*)([dhm])";
-			Pattern pattern = Pattern.compile(regexPattern);
-			Matcher matcher = pattern.matcher(remindeAtStr);
-			if (matcher.matches()){
-				int reminderValue;
-				try{
-					reminderValue = Integer.parseInt(matcher.group(1));
-				}catch (Exception e) {
-					throw new MessageParseException("Invalid Value");
-				}
-				String reminderType = matcher.group(2);
-				if (reminderType.equals("d")){
-					reminderValue = reminderValue * 24 * 60; 
-				}else if (reminderType.equals("h")){
-					reminderValue = reminderValue * 60;
-				}
-				reminder = new ReminderCommand();
-				reminder.setMessage(message.substring(message.indexOf(" "))); 
-				reminder.setMinutes(reminderValue);
-			}else{
-				throw new MessageParseException("Invalid Reminder format. Reminder format is as follows : A positve number followed by d or h or m (where d = days, h = hours and m = minutes) and then followed by space and a reminder message. For example 10d Dentist Appointment");
-			}
+		long t = System.nanoTime();
+		try {
+			return ReminderCommandParser.parse(message);
+		}
+		finally {
+			parseTime.recordSince(t);
 		}
-		
-		return reminder;
 	}
 	
 	/*****************************************************************************************************
 	 * Database Calls
-	 * The Google App Engine uses the Big Table datastore. All interactions with the Datastore are handled via the 
-	 * Objectify Framework, which is a simple to use framework for the Google App Engine Datastore. 
-	 * Refer to http://code.google.com/p/objectify-appengine/
+	 * The Google App Engine uses the Big Table datastore. All interactions with the Datastore go through the ReminderStore
+	 * interface. The default ObjectifyReminderStore uses the Objectify Framework, which is a simple to use framework for the 
+	 * Google App Engine Datastore. Refer to http://code.google.com/p/objectify-appengine/
 	 *****************************************************************************************************/
 	
 	/**
@@ -112,8 +317,24 @@ public class ReminderBotService {
 	 * @return A status message that indicates the success of the call
 	 * @throws Exception
 	 */
-	public String addReminder(String userId, String emailAddress,String msg, Date requestDate, Date reminderDate, String status) throws Exception {
-		Objectify obj = ObjectifyService.begin();
+	public String addReminder(String userId, String emailAddress,String msg, Date requestDate, Date reminderDate, ReminderStatus status) throws Exception {
+		return addReminder(userId, emailAddress, msg, requestDate, reminderDate, status, 0);
+	}
+	
+	/**
+	 * This method adds a Reminder that may repeat to the Datastore. A repeating Reminder is stored once, the dispatcher moves its
+	 * reminderDate on to the next occurrence every time it goes off.
+	 * @param userId The Jabber Id of the user
+	 * @param emailAddress The Email Address of the user
+	 * @param msg The Reminder message that the user would like to receive when the reminder is triggered.
+	 * @param requestDate The date / time on which the user made the request to add the reminder.
+	 * @param reminderDate The date / time on which the reminder will be triggered for the first time
+	 * @param status The current Status of the reminder. On creation, it is set as ACTIVE.
+	 * @param repeatMinutes The interval in minutes between two occurrences, 0 for a Reminder that goes off once
+	 * @return A status message that indicates the success of the call
+	 * @throws Exception
+	 */
+	public String addReminder(String userId, String emailAddress,String msg, Date requestDate, Date reminderDate, ReminderStatus status, int repeatMinutes) throws Exception {
 		Reminder _record = new Reminder();
 		_record.setUserid(userId);
 		_record.setEmailAddress(emailAddress);
@@ -121,7 +342,12 @@ public class ReminderBotService {
 		_record.setStatus(status);
 		_record.setRequestDate(requestDate);
 		_record.setReminderDate(reminderDate);
-		obj.put(_record);
+		_record.setRepeatMinutes(repeatMinutes);
+		store.put(_record);
+		reminderChanged(emailAddress);
+		reminderDue(reminderDate);
+		//If the Reminder is due soon, hand it over to the scheduler straight away (no-op when the scheduler is not running)
+		ReminderScheduler.getInstance().schedule(_record);
 		return "success";
 	}
 	
@@ -132,11 +358,11 @@ public class ReminderBotService {
 	 * @return A status message that indicates the success of the call
 	 * @throws Exception
 	 */
-	public String updateReminderStatus(String reminderId,String status) throws Exception {
-		Objectify obj = ObjectifyService.begin();
+	public String updateReminderStatus(String reminderId,ReminderStatus status) throws Exception {
 		Reminder _record = findReminderByID(reminderId);
 		_record.setStatus(status);
-		obj.put(_record);
+		store.put(_record);
+		reminderChanged(_record.getEmailAddress());
 		return "success";
 	}
 	
@@ -147,8 +373,7 @@ public class ReminderBotService {
 	 */
 	public Reminder findReminderByID(String reminderId) {
 		try {
-			Objectify obj = ObjectifyService.begin();
-			Reminder r = obj.query(Reminder.class).filter("id",reminderId).get();
+			Reminder r = store.find(Long.valueOf(reminderId));
 			if (r != null)
 				return r;
 			return null;
@@ -158,20 +383,98 @@ public class ReminderBotService {
 	}
 	
 	/**
-	 * This method retrieves all the Reminders for a particular account and by status
+	 * This method retrieves all the Reminders for a particular account and by status. The ACTIVE Reminders of an account are 
+	 * served from the ActiveReminderCache when possible.
 	 * 
 	 * @param emailId The emailid i.e. account under which you want to search for reminders
 	 * @param status The status of the Reminders that you want to search for
 	 * @return A status message that indicates the success of the call
 	 * @throws Exception
 	 */
-	public List<Reminder> getAllRemindersByEmailId(String emailId, String status) throws Exception {
+	public List<Reminder> getAllRemindersByEmailId(String emailId, ReminderStatus status) throws Exception {
 		List<Reminder> _results = new ArrayList<Reminder>();
-		Objectify obj = ObjectifyService.begin();
-		_results = obj.query(Reminder.class).filter("emailAddress",emailId).filter("status",status).list();
+		if (status != ReminderStatus.ACTIVE) {
+			_results = store.findByOwner(emailId, status);
+			return _results;
+		}
+		_results = activeCache.get(emailId);
+		if (_results == null) {
+			long token = activeCache.beginLoad(emailId);
+			_results = store.findByOwner(emailId, status);
+			activeCache.put(emailId, _results, token);
+		}
 		return _results;
 	}
 
+	/**
+	 * This method retrieves one page of the ACTIVE Reminders of an account, for the list command. Only one page is ever read from
+	 * the datastore, so the cost of the call does not depend on how many Reminders the user holds. The position after the page
+	 * is remembered so that getNextActiveRemindersPage() can continue from there.
+	 * 
+	 * A user whose ACTIVE Reminders all fit on the first page gets them from (and into) the ActiveReminderCache.
+	 * 
+	 * @param emailId The emailid i.e. account under which you want to search for reminders
+	 * @param page The page to return, starting at 1
+	 * @return The page of Reminders
+	 * @throws Exception
+	 */
+	public ReminderPage getActiveRemindersPage(String emailId, int page) throws Exception {
+		if (page < 1) page = 1;
+		ReminderPage _page = null;
+		if (page == 1) {
+			List<Reminder> _cached = activeCache.get(emailId);
+			if (_cached != null && _cached.size() <= pageSize) _page = new ReminderPage(_cached, null, 1);
+		}
+		if (_page == null) {
+			long token = activeCache.beginLoad(emailId);
+			//Pages after the first one are reached with an offset, which the datastore skips on its side
+			ReminderPage _result = store.findPageByOwner(emailId, ReminderStatus.ACTIVE, null, (page - 1) * pageSize, pageSize);
+			_page = new ReminderPage(_result.getReminders(), _result.getCursor(), page);
+			if (page == 1 && !_page.hasMore()) activeCache.put(emailId, _page.getReminders(), token);
+		}
+		rememberListPosition(emailId, _page);
+		return _page;
+	}
+	
+	/**
+	 * This method retrieves the page of ACTIVE Reminders that follows the last page returned to an account, for the list more
+	 * command. The page is read with the cursor stored for the account.
+	 * 
+	 * @param emailId The emailid i.e. account under which you want to search for reminders
+	 * @return The next page of Reminders, or null if there is no page to continue from
+	 * @throws Exception
+	 */
+	public ReminderPage getNextActiveRemindersPage(String emailId) throws Exception {
+		ReminderPage _previous;
+		synchronized (listPositions) {
+			_previous = listPositions.get(emailId);
+		}
+		if (_previous == null) return null;
+		ReminderPage _result = store.findPageByOwner(emailId, ReminderStatus.ACTIVE, _previous.getCursor(), 0, pageSize);
+		ReminderPage _page = new ReminderPage(_result.getReminders(), _result.getCursor(), _previous.getNumber() + 1);
+		rememberListPosition(emailId, _page);
+		return _page;
+	}
+	
+	/**
+	 * @return The number of Reminders shown per page by the list command
+	 */
+	public int getListPageSize() {
+		return pageSize;
+	}
+	
+	private void rememberListPosition(String emailId, ReminderPage page) {
+		synchronized (listPositions) {
+			if (page.hasMore()) {
+				//Only the cursor and the page number are needed to continue
+				listPositions.put(emailId, new ReminderPage(Collections.<Reminder>emptyList(), page.getCursor(), page.getNumber()));
+			}
+			else {
+				listPositions.remove(emailId);
+			}
+		}
+	}
+
 	/**
 	 * This method retrieves all the Reminders which have a specific Status value.
 	 * 
@@ -179,13 +482,49 @@ public class ReminderBotService {
 	 * @return A status message that indicates the success of the call
 	 * @throws Exception
 	 */
-	public List<Reminder> getAllReminders(String status) throws Exception {
+	public List<Reminder> getAllReminders(ReminderStatus status) throws Exception {
+		List<Reminder> _results = new ArrayList<Reminder>();
+		_results = store.findByStatus(status);
+		return _results;
+	}
+
+	/**
+	 * This method retrieves the ACTIVE Reminders whose trigger time is on or before the given date. It is a range query on
+	 * reminderDate (backed by the status + reminderDate composite index in WEB-INF/datastore-indexes.xml), so the cost of 
+	 * a call is proportional to the number of Reminders that are due and not to the total number of ACTIVE Reminders.
+	 * 
+	 * @param dueBy The latest trigger date/time to include
+	 * @return The due Reminders ordered by their trigger time, oldest first
+	 * @throws Exception
+	 */
+	public List<Reminder> getDueReminders(Date dueBy) throws Exception {
 		List<Reminder> _results = new ArrayList<Reminder>();
-		Objectify obj = ObjectifyService.begin();
-		_results = obj.query(Reminder.class).filter("status",status).list();
+		_results = store.findDue(dueBy);
 		return _results;
 	}
 
+	/**
+	 * This method claims a Reminder for sending by this dispatcher instance. The claim is made in a transaction: the Reminder is 
+	 * read again and the claim only succeeds if it is still ACTIVE and not held under a lease that has not expired yet. Every 
+	 * claim takes the lease under its own token (the nodeId of the instance and a sequence number), so a lease is never shared : 
+	 * two overlapping Cron Job runs, the scheduler and the Cron Job safety net on the same instance, or two instances, never send 
+	 * the same Reminder. If an instance dies after claiming, its lease runs out and the Reminder is picked up by a later run.
+	 * 
+	 * @param reminderId The ID of the Reminder Object in the datastore
+	 * @param leaseMillis How long the claim is valid
+	 * @return The claimed Reminder, or null if it could not be claimed
+	 */
+	public Reminder claimReminder(Long reminderId, long leaseMillis) {
+		return store.claim(reminderId, nodeId + ":" + claims.incrementAndGet(), leaseMillis);
+	}
+
+	/**
+	 * @return The token that identifies this instance in the leaseOwner of the Reminders it claims
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
 	/**
 	 * This method is used to retrieve a particular Reminder object in the datastore by ID and EmailId
 	 * @param reminderId The ID of the Reminder Object in the datastore
@@ -194,8 +533,7 @@ public class ReminderBotService {
 	 */
 	public Reminder findReminderByIDandEmailId(String reminderId, String emailId) {
 		try {
-			Objectify obj = ObjectifyService.begin();
-			Reminder r = obj.query(Reminder.class).filter("id",reminderId).filter("emailAddress",emailId).get();
+			Reminder r = store.findByIdAndOwner(Long.valueOf(reminderId),emailId);
 			if (r != null)
 				return r;
 			return null;
@@ -206,18 +544,21 @@ public class ReminderBotService {
 	
 	/**
 	 * This method is used to deelte a Reminder object in the datastore by providing the Reminder Object Key and the Email Id of the account that is the 
-	 * owner of the Reminder
+	 * owner of the Reminder. Only a Reminder that is still pending (ACTIVE or waiting for a RETRY) can be removed.
 	 * @param reminderId The ID of the Reminder Object in the datastore
 	 * @param emailId The emailid of the account that is the owner of the Reminder
 	 * @return A status message that indicates the success of the call
 	 * @throws Exception
 	 */
 	public String removeReminderByIDandEmailId(String reminderId,String emailId) throws Exception {
-			Objectify obj = ObjectifyService.begin();
 			try {
-				Reminder r = obj.query(Reminder.class).filter("id",Long.parseLong(reminderId)).filter("emailAddress",emailId).get();
-				if (r != null) {
-					obj.delete(r);
+				Long id = Long.valueOf(reminderId);
+				//A get by key, not the cached list : that can be stale, and a Reminder that has been sent in the meantime is no longer pending
+				Reminder r = store.findByIdAndOwner(id,emailId);
+				if (r != null && (r.getStatus() == ReminderStatus.ACTIVE || r.getStatus() == ReminderStatus.RETRY)) {
+					store.delete(r);
+					reminderChanged(emailId);
+					watermark.removed(r.getReminderDate());
 					return "success";
 				}
 				else {
@@ -235,79 +576,155 @@ public class ReminderBotService {
 	 * 
 	 * The logic is straightforward:
 	 * 
-	 * Step 1 is to determine which Reminders are ACTIVE. 
+	 * Step 1 is to determine which ACTIVE Reminders have their trigger time passed or within the threshold of 1 minute to go. This is
+	 * done by the datastore itself via getDueReminders(), so Reminders that are set for later never get read.
+	 * 
+	 * Step 2 is to hand these reminders over to the ReminderDispatcher, which groups Reminders with the same text into a single
+	 * multi-recipient XMPP message sent via the sendIM() method.
+	 * 
+	 * Each Reminder is claimed under a lease (see claimReminder()) right before it is sent, so that several instances can work
+	 * on the due Reminders at the same time without sending any of them twice.
 	 * 
-	 * Step 2 is to iterate through these reminders and determine if the trigger has passed or it is within the threshold of 1 minute to go. 
+	 * On dispatch of the message, the status of the Reminder Object in the datastore is set to SENT. These updates are written back
+	 * in batches. Reminders that could not be delivered are set to RETRY, and each run also sends the ones whose next attempt is
+	 * due (at most myreminderbot.retry.batch of them), see ReminderDispatcher and RetryPolicy.
 	 * 
-	 * Step 3 If Yes, then the sendIM() method is used to send out the Reminder message via XMPP protocol.
+	 * When the in-process ReminderScheduler is running, the Cron Job is only a safety net: Reminders due within the scheduler
+	 * lookahead are handed over to the scheduler and only those that are already late by more than the grace period are sent here.
 	 * 
-	 * On successful dispatch of the message, the status of the Reminder Object in the datastore is set to SENT
+	 * If there are more due Reminders than a single run should send (e.g. after an outage), the oldest ones are drained at a
+	 * fixed rate over the following runs, see CatchUpDrain.
+	 * 
+	 * Before any of this, the run checks the next due watermark (see DueWatermark) and returns straight away if nothing can be 
+	 * due yet. After a full run the watermark is recomputed.
 	 */
 	public void sendNotifications() {
-		//For every Request in ACTIVE
+		long t = System.nanoTime();
+		//For every Request in ACTIVE that is due
 		try {
 			long tCurrent = System.currentTimeMillis();
-			List<Reminder> _notifications = getAllReminders("ACTIVE");
-			Iterator<Reminder> it = _notifications.iterator();
-			while (it.hasNext()) {
-				Reminder R = (Reminder)it.next();
-				//Determine if its time is up. Also continue the loop if one fails
-				boolean bNotify = false;
-				long tReminder = R.getReminderDate().getTime();
-				//Let us send the notification if time passed or is nearing it
-				//threshold taken is 60 seconds (1 minute)
-				long tDiff = tReminder - tCurrent;
-				if (tDiff < 0) {
-					bNotify = true;
-				}
-				else if ((tDiff > 0) && (tDiff <=60)) {
-				    bNotify = true;	
-				}
-				
-				if (bNotify) {
-					String msg = R.getMsg();
-					//Send Message
-					_logger.info("Sending IM Notification : " + R.getId() + " to " + R.getUserid() + " Message : " + msg);
-					sendIM(R.getUserid(), msg);
-					_logger.info("Message Sent");
-					//Update Status to "SENT"
-					Objectify obj = ObjectifyService.begin();
-					R.setStatus("SENT");
-					obj.put(R);
-				}
+			ReminderScheduler scheduler = ReminderScheduler.getInstance();
+			long horizon = tCurrent + (scheduler.isRunning() ? scheduler.getLookahead() : NOTIFICATION_THRESHOLD);
+			if (watermark.isIdle(tCurrent, horizon)) {
+				idleTicks.inc();
+				return;
+			}
+			sweepTicks.inc();
+			try {
+				sweep(tCurrent, scheduler);
+			}
+			finally {
+				watermark.refresh(tCurrent);
 			}
 		}
 		catch (Exception ex) {
 			_logger.info("Error in sending IM To Recipient : " + ex.getMessage());
 		}
+		finally {
+			sweepTime.recordSince(t);
+		}
 	}
 	
 	/**
-	 * 
-	 * @param JabberId The JabberId of the user to send out the XMPP message to
+	 * Sends the Reminders that are due and the retries whose next attempt is due (the body of sendNotifications)
+	 */
+	private void sweep(long tCurrent, ReminderScheduler scheduler) throws Exception {
+		List<Reminder> _retries = store.findRetriesDue(new Date(tCurrent), retryBatch);
+		if (scheduler.isRunning()) {
+			//The scheduler should have sent the Reminders that are late by more than the grace period already
+			long grace = ReminderBotConfig.getLong(ReminderBotConfig.SCHEDULER_GRACE, 5 * 1000);
+			Date lateBy = new Date(tCurrent - grace);
+			List<Reminder> _late = catchUp.select(tCurrent, lateBy);
+			_late.addAll(_retries);
+			List<Reminder> _upcoming = store.findDue(lateBy, new Date(tCurrent + scheduler.getLookahead()), Integer.MAX_VALUE);
+			for (Reminder R : _upcoming) {
+				scheduler.schedule(R);
+			}
+			dispatcher.dispatch(_late);
+			return;
+		}
+		//Let us send the notification if time passed or is nearing it
+		//threshold taken is 60 seconds (1 minute)
+		Date dueBy = new Date(tCurrent + NOTIFICATION_THRESHOLD);
+		List<Reminder> _notifications = catchUp.select(tCurrent, dueBy);
+		_notifications.addAll(_retries);
+		int delivered = dispatcher.dispatch(_notifications);
+		_logger.info("Sent " + delivered + " of " + _notifications.size() + " due Reminders (" + _retries.size() + " retries)");
+	}
+	
+	/**
+	 * This method is invoked by the Compaction Cron Job (CompactionJobServlet.java) to archive or delete the SENT and DEAD Reminders that are
+	 * older than the retention period. See ReminderCompactor for the details.
+	 * @return The number of Reminders archived or deleted
+	 */
+	public int compactReminders() {
+		long t = System.nanoTime();
+		try {
+			return compactor.compact();
+		}
+		catch (Exception ex) {
+			_logger.info("Error in compacting the SENT Reminders : " + ex.getMessage());
+			return 0;
+		}
+		finally {
+			compactTime.recordSince(t);
+		}
+	}
+	
+	/**
+	 * This method is invoked by the Migration Cron Job (MigrationJobServlet.java) to rewrite the Reminders that are still saved in
+	 * the old entity layout. See ReminderMigrator for the details.
+	 * @return The number of Reminders rewritten
+	 */
+	public int migrateReminders() {
+		long t = System.nanoTime();
+		try {
+			return migrator.migrate();
+		}
+		catch (Exception ex) {
+			_logger.info("Error in migrating the Reminders : " + ex.getMessage());
+			return 0;
+		}
+		finally {
+			migrateTime.recordSince(t);
+		}
+	}
+	
+	/**
+	 * This method is invoked by the ReminderScheduler when the trigger time of a Reminder is reached. The Reminder is read again
+	 * from the datastore and is only sent if it is still ACTIVE i.e. it has not been removed or sent in the meantime.
+	 * @param reminderId The ID of the Reminder Object in the datastore
+	 * @throws Exception
+	 */
+	public void dispatchReminder(Long reminderId) throws Exception {
+		Reminder R = store.find(reminderId);
+		//A repeating Reminder may have moved on to its next occurrence since it was put in the wheel
+		if (R != null && R.getStatus() == ReminderStatus.ACTIVE && R.getReminderDate().getTime() <= System.currentTimeMillis() + ReminderScheduler.TICK) {
+			List<Reminder> _notifications = new ArrayList<Reminder>();
+			_notifications.add(R);
+			dispatcher.dispatch(_notifications);
+		}
+	}
+	
+	/**
+	 * Sends the same XMPP message to one or more users
+	 * @param recipients The JabberIds of the users to send out the XMPP message to
 	 * @param msg The message i.e. the text that we need to send out in the XMPP message. Usually this message is the Reminder text that the user has 
 	 * specified at the time of adding a Reminder.
+	 * @return The delivery status for every recipient
 	 * @throws Exception
 	 */
-	private void sendIM(String JabberId, String msg) throws Exception {
-		XMPPService xmpp = null;
-		JID fromJid = new JID(JabberId);
-		xmpp = XMPPServiceFactory.getXMPPService();
+	Map<String, SendResponse.Status> sendIM(JID[] recipients, String msg) throws Exception {
 		Message replyMessage = new MessageBuilder()
-        .withRecipientJids(fromJid)
+        .withRecipientJids(recipients)
         .withBody(msg)
         .build();
-        boolean messageSent = false;
-        //The condition is commented out so that it can work over non Google Talk XMPP providers also.
-        //if (xmpp.getPresence(fromJid).isAvailable()) {  
-        SendResponse status = xmpp.sendMessage(replyMessage);
-        messageSent = (status.getStatusMap().get(fromJid) == SendResponse.Status.SUCCESS);
-        //}
-        if (messageSent) {
-        	_logger.info("Message has been sent successfully");
+        try {
+            return getMessageTransport().send(replyMessage).get();
         }
-        else {
-        	_logger.info("Message could not be sent");
+        catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) throw (Exception)ex.getCause();
+            throw ex;
         }
 	}
 }
@@ -0,0 +1,175 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import com.thirdchimpanzee.myreminderbot.MessageParseException;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderCommand;
+
+/**
+ * Hand written parser for the Reminder syntax
+ *
+ * The syntax is [When] [ReminderText] where [When] is one or more positive numbers, each followed by d (days), h (hours) or
+ * m (minutes), e.g. 10m, 2h, 1h30m or 2d4h. The units are case insensitive, each unit may only be given once and they have
+ * to be in the order d, h, m.
+ *
+ * A Reminder repeats when the text starts with every [Interval], where [Interval] uses the same format as [When]:
+ *
+ * every [Interval] [ReminderText]        : first goes off after [Interval], then every [Interval]
+ * [When] every [Interval] [ReminderText] : first goes off after [When], then every [Interval]
+ *
+ * If what follows every after a [When] is not an [Interval], the every is part of the reminder text, as it always was.
+ *
+ * The message is scanned once, character by character. Apart from the ReminderCommand itself, the only object created is
+ * the reminder text. The total is checked for overflow as it is built up, so huge values are rejected instead of silently
+ * wrapping around.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+final class ReminderCommandParser {
+
+	static final String INVALID_FORMAT = "Invalid Reminder format. Reminder format is as follows : A positve number followed by d or h or m (where d = days, h = hours and m = minutes) and then followed by space and a reminder message. For example 10d Dentist Appointment or 1h30m Call Dentist. Add every and an interval to repeat it, for example every 1d Standup";
+	static final String INVALID_VALUE = "Invalid Value";
+
+	/**
+	 * The largest duration that can be given, in minutes
+	 */
+	static final long MAX_MINUTES = Integer.MAX_VALUE;
+	/**
+	 * The shortest interval of a repeating Reminder, in minutes
+	 */
+	static final int MIN_REPEAT_MINUTES = 5;
+	static final String INVALID_INTERVAL = "A Reminder can repeat at most every " + MIN_REPEAT_MINUTES + "m";
+
+	//Minutes per unit, in the order in which the units have to appear
+	private static final long[] UNIT_MINUTES = { 24 * 60, 60, 1 };
+	private static final String EVERY = "every";
+	//Results of scan() that are errors
+	private static final long FORMAT_ERROR = -1;
+	private static final long VALUE_ERROR = -2;
+
+	private ReminderCommandParser() {
+	}
+
+	/**
+	 * @param message The string to parse
+	 * @return The parsed ReminderCommand, or null if the message is null or blank
+	 * @throws MessageParseException If the message does not follow the Reminder syntax
+	 */
+	static ReminderCommand parse(String message) throws MessageParseException {
+		if (message == null) return null;
+		int length = message.length();
+		int i = 0;
+		while (i < length && message.charAt(i) <= ' ') i++;
+		if (i == length) return null;
+
+		long minutes;
+		long repeatMinutes = -1;
+		int afterEvery = every(message, i);
+		if (afterEvery > 0) {
+			long scan = check(scan(message, afterEvery));
+			repeatMinutes = scan >>> 32;
+			minutes = repeatMinutes;
+			i = (int)scan;
+		}
+		else {
+			long scan = check(scan(message, i));
+			minutes = scan >>> 32;
+			i = (int)scan;
+			while (i < length && message.charAt(i) == ' ') i++;
+			afterEvery = every(message, i);
+			if (afterEvery > 0) {
+				scan = scan(message, afterEvery);
+				if (scan >= 0) {
+					repeatMinutes = scan >>> 32;
+					i = (int)scan;
+				}
+			}
+		}
+		if (repeatMinutes < 0) {
+			repeatMinutes = 0;
+		}
+		else if (repeatMinutes < MIN_REPEAT_MINUTES) {
+			throw new MessageParseException(INVALID_INTERVAL);
+		}
+		//There has to be a reminder text after the [When] part
+		while (i < length && message.charAt(i) == ' ') i++;
+		if (i == length) throw new MessageParseException(INVALID_FORMAT);
+
+		ReminderCommand reminder = new ReminderCommand();
+		reminder.setMinutes((int)minutes);
+		reminder.setRepeatMinutes((int)repeatMinutes);
+		reminder.setMessage(message.substring(i));
+		return reminder;
+	}
+
+	/**
+	 * Scans a [When] or [Interval]
+	 * @param message The message
+	 * @param i Where the [When] starts
+	 * @return The minutes in the upper 32 bits and the index right after the [When] in the lower 32 bits, or FORMAT_ERROR
+	 * or VALUE_ERROR
+	 */
+	private static long scan(String message, int i) {
+		int length = message.length();
+		long minutes = 0;
+		int lastUnit = -1;
+		while (i < length && message.charAt(i) != ' ') {
+			int start = i;
+			long value = 0;
+			char c = message.charAt(i);
+			while (c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				if (value > MAX_MINUTES) return VALUE_ERROR;
+				if (++i == length) return FORMAT_ERROR;
+				c = message.charAt(i);
+			}
+			int unit = unitOf(c);
+			if (unit < 0) return FORMAT_ERROR;
+			//A unit without a number in front of it
+			if (i == start) return VALUE_ERROR;
+			if (unit <= lastUnit) return FORMAT_ERROR;
+			lastUnit = unit;
+			i++;
+			minutes += value * UNIT_MINUTES[unit];
+			if (minutes > MAX_MINUTES) return VALUE_ERROR;
+		}
+		if (lastUnit < 0) return FORMAT_ERROR;
+		return (minutes << 32) | i;
+	}
+
+	private static long check(long scan) throws MessageParseException {
+		if (scan == VALUE_ERROR) throw new MessageParseException(INVALID_VALUE);
+		if (scan < 0) throw new MessageParseException(INVALID_FORMAT);
+		return scan;
+	}
+
+	/**
+	 * @return The index of what follows "every " at position i, or -1 if there is no "every " there
+	 */
+	private static int every(String message, int i) {
+		int end = i + EVERY.length();
+		if (end >= message.length() || message.charAt(end) != ' ' || !message.regionMatches(true, i, EVERY, 0, EVERY.length())) return -1;
+		while (end < message.length() && message.charAt(end) == ' ') end++;
+		return end;
+	}
+
+	private static int unitOf(char c) {
+		switch (c) {
+		case 'd':
+		case 'D':
+			return 0;
+		case 'h':
+		case 'H':
+			return 1;
+		case 'm':
+		case 'M':
+			return 2;
+		default:
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import java.util.Date;
+import java.util.logging.Logger;
+
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+import com.thirdchimpanzee.myreminderbot.store.ReminderPage;
+import com.thirdchimpanzee.myreminderbot.store.ReminderStore;
+
+/**
+ * Compaction job for the Reminders that are done with
+ *
+ * A Reminder stays in the Reminder kind with status SENT once it has been sent, or DEAD once it has used up its delivery
+ * attempts, so the kind and its indexes keep growing. This job walks the SENT and then the DEAD Reminders that were triggered
+ * more than myreminderbot.compaction.retention milliseconds ago in batches of myreminderbot.compaction.batch, and either moves
+ * them into the compact ArchivedReminder kind (mode archive) or deletes them (mode delete). The archive keeps the status, so
+ * the Reminders that were never delivered can still be told apart.
+ *
+ * A run stops after myreminderbot.compaction.budget milliseconds so that it stays well within the request deadline. The
+ * cutoff date and the cursor of each pass are saved as a checkpoint after every batch and the next run resumes from there.
+ * A datastore cursor is only valid for the query it came from, which is why the cutoff is kept until the pass is complete
+ * and why SENT and DEAD have a checkpoint each.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+class ReminderCompactor {
+	private static final Logger _logger = Logger.getLogger(ReminderCompactor.class.getName());
+
+	/**
+	 * The names under which the progress of the SENT and the DEAD passes is saved
+	 */
+	static final String CHECKPOINT = "compaction";
+	static final String DEAD_CHECKPOINT = "compaction.dead";
+
+	private final ReminderStore store;
+	private final boolean archive;
+	private final long retention;
+	private final int batch;
+	private final long budget;
+
+	ReminderCompactor(ReminderStore store) {
+		this.store = store;
+		this.archive = !ReminderBotConfig.getString(ReminderBotConfig.COMPACTION_MODE, "archive").equalsIgnoreCase("delete");
+		this.retention = ReminderBotConfig.getLong(ReminderBotConfig.COMPACTION_RETENTION, 7L * 24 * 60 * 60 * 1000);
+		this.batch = Math.max(1, ReminderBotConfig.getInt(ReminderBotConfig.COMPACTION_BATCH, 100));
+		this.budget = ReminderBotConfig.getLong(ReminderBotConfig.COMPACTION_BUDGET, 20 * 1000);
+	}
+
+	/**
+	 * Compacts SENT and then DEAD Reminders until there are none left that are older than the retention, or until the time
+	 * budget is used up
+	 * @return The number of Reminders archived or deleted
+	 */
+	int compact() {
+		long tStart = System.currentTimeMillis();
+		int compacted = compact(ReminderStatus.SENT, CHECKPOINT, tStart);
+		if (System.currentTimeMillis() - tStart <= budget) {
+			compacted += compact(ReminderStatus.DEAD, DEAD_CHECKPOINT, tStart);
+		}
+		return compacted;
+	}
+
+	private int compact(ReminderStatus status, String name, long tStart) {
+		//The checkpoint is [cutoff in milliseconds];[cursor]
+		long cutoff = tStart - retention;
+		String cursor = null;
+		String checkpoint = store.loadCheckpoint(name);
+		if (checkpoint != null) {
+			int sep = checkpoint.indexOf(';');
+			try {
+				cutoff = Long.parseLong(checkpoint.substring(0, sep));
+				if (sep + 1 < checkpoint.length()) cursor = checkpoint.substring(sep + 1);
+			}
+			catch (RuntimeException ex) {
+				_logger.warning("Ignoring invalid compaction checkpoint " + checkpoint);
+				cutoff = tStart - retention;
+			}
+		}
+		int compacted = 0;
+		Date before = new Date(cutoff);
+		while (true) {
+			ReminderPage page = store.findFinishedBefore(status, before, cursor, batch);
+			if (!page.getReminders().isEmpty()) {
+				if (archive) {
+					store.archiveAll(page.getReminders());
+				}
+				else {
+					store.deleteAll(page.getReminders());
+				}
+				compacted += page.getReminders().size();
+			}
+			if (!page.hasMore()) {
+				//Pass complete, the next run starts a new one with a fresh cutoff
+				store.saveCheckpoint(name, null);
+				break;
+			}
+			cursor = page.getCursor();
+			store.saveCheckpoint(name, cutoff + ";" + cursor);
+			if (System.currentTimeMillis() - tStart > budget) {
+				_logger.info("Compaction stopped at its time budget, the next run resumes from the checkpoint");
+				break;
+			}
+		}
+		_logger.info((archive ? "Archived " : "Deleted ") + compacted + " " + status + " Reminders triggered before " + before);
+		return compacted;
+	}
+}
@@ -0,0 +1,476 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.xmpp.JID;
+import com.google.appengine.api.xmpp.SendResponse;
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+import com.thirdchimpanzee.myreminderbot.metrics.Counter;
+import com.thirdchimpanzee.myreminderbot.metrics.Histogram;
+import com.thirdchimpanzee.myreminderbot.metrics.Metrics;
+
+/**
+ * Batching dispatch stage for the Reminders that are due
+ *
+ * Sending one XMPP message and doing one datastore put per Reminder does not scale when many Reminders are due at the same
+ * time (e.g. at the top of the hour). This class cuts down the number of round-trips:
+ *
+ * 1. Reminders that carry the same text are grouped together and sent as one multi-recipient XMPP message (up to
+ *    MAX_RECIPIENTS recipients per message). The per-JID status map of the SendResponse tells us which recipients got it.
+ * 2. The status updates are collected and written back by the request thread, WRITE_BATCH Reminders at a time. Each one is
+ *    written in a transaction of its own (ReminderStore.complete()) that checks it still exists and is still leased by its
+ *    claim, so that a Reminder removed by its user while it was being sent does not come back.
+ *
+ * The XMPP messages can be sent in parallel by a pool of worker threads (myreminderbot.dispatch.workers in
+ * WEB-INF\appengine-web.xml). The number of messages in flight at any time is bounded by myreminderbot.dispatch.maxinflight.
+ * With the default of 1 worker, everything is sent on the calling thread, which is what the App Engine front ends allow.
+ *
+ * Before a Reminder is sent it is claimed under a lease (ReminderBotService.claimReminder()). Reminders that are held by
+ * another dispatcher instance are skipped. The due Reminders are claimed in random order so that instances that run at the
+ * same time mostly work on different Reminders instead of fighting over the same ones.
+ *
+ * A failure while sending one message only affects the Reminders in that message, the rest of the run carries on. The
+ * Reminders that could not be delivered (the send failed or the status for the recipient is not SUCCESS) go to the retry
+ * queue: their status is set to RETRY with a nextAttempt date given by the RetryPolicy (exponential backoff with jitter),
+ * and the Cron Job sends them again once that date has passed. After too many attempts they are set to DEAD.
+ *
+ * A repeating Reminder is not set to SENT. Its reminderDate is moved on to the next occurrence after now and it stays ACTIVE,
+ * so a series is always a single entity. When one occurrence cannot be delivered after all the attempts, the series carries
+ * on with the next one instead of being set to DEAD. A claimed Reminder whose reminderDate differs from the one it was
+ * picked with has already been sent by another dispatcher and moved on, so it is skipped.
+ *
+ * In digest mode (myreminderbot.digest.enabled), a user who has several Reminders due in the same run gets them as one
+ * combined message instead of one message each, so the number of XMPP calls grows with the number of users rather than
+ * with the number of Reminders. A digest longer than myreminderbot.digest.maxlength characters is split over several
+ * messages. Users with a single due Reminder are still grouped by text as above.
+ *
+ * For every Reminder delivered, the delivery lag (how late it was sent compared to its reminderDate) is recorded in the
+ * myreminderbot_delivery_lag_millis metric. Reminders sent ahead of time by the Cron Job threshold count as a lag of 0.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+class ReminderDispatcher {
+	private static final Logger _logger = Logger.getLogger(ReminderDispatcher.class.getName());
+
+	/**
+	 * Maximum number of recipients in a single XMPP message
+	 */
+	static final int MAX_RECIPIENTS = 100;
+	/**
+	 * Number of sent Reminders collected before they are written back
+	 */
+	static final int WRITE_BATCH = 100;
+	/**
+	 * First line of a digest message
+	 */
+	static final String DIGEST_HEADER = "Reminders";
+	/**
+	 * Room taken by the first line of a digest, with the widest part number : "Reminders (999/999) :". Digests of a thousand
+	 * parts or more reserve two characters more per extra digit.
+	 */
+	static final int DIGEST_HEADER_LENGTH = DIGEST_HEADER.length() + " (999/999) :".length();
+
+	private static final Histogram deliveryLag = Metrics.histogram("myreminderbot_delivery_lag_millis", "How late the Reminders were delivered compared to their reminderDate in milliseconds");
+	private static final Counter deliveredCount = Metrics.counter("myreminderbot_reminders_total", "outcome=\"delivered\"", "Reminders handled by the dispatcher");
+	private static final Counter undeliveredCount = Metrics.counter("myreminderbot_reminders_total", "outcome=\"undelivered\"", "Reminders handled by the dispatcher");
+	private static final Counter failedCount = Metrics.counter("myreminderbot_reminders_total", "outcome=\"send_failed\"", "Reminders handled by the dispatcher");
+	private static final Counter retryCount = Metrics.counter("myreminderbot_reminders_total", "outcome=\"retry_scheduled\"", "Reminders handled by the dispatcher");
+	private static final Counter deadCount = Metrics.counter("myreminderbot_reminders_total", "outcome=\"dead_lettered\"", "Reminders handled by the dispatcher");
+	private static final Counter skippedCount = Metrics.counter("myreminderbot_reminders_total", "outcome=\"claim_lost\"", "Reminders handled by the dispatcher");
+	private static final Counter staleCount = Metrics.counter("myreminderbot_reminders_total", "outcome=\"removed_while_sending\"", "Reminders handled by the dispatcher");
+	private static final Histogram digestSize = Metrics.histogram("myreminderbot_digest_size", "Number of Reminders per digest message");
+
+	private static final Comparator<Reminder> BY_DATE = new Comparator<Reminder>() {
+		public int compare(Reminder R1, Reminder R2) {
+			return R1.getReminderDate().compareTo(R2.getReminderDate());
+		}
+	};
+
+	private final ReminderBotService service;
+	private final int workers;
+	private final long lease;
+	private final Semaphore inFlight;
+	private final boolean digest;
+	private final int digestMaxLength;
+	private final RetryPolicy retryPolicy = new RetryPolicy();
+	private ExecutorService pool = null;
+
+	ReminderDispatcher(ReminderBotService service) {
+		this.service = service;
+		this.workers = Math.max(1, ReminderBotConfig.getInt(ReminderBotConfig.DISPATCH_WORKERS, 1));
+		this.lease = ReminderBotConfig.getLong(ReminderBotConfig.DISPATCH_LEASE, 2 * 60 * 1000);
+		this.inFlight = new Semaphore(Math.max(1, ReminderBotConfig.getInt(ReminderBotConfig.DISPATCH_MAX_IN_FLIGHT, 2 * workers)));
+		this.digest = ReminderBotConfig.getBoolean(ReminderBotConfig.DIGEST_ENABLED, false);
+		this.digestMaxLength = Math.max(1, ReminderBotConfig.getInt(ReminderBotConfig.DIGEST_MAX_LENGTH, 2000));
+	}
+
+	/**
+	 * Sends out the given Reminders and sets their status to SENT, or to RETRY / DEAD if they could not be delivered
+	 * @param reminders The Reminders to send
+	 * @return The number of Reminders that were delivered successfully
+	 * @throws Exception
+	 */
+	int dispatch(List<Reminder> reminders) throws Exception {
+		//Spread the claims of concurrent dispatchers over the due set
+		List<Reminder> candidates = new ArrayList<Reminder>(reminders);
+		Collections.shuffle(candidates);
+
+		final AtomicInteger delivered = new AtomicInteger();
+		final List<Reminder> done = new ArrayList<Reminder>();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		if (digest) {
+			//Users with more than one Reminder due get a digest, the others are grouped by text with everybody else
+			List<Reminder> single = new ArrayList<Reminder>();
+			for (final List<Reminder> all : group(candidates, true).values()) {
+				if (all.size() == 1) {
+					single.add(all.get(0));
+					continue;
+				}
+				submit(new Runnable() {
+					public void run() {
+						sendDigest(all, delivered, done);
+					}
+				}, futures, done);
+			}
+			candidates = single;
+		}
+		for (Map.Entry<String, List<Reminder>> group : group(candidates, false).entrySet()) {
+			final String msg = group.getKey();
+			List<Reminder> all = group.getValue();
+			for (int i = 0; i < all.size(); i += MAX_RECIPIENTS) {
+				final List<Reminder> chunk = all.subList(i, Math.min(all.size(), i + MAX_RECIPIENTS));
+				submit(new Runnable() {
+					public void run() {
+						sendChunk(msg, chunk, delivered, done);
+					}
+				}, futures, done);
+			}
+		}
+		for (Future<?> f : futures) {
+			f.get();
+		}
+		flush(done, true);
+		return delivered.get();
+	}
+
+	/**
+	 * Groups Reminders by their text, or by their recipient
+	 */
+	private static Map<String, List<Reminder>> group(List<Reminder> reminders, boolean byUser) {
+		Map<String, List<Reminder>> groups = new LinkedHashMap<String, List<Reminder>>();
+		for (Reminder R : reminders) {
+			String key = byUser ? R.getUserid() : R.getMsg();
+			List<Reminder> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<Reminder>();
+				groups.put(key, group);
+			}
+			group.add(R);
+		}
+		return groups;
+	}
+
+	/**
+	 * Runs a send task on the calling thread, or on the pool once a slot is free so that only a bounded number of messages
+	 * are in flight. Then writes back what has been sent so far.
+	 */
+	private void submit(final Runnable task, List<Future<?>> futures, List<Reminder> done) throws InterruptedException {
+		ExecutorService _pool = getPool();
+		if (_pool == null) {
+			task.run();
+		}
+		else {
+			inFlight.acquire();
+			try {
+				futures.add(_pool.submit(new Runnable() {
+					public void run() {
+						try {
+							task.run();
+						}
+						finally {
+							inFlight.release();
+						}
+					}
+				}));
+			}
+			catch (RuntimeException ex) {
+				inFlight.release();
+				throw ex;
+			}
+		}
+		flush(done, false);
+	}
+
+	/**
+	 * Claims the Reminders of a chunk and sends one multi-recipient message to the ones that could be claimed. Any failure is 
+	 * contained to the Reminders of this message.
+	 */
+	private void sendChunk(String msg, List<Reminder> candidates, AtomicInteger delivered, List<Reminder> done) {
+		List<Reminder> chunk = claim(candidates);
+		if (chunk.isEmpty()) return;
+		Map<String, SendResponse.Status> statusMap;
+		try {
+			statusMap = send(msg, chunk);
+		}
+		catch (Exception ex) {
+			_logger.info("Error in sending IM to " + chunk.size() + " recipient(s) : " + ex.getMessage());
+			failedCount.add(chunk.size());
+			statusMap = Collections.emptyMap();
+		}
+		long now = System.currentTimeMillis();
+		for (Reminder R : chunk) {
+			complete(R, statusMap.get(R.getUserid()), now, delivered);
+		}
+		synchronized (done) {
+			done.addAll(chunk);
+		}
+	}
+
+	/**
+	 * Claims the due Reminders of one user and sends them as a digest, split over as many messages as the maximum length
+	 * requires. A failure only affects the Reminders of the message that failed.
+	 */
+	private void sendDigest(List<Reminder> candidates, AtomicInteger delivered, List<Reminder> done) {
+		List<Reminder> claimed = claim(candidates);
+		if (claimed.isEmpty()) return;
+		//The due Reminders were shuffled, list them in the order of their reminderDate
+		Collections.sort(claimed, BY_DATE);
+		List<List<Reminder>> parts = split(claimed, digestMaxLength);
+		for (int i = 0; i < parts.size(); i++) {
+			List<Reminder> part = parts.get(i);
+			String msg = claimed.size() == 1 ? part.get(0).getMsg() : digest(part, i + 1, parts.size());
+			Map<String, SendResponse.Status> statusMap;
+			try {
+				statusMap = send(msg, part);
+				digestSize.record(part.size());
+			}
+			catch (Exception ex) {
+				_logger.info("Error in sending a digest of " + part.size() + " Reminders to " + part.get(0).getUserid() + " : " + ex.getMessage());
+				failedCount.add(part.size());
+				statusMap = Collections.emptyMap();
+			}
+			long now = System.currentTimeMillis();
+			for (Reminder R : part) {
+				complete(R, statusMap.get(R.getUserid()), now, delivered);
+			}
+		}
+		//The status changes of all the parts are written back together with the next batch put
+		synchronized (done) {
+			done.addAll(claimed);
+		}
+	}
+
+	/**
+	 * Splits the Reminders of a digest into parts whose text fits into the maximum length. A Reminder that is longer than
+	 * that on its own gets a part of its own.
+	 */
+	static List<List<Reminder>> split(List<Reminder> reminders, int maxLength) {
+		int header = DIGEST_HEADER_LENGTH;
+		for (int limit = 1000; ; limit *= 10, header += 2) {
+			List<List<Reminder>> parts = split(reminders, maxLength, header);
+			//The part numbers fit into the room reserved for them
+			if (parts.size() < limit) return parts;
+		}
+	}
+
+	private static List<List<Reminder>> split(List<Reminder> reminders, int maxLength, int header) {
+		List<List<Reminder>> parts = new ArrayList<List<Reminder>>();
+		List<Reminder> part = new ArrayList<Reminder>();
+		int length = header;
+		for (Reminder R : reminders) {
+			int line = R.getMsg().length() + 4;
+			if (!part.isEmpty() && length + line > maxLength) {
+				parts.add(part);
+				part = new ArrayList<Reminder>();
+				length = header;
+			}
+			part.add(R);
+			length += line;
+		}
+		parts.add(part);
+		return parts;
+	}
+
+	/**
+	 * @return The text of one digest message
+	 */
+	static String digest(List<Reminder> part, int number, int count) {
+		StringBuilder SB = new StringBuilder(DIGEST_HEADER);
+		if (count > 1) SB.append(" (").append(number).append('/').append(count).append(')');
+		SB.append(" :");
+		for (Reminder R : part) {
+			SB.append("\r\n- ").append(R.getMsg());
+		}
+		return SB.toString();
+	}
+
+	/**
+	 * Claims the given Reminders under a lease
+	 * @return The Reminders that could be claimed
+	 */
+	private List<Reminder> claim(List<Reminder> candidates) {
+		List<Reminder> claimed = new ArrayList<Reminder>();
+		for (Reminder R : candidates) {
+			Reminder C = service.claimReminder(R.getId(), lease);
+			if (C != null && !C.getReminderDate().equals(R.getReminderDate())) {
+				//The occurrence of a repeating Reminder was sent by somebody else in the meantime. The lease runs out long before the next one.
+				C = null;
+			}
+			if (C != null) {
+				claimed.add(C);
+			}
+			else {
+				skippedCount.inc();
+			}
+		}
+		return claimed;
+	}
+
+	/**
+	 * Sets the status of a Reminder that has been sent according to the delivery status of its recipient. The lease is given
+	 * up when the Reminder is written back.
+	 */
+	private void complete(Reminder R, SendResponse.Status status, long now, AtomicInteger delivered) {
+		if (status == SendResponse.Status.SUCCESS) {
+			delivered.incrementAndGet();
+			deliveredCount.inc();
+			deliveryLag.record(now - R.getReminderDate().getTime());
+			if (R.isRepeating()) {
+				nextOccurrence(R, now);
+			}
+			else {
+				//Update Status to "SENT"
+				R.setStatus(ReminderStatus.SENT);
+				R.setNextAttempt(null);
+			}
+		}
+		else {
+			if (status != null) {
+				undeliveredCount.inc();
+				_logger.info("Reminder " + R.getId() + " could not be delivered to " + R.getUserid() + " : " + status);
+			}
+			retryLater(R, now);
+		}
+	}
+
+	/**
+	 * Puts a Reminder that could not be delivered into the retry queue, or sets it to DEAD (a repeating one to its next occurrence) once it has used up its attempts
+	 */
+	private void retryLater(Reminder R, long now) {
+		int attempts = R.getAttempts() + 1;
+		R.setAttempts(attempts);
+		if (retryPolicy.isExhausted(attempts)) {
+			_logger.warning("Reminder " + R.getId() + " for " + R.getUserid() + " could not be delivered after " + attempts + " attempts, giving up");
+			if (R.isRepeating()) {
+				nextOccurrence(R, now);
+			}
+			else {
+				R.setStatus(ReminderStatus.DEAD);
+				R.setNextAttempt(null);
+			}
+			deadCount.inc();
+		}
+		else {
+			R.setStatus(ReminderStatus.RETRY);
+			R.setNextAttempt(new Date(now + retryPolicy.delay(attempts)));
+			retryCount.inc();
+		}
+	}
+
+	/**
+	 * Moves a repeating Reminder on to its first occurrence after now. Occurrences that were missed (e.g. during an outage) are
+	 * skipped, not sent one after the other.
+	 */
+	static void nextOccurrence(Reminder R, long now) {
+		long period = R.getRepeatMinutes() * 60L * 1000;
+		//Always at least one period on, the occurrence may have been sent ahead of time
+		long next = R.getReminderDate().getTime() + period;
+		if (next <= now) next += ((now - next) / period + 1) * period;
+		R.setReminderDate(new Date(next));
+		R.setStatus(ReminderStatus.ACTIVE);
+		R.setAttempts(0);
+		R.setNextAttempt(null);
+	}
+
+	/**
+	 * Sends one multi-recipient message
+	 * @return The delivery status keyed by Jabber Id (JID does not implement equals, so the status map cannot be looked up with new JIDs)
+	 */
+	private Map<String, SendResponse.Status> send(String msg, List<Reminder> chunk) throws Exception {
+		Map<String, JID> recipients = new LinkedHashMap<String, JID>();
+		for (Reminder R : chunk) {
+			if (!recipients.containsKey(R.getUserid())) recipients.put(R.getUserid(), new JID(R.getUserid()));
+		}
+		_logger.info("Sending IM Notification to " + recipients.size() + " recipient(s) Message : " + msg);
+		return service.sendIM(recipients.values().toArray(new JID[recipients.size()]), msg);
+	}
+
+	/**
+	 * Writes back the status of the Reminders that have been sent. Only the calling (request) thread writes to the datastore.
+	 * A Reminder that has been removed or taken over by somebody else in the meantime is left as it is.
+	 * @param done The Reminders that have been sent so far
+	 * @param all true to write everything, false to write only when a full batch is available
+	 */
+	private void flush(List<Reminder> done, boolean all) {
+		while (true) {
+			List<Reminder> batch;
+			synchronized (done) {
+				if (done.isEmpty() || (!all && done.size() < WRITE_BATCH)) return;
+				int n = Math.min(done.size(), WRITE_BATCH);
+				batch = new ArrayList<Reminder>(done.subList(0, n));
+				done.subList(0, n).clear();
+			}
+			Date nextDue = null;
+			for (Reminder R : batch) {
+				if (!service.getStore().complete(R)) {
+					staleCount.inc();
+					continue;
+				}
+				service.reminderChanged(R.getEmailAddress());
+				Date due = null;
+				if (R.getStatus() == ReminderStatus.RETRY) due = R.getNextAttempt();
+				if (R.getStatus() == ReminderStatus.ACTIVE) due = R.getReminderDate();
+				if (due != null && (nextDue == null || due.before(nextDue))) nextDue = due;
+			}
+			//The retries and the next occurrences of repeating Reminders have to show up in the next due watermark, or the Cron Job could skip them
+			if (nextDue != null) service.reminderDue(nextDue);
+		}
+	}
+
+	private synchronized ExecutorService getPool() {
+		if (workers <= 1) return null;
+		if (pool == null) {
+			final AtomicInteger count = new AtomicInteger();
+			pool = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ReminderDispatcher-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import java.util.logging.Logger;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.store.ReminderPage;
+import com.thirdchimpanzee.myreminderbot.store.ReminderStore;
+
+/**
+ * Migration job that rewrites the Reminders saved in the old entity layout
+ *
+ * Reminders used to be saved with a userid property next to the emailAddress and with every property indexed. Such entities
+ * load fine into the current Reminder class, but they keep the extra property and index rows until they are saved again.
+ * This job walks the whole Reminder kind in key order, in batches of myreminderbot.compaction.batch, and saves every
+ * Reminder that is still in the old layout again. Each one is read and saved in its own transaction, so a Reminder that is
+ * being sent at the same time is not set back.
+ *
+ * Like the compaction job, a run stops after myreminderbot.compaction.budget milliseconds and saves the cursor as a
+ * checkpoint after every batch, so the migration runs alongside the live traffic and resumes where it stopped. Once a pass
+ * is complete the checkpoint is set to "done" and later runs return straight away.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+class ReminderMigrator {
+	private static final Logger _logger = Logger.getLogger(ReminderMigrator.class.getName());
+
+	/**
+	 * The name under which the progress of the job is saved
+	 */
+	static final String CHECKPOINT = "migration";
+	static final String DONE = "done";
+
+	private final ReminderStore store;
+	private final int batch;
+	private final long budget;
+
+	ReminderMigrator(ReminderStore store) {
+		this.store = store;
+		this.batch = Math.max(1, ReminderBotConfig.getInt(ReminderBotConfig.COMPACTION_BATCH, 100));
+		this.budget = ReminderBotConfig.getLong(ReminderBotConfig.COMPACTION_BUDGET, 20 * 1000);
+	}
+
+	/**
+	 * Rewrites Reminders in the old layout until the pass is complete, or until the time budget is used up
+	 * @return The number of Reminders rewritten
+	 */
+	int migrate() {
+		long tStart = System.currentTimeMillis();
+		String cursor = store.loadCheckpoint(CHECKPOINT);
+		if (DONE.equals(cursor)) return 0;
+		int scanned = 0;
+		int migrated = 0;
+		while (true) {
+			ReminderPage page = store.findAll(cursor, batch);
+			for (Reminder r : page.getReminders()) {
+				if (r.isLegacyLayout() && store.resave(r.getId())) migrated++;
+			}
+			scanned += page.getReminders().size();
+			if (!page.hasMore()) {
+				store.saveCheckpoint(CHECKPOINT, DONE);
+				_logger.info("Migration of the Reminder kind is complete");
+				break;
+			}
+			cursor = page.getCursor();
+			store.saveCheckpoint(CHECKPOINT, cursor);
+			if (System.currentTimeMillis() - tStart > budget) {
+				_logger.info("Migration stopped at its time budget, the next run resumes from the checkpoint");
+				break;
+			}
+		}
+		_logger.info("Rewrote " + migrated + " of " + scanned + " Reminders in the current layout");
+		return migrated;
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import java.util.Random;
+
+/**
+ * When to try sending a Reminder again after it could not be delivered
+ *
+ * The delay doubles with every failed attempt, starting at myreminderbot.retry.base and capped at myreminderbot.retry.max
+ * milliseconds. Half of the delay is random (jitter), so that the Reminders that failed together during an XMPP outage do
+ * not all come back in the same Cron Job run. After myreminderbot.retry.maxattempts failed attempts the Reminder is given up
+ * on and set to DEAD.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+class RetryPolicy {
+
+	private final long base;
+	private final long max;
+	private final int maxAttempts;
+	private final Random random = new Random();
+
+	RetryPolicy() {
+		this(ReminderBotConfig.getLong(ReminderBotConfig.RETRY_BASE, 60 * 1000),
+				ReminderBotConfig.getLong(ReminderBotConfig.RETRY_MAX, 60 * 60 * 1000),
+				ReminderBotConfig.getInt(ReminderBotConfig.RETRY_MAX_ATTEMPTS, 5));
+	}
+
+	RetryPolicy(long base, long max, int maxAttempts) {
+		this.base = Math.max(1, base);
+		this.max = Math.max(this.base, max);
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @param attempts The number of failed attempts so far
+	 * @return true if the Reminder should not be tried again
+	 */
+	boolean isExhausted(int attempts) {
+		return attempts >= maxAttempts;
+	}
+
+	/**
+	 * @param attempts The number of failed attempts so far, at least 1
+	 * @return How long to wait (in milliseconds) before the next attempt
+	 */
+	long delay(int attempts) {
+		int shift = Math.min(Math.max(attempts - 1, 0), 30);
+		long delay = base << shift;
+		if (delay > max || delay <= 0) delay = max;
+		long half = delay / 2;
+		long jitter;
+		synchronized (random) {
+			jitter = (long)(random.nextDouble() * (delay - half));
+		}
+		return half + jitter;
+	}
+}
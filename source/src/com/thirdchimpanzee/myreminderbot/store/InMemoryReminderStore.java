@@ -0,0 +1,373 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.thirdchimpanzee.myreminderbot.entity.ArchivedReminder;
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+
+/**
+ * ReminderStore that keeps everything in memory
+ *
+ * The Reminders are indexed by id, by owner (emailAddress, in id order), for the ACTIVE ones by due time (reminderDate) and
+ * for the ones in RETRY by the time of their next attempt. Reads go
+ * straight to the concurrent indexes without locking. Writes are serialized so that the indexes are always updated
+ * together.
+ *
+ * Nothing is persisted, so this store is meant for local performance runs, load tests and small single node deployments.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class InMemoryReminderStore implements ReminderStore {
+
+	private final AtomicLong nextId = new AtomicLong(1);
+	private final Map<Long, Reminder> byId = new ConcurrentHashMap<Long, Reminder>();
+	private final Map<String, NavigableSet<Long>> byOwner = new ConcurrentHashMap<String, NavigableSet<Long>>();
+	//ACTIVE Reminders only : reminderDate (in milliseconds) -> ids
+	private final ConcurrentSkipListMap<Long, Set<Long>> byDueTime = new ConcurrentSkipListMap<Long, Set<Long>>();
+	//RETRY Reminders only : nextAttempt (in milliseconds) -> ids
+	private final ConcurrentSkipListMap<Long, Set<Long>> byRetryTime = new ConcurrentSkipListMap<Long, Set<Long>>();
+	private final Map<Long, ArchivedReminder> archived = new ConcurrentHashMap<Long, ArchivedReminder>();
+	private final Map<String, String> checkpoints = new ConcurrentHashMap<String, String>();
+
+	//Oldest trigger time first, then by id, which is the order of findFinishedBefore()
+	private static final Comparator<Reminder> BY_REMINDER_DATE = new Comparator<Reminder>() {
+		public int compare(Reminder a, Reminder b) {
+			int c = a.getReminderDate().compareTo(b.getReminderDate());
+			return (c != 0) ? c : a.getId().compareTo(b.getId());
+		}
+	};
+
+	public synchronized void put(Reminder r) {
+		if (r.getId() == null) r.setId(nextId.getAndIncrement());
+		Reminder previous = byId.get(r.getId());
+		if (previous != null) unindex(previous);
+		Reminder copy = copy(r);
+		byId.put(copy.getId(), copy);
+		index(copy);
+	}
+
+	public synchronized void putAll(List<Reminder> reminders) {
+		for (Reminder r : reminders) {
+			put(r);
+		}
+	}
+
+	public Reminder find(Long id) {
+		if (id == null) return null;
+		Reminder r = byId.get(id);
+		return (r == null) ? null : copy(r);
+	}
+
+	public Reminder findByIdAndOwner(Long id, String emailAddress) {
+		Reminder r = find(id);
+		if (r == null || !r.getEmailAddress().equals(emailAddress)) return null;
+		return r;
+	}
+
+	public List<Reminder> findByOwner(String emailAddress, ReminderStatus status) {
+		List<Reminder> _results = new ArrayList<Reminder>();
+		Set<Long> ids = byOwner.get(emailAddress);
+		if (ids == null) return _results;
+		for (Long id : ids) {
+			Reminder r = byId.get(id);
+			if (r != null && status == r.getStatus()) _results.add(copy(r));
+		}
+		return _results;
+	}
+
+	public ReminderPage findPageByOwner(String emailAddress, ReminderStatus status, String cursor, int offset, int limit) {
+		List<Reminder> _results = new ArrayList<Reminder>();
+		NavigableSet<Long> ids = byOwner.get(emailAddress);
+		if (ids == null) return new ReminderPage(_results, null);
+		//The cursor is the id of the last Reminder of the previous page
+		if (cursor != null) ids = ids.tailSet(Long.valueOf(cursor), false);
+		int skipped = 0;
+		Long last = null;
+		for (Long id : ids) {
+			Reminder r = byId.get(id);
+			if (r == null || status != r.getStatus()) continue;
+			if (skipped < offset) {
+				skipped++;
+				continue;
+			}
+			if (_results.size() == limit) return new ReminderPage(_results, String.valueOf(last));
+			_results.add(copy(r));
+			last = id;
+		}
+		return new ReminderPage(_results, null);
+	}
+
+	public List<Reminder> findByStatus(ReminderStatus status) {
+		List<Reminder> _results = new ArrayList<Reminder>();
+		for (Reminder r : byId.values()) {
+			if (status == r.getStatus()) _results.add(copy(r));
+		}
+		return _results;
+	}
+
+	public List<Reminder> findDue(Date dueBy) {
+		List<Reminder> _results = new ArrayList<Reminder>();
+		for (Set<Long> ids : byDueTime.headMap(dueBy.getTime(), true).values()) {
+			for (Long id : ids) {
+				Reminder r = byId.get(id);
+				if (r != null && r.getStatus() == ReminderStatus.ACTIVE) _results.add(copy(r));
+			}
+		}
+		return _results;
+	}
+
+	public List<Reminder> findDue(Date after, Date dueBy, int limit) {
+		List<Reminder> _results = new ArrayList<Reminder>();
+		Map<Long, Set<Long>> range = (after == null) ? byDueTime.headMap(dueBy.getTime(), true)
+				: byDueTime.subMap(after.getTime(), false, dueBy.getTime(), true);
+		for (Set<Long> ids : range.values()) {
+			for (Long id : ids) {
+				Reminder r = byId.get(id);
+				if (r != null && r.getStatus() == ReminderStatus.ACTIVE) _results.add(copy(r));
+				if (_results.size() == limit) return _results;
+			}
+		}
+		return _results;
+	}
+
+	public int countDue(Date dueBy, int limit) {
+		int count = 0;
+		for (Set<Long> ids : byDueTime.headMap(dueBy.getTime(), true).values()) {
+			count += ids.size();
+			if (count >= limit) return limit;
+		}
+		return count;
+	}
+
+	public List<Reminder> findRetriesDue(Date dueBy, int limit) {
+		List<Reminder> _results = new ArrayList<Reminder>();
+		for (Set<Long> ids : byRetryTime.headMap(dueBy.getTime(), true).values()) {
+			for (Long id : ids) {
+				Reminder r = byId.get(id);
+				if (r != null && r.getStatus() == ReminderStatus.RETRY) _results.add(copy(r));
+				if (_results.size() == limit) return _results;
+			}
+		}
+		return _results;
+	}
+
+	public Date findEarliestDue() {
+		Map.Entry<Long, Set<Long>> due = byDueTime.firstEntry();
+		Map.Entry<Long, Set<Long>> retry = byRetryTime.firstEntry();
+		if (due == null && retry == null) return null;
+		if (due == null) return new Date(retry.getKey());
+		if (retry == null) return new Date(due.getKey());
+		return new Date(Math.min(due.getKey(), retry.getKey()));
+	}
+
+	public synchronized Reminder claim(Long id, String owner, long leaseMillis) {
+		Reminder r = byId.get(id);
+		if (r == null || !Leases.canClaim(r, owner, System.currentTimeMillis())) return null;
+		Leases.take(r, owner, leaseMillis);
+		return copy(r);
+	}
+
+	public synchronized boolean complete(Reminder r) {
+		if (!Leases.canComplete(byId.get(r.getId()), r.getLeaseOwner())) return false;
+		Leases.release(r);
+		put(r);
+		return true;
+	}
+
+	public List<Long> allocateIds(int count) {
+		List<Long> ids = new ArrayList<Long>(count);
+		for (int i = 0; i < count; i++) {
+			ids.add(nextId.getAndIncrement());
+		}
+		return ids;
+	}
+
+	public synchronized void delete(Reminder r) {
+		Reminder previous = byId.remove(r.getId());
+		if (previous != null) unindex(previous);
+	}
+
+	public synchronized void deleteAll(List<Reminder> reminders) {
+		for (Reminder r : reminders) {
+			delete(r);
+		}
+	}
+
+	public ReminderPage findFinishedBefore(ReminderStatus status, Date before, String cursor, int limit) {
+		//The SENT and DEAD Reminders are not indexed here, the compaction job is the only one reading them
+		List<Reminder> sent = new ArrayList<Reminder>();
+		for (Reminder r : byId.values()) {
+			if (r.getStatus() == status && r.getReminderDate() != null && r.getReminderDate().before(before)) sent.add(r);
+		}
+		Collections.sort(sent, BY_REMINDER_DATE);
+		//The cursor is the trigger time and id of the last Reminder of the previous page
+		Reminder after = null;
+		if (cursor != null) {
+			int slash = cursor.indexOf('/');
+			after = new Reminder();
+			after.setReminderDate(new Date(Long.parseLong(cursor.substring(0, slash))));
+			after.setId(Long.valueOf(cursor.substring(slash + 1)));
+		}
+		List<Reminder> _results = new ArrayList<Reminder>();
+		for (Reminder r : sent) {
+			if (after != null && BY_REMINDER_DATE.compare(r, after) <= 0) continue;
+			if (_results.size() == limit) {
+				Reminder last = _results.get(limit - 1);
+				return new ReminderPage(_results, last.getReminderDate().getTime() + "/" + last.getId());
+			}
+			_results.add(copy(r));
+		}
+		return new ReminderPage(_results, null);
+	}
+
+	public ReminderPage findAll(String cursor, int limit) {
+		NavigableSet<Long> ids = new TreeSet<Long>(byId.keySet());
+		//The cursor is the id of the last Reminder of the previous page
+		if (cursor != null) ids = ids.tailSet(Long.valueOf(cursor), false);
+		List<Reminder> _results = new ArrayList<Reminder>();
+		for (Long id : ids) {
+			Reminder r = byId.get(id);
+			if (r == null) continue;
+			if (_results.size() == limit) return new ReminderPage(_results, String.valueOf(_results.get(limit - 1).getId()));
+			_results.add(copy(r));
+		}
+		return new ReminderPage(_results, null);
+	}
+
+	public boolean resave(Long id) {
+		//Nothing is persisted, so there is no older layout to rewrite
+		return byId.containsKey(id);
+	}
+
+	public synchronized void archiveAll(List<Reminder> reminders) {
+		Date now = new Date();
+		for (Reminder r : reminders) {
+			archived.put(r.getId(), new ArchivedReminder(r, now));
+			delete(r);
+		}
+	}
+
+	public String loadCheckpoint(String name) {
+		return checkpoints.get(name);
+	}
+
+	public synchronized boolean replaceCheckpoint(String name, String expected, String value) {
+		String current = checkpoints.get(name);
+		if (expected == null ? current != null : !expected.equals(current)) return false;
+		saveCheckpoint(name, value);
+		return true;
+	}
+
+	public synchronized void saveCheckpoint(String name, String value) {
+		if (value == null) {
+			checkpoints.remove(name);
+		}
+		else {
+			checkpoints.put(name, value);
+		}
+	}
+
+	/**
+	 * @return The number of archived Reminders held
+	 */
+	public int archivedSize() {
+		return archived.size();
+	}
+
+	/**
+	 * @return The number of Reminders held, whatever their status
+	 */
+	public int size() {
+		return byId.size();
+	}
+
+	/**
+	 * Removes all the Reminders
+	 */
+	public synchronized void clear() {
+		byId.clear();
+		byOwner.clear();
+		byDueTime.clear();
+		byRetryTime.clear();
+		archived.clear();
+		checkpoints.clear();
+	}
+
+	private void index(Reminder r) {
+		NavigableSet<Long> owned = byOwner.get(r.getEmailAddress());
+		if (owned == null) {
+			owned = new ConcurrentSkipListSet<Long>();
+			byOwner.put(r.getEmailAddress(), owned);
+		}
+		owned.add(r.getId());
+		if (r.getStatus() == ReminderStatus.ACTIVE && r.getReminderDate() != null) {
+			index(byDueTime, r.getReminderDate().getTime(), r.getId());
+		}
+		if (r.getStatus() == ReminderStatus.RETRY && r.getNextAttempt() != null) {
+			index(byRetryTime, r.getNextAttempt().getTime(), r.getId());
+		}
+	}
+
+	private static void index(ConcurrentSkipListMap<Long, Set<Long>> byTime, Long time, Long id) {
+		Set<Long> ids = byTime.get(time);
+		if (ids == null) {
+			ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+			byTime.put(time, ids);
+		}
+		ids.add(id);
+	}
+
+	private void unindex(Reminder r) {
+		Set<Long> owned = byOwner.get(r.getEmailAddress());
+		if (owned != null) {
+			owned.remove(r.getId());
+			if (owned.isEmpty()) byOwner.remove(r.getEmailAddress());
+		}
+		if (r.getReminderDate() != null) unindex(byDueTime, r.getReminderDate().getTime(), r.getId());
+		if (r.getNextAttempt() != null) unindex(byRetryTime, r.getNextAttempt().getTime(), r.getId());
+	}
+
+	private static void unindex(ConcurrentSkipListMap<Long, Set<Long>> byTime, Long time, Long id) {
+		Set<Long> ids = byTime.get(time);
+		if (ids != null) {
+			ids.remove(id);
+			if (ids.isEmpty()) byTime.remove(time);
+		}
+	}
+
+	private static Reminder copy(Reminder r) {
+		Reminder c = new Reminder();
+		c.setId(r.getId());
+		c.setUserid(r.getUserid());
+		c.setEmailAddress(r.getEmailAddress());
+		c.setMsg(r.getMsg());
+		c.setRequestDate(r.getRequestDate());
+		c.setReminderDate(r.getReminderDate());
+		c.setStatus(r.getStatus());
+		c.setLeaseOwner(r.getLeaseOwner());
+		c.setLeaseExpiry(r.getLeaseExpiry());
+		c.setAttempts(r.getAttempts());
+		c.setNextAttempt(r.getNextAttempt());
+		c.setRepeatMinutes(r.getRepeatMinutes());
+		return c;
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.store;
+
+import java.util.Date;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+
+/**
+ * The claim rules shared by the ReminderStore implementations
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+final class Leases {
+
+	private Leases() {
+	}
+
+	/**
+	 * A Reminder can be claimed if it is still ACTIVE (or waiting for a RETRY) and it is either not leased or its lease has
+	 * expired. A lease that has not expired is never taken over, not even by its own owner : the owner is unique per claim,
+	 * so the same owner would mean the same claim being made twice.
+	 */
+	static boolean canClaim(Reminder r, String owner, long now) {
+		if (r.getStatus() != ReminderStatus.ACTIVE && r.getStatus() != ReminderStatus.RETRY) return false;
+		if (r.getLeaseOwner() == null) return true;
+		return r.getLeaseExpiry() == null || r.getLeaseExpiry().getTime() <= now;
+	}
+
+	static void take(Reminder r, String owner, long leaseMillis) {
+		r.setLeaseOwner(owner);
+		r.setLeaseExpiry(new Date(System.currentTimeMillis() + leaseMillis));
+	}
+
+	/**
+	 * The Reminder as it is stored can be completed by a claim if it still exists and is still leased by that claim. A lease
+	 * that has expired but was not taken by somebody else still counts.
+	 */
+	static boolean canComplete(Reminder stored, String owner) {
+		return stored != null && owner != null && owner.equals(stored.getLeaseOwner());
+	}
+
+	static void release(Reminder r) {
+		r.setLeaseOwner(null);
+		r.setLeaseExpiry(null);
+	}
+}
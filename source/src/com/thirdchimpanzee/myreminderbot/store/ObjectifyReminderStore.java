@@ -0,0 +1,298 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.store;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Query;
+import com.thirdchimpanzee.myreminderbot.entity.ArchivedReminder;
+import com.thirdchimpanzee.myreminderbot.entity.Checkpoint;
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+
+/**
+ * ReminderStore on top of the Google App Engine datastore
+ *
+ * All interactions with the Datastore are handled via the Objectify Framework, which is a simple to use framework for the 
+ * Google App Engine Datastore. Refer to http://code.google.com/p/objectify-appengine/
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class ObjectifyReminderStore implements ReminderStore {
+
+	static {
+		ObjectifyService.register(Reminder.class);
+		ObjectifyService.register(ArchivedReminder.class);
+		ObjectifyService.register(Checkpoint.class);
+	}
+
+	public void put(Reminder r) {
+		Objectify obj = ObjectifyService.begin();
+		obj.put(r);
+	}
+
+	public void putAll(List<Reminder> reminders) {
+		if (reminders.isEmpty()) return;
+		Objectify obj = ObjectifyService.begin();
+		obj.put(reminders);
+	}
+
+	public Reminder find(Long id) {
+		Objectify obj = ObjectifyService.begin();
+		return obj.find(Reminder.class, id);
+	}
+
+	public Reminder findByIdAndOwner(Long id, String emailAddress) {
+		Objectify obj = ObjectifyService.begin();
+		//A get by key rather than a query, the owner is checked on the entity itself
+		Reminder r = obj.find(Reminder.class, id);
+		if (r == null || !r.getEmailAddress().equals(emailAddress)) return null;
+		return r;
+	}
+
+	public List<Reminder> findByOwner(String emailAddress, ReminderStatus status) {
+		Objectify obj = ObjectifyService.begin();
+		return obj.query(Reminder.class).filter("emailAddress",emailAddress).filter("status",status(status)).list();
+	}
+
+	public ReminderPage findPageByOwner(String emailAddress, ReminderStatus status, String cursor, int offset, int limit) {
+		Objectify obj = ObjectifyService.begin();
+		//Served by the emailAddress + status index, which returns the entities in key order
+		Query<Reminder> query = obj.query(Reminder.class).filter("emailAddress",emailAddress).filter("status",status(status));
+		if (offset > 0) query.offset(offset);
+		return page(query, cursor, limit);
+	}
+
+	public ReminderPage findFinishedBefore(ReminderStatus status, Date before, String cursor, int limit) {
+		Objectify obj = ObjectifyService.begin();
+		//Uses the same status + reminderDate index as findDue()
+		Query<Reminder> query = obj.query(Reminder.class).filter("status",status(status)).filter("reminderDate <",before).order("reminderDate");
+		return page(query, cursor, limit);
+	}
+
+	public ReminderPage findAll(String cursor, int limit) {
+		Objectify obj = ObjectifyService.begin();
+		//A kind query without filters is served in key order by the built-in index
+		return page(obj.query(Reminder.class), cursor, limit);
+	}
+
+	/**
+	 * Objectify stores an enum by its name but does not convert the enums given to a filter, which the datastore rejects.
+	 * Every status filter goes through here.
+	 */
+	private static String status(ReminderStatus status) {
+		return status.name();
+	}
+
+	/**
+	 * Reads one page of a query, starting at the given cursor
+	 */
+	private static ReminderPage page(Query<Reminder> query, String cursor, int limit) {
+		if (cursor != null) query.cursor(Cursor.fromWebSafeString(cursor));
+		//One extra entity tells us whether there is a next page
+		query.limit(limit + 1);
+		List<Reminder> _results = new ArrayList<Reminder>();
+		QueryResultIterator<Reminder> it = query.iterator();
+		while (_results.size() < limit && it.hasNext()) {
+			_results.add(it.next());
+		}
+		String next = null;
+		if (_results.size() == limit) {
+			Cursor end = it.getCursor();
+			if (it.hasNext() && end != null) next = end.toWebSafeString();
+		}
+		return new ReminderPage(_results, next);
+	}
+
+	public List<Reminder> findByStatus(ReminderStatus status) {
+		Objectify obj = ObjectifyService.begin();
+		return obj.query(Reminder.class).filter("status",status(status)).list();
+	}
+
+	public List<Reminder> findDue(Date dueBy) {
+		Objectify obj = ObjectifyService.begin();
+		return obj.query(Reminder.class).filter("status",status(ReminderStatus.ACTIVE)).filter("reminderDate <=",dueBy).order("reminderDate").list();
+	}
+
+	public List<Reminder> findDue(Date after, Date dueBy, int limit) {
+		Objectify obj = ObjectifyService.begin();
+		Query<Reminder> query = obj.query(Reminder.class).filter("status",status(ReminderStatus.ACTIVE)).filter("reminderDate <=",dueBy);
+		if (after != null) query.filter("reminderDate >",after);
+		return query.order("reminderDate").limit(limit).list();
+	}
+
+	public int countDue(Date dueBy, int limit) {
+		Objectify obj = ObjectifyService.begin();
+		//Keys only, the entities themselves are not read
+		int count = 0;
+		for (@SuppressWarnings("unused") Key<Reminder> key : obj.query(Reminder.class).filter("status",status(ReminderStatus.ACTIVE)).filter("reminderDate <=",dueBy).limit(limit).fetchKeys()) {
+			count++;
+		}
+		return count;
+	}
+
+	public List<Reminder> findRetriesDue(Date dueBy, int limit) {
+		Objectify obj = ObjectifyService.begin();
+		return obj.query(Reminder.class).filter("status",status(ReminderStatus.RETRY)).filter("nextAttempt <=",dueBy).order("nextAttempt").limit(limit).list();
+	}
+
+	public Date findEarliestDue() {
+		Objectify obj = ObjectifyService.begin();
+		//Both are served by the status + date indexes, one entity each
+		Reminder due = obj.query(Reminder.class).filter("status",status(ReminderStatus.ACTIVE)).order("reminderDate").limit(1).get();
+		Reminder retry = obj.query(Reminder.class).filter("status",status(ReminderStatus.RETRY)).order("nextAttempt").limit(1).get();
+		Date earliest = (due == null) ? null : due.getReminderDate();
+		if (retry != null && retry.getNextAttempt() != null && (earliest == null || retry.getNextAttempt().before(earliest))) {
+			earliest = retry.getNextAttempt();
+		}
+		return earliest;
+	}
+
+	public Reminder claim(Long id, String owner, long leaseMillis) {
+		Objectify obj = ObjectifyService.beginTransaction();
+		try {
+			Reminder r = obj.find(Reminder.class, id);
+			if (r == null || !Leases.canClaim(r, owner, System.currentTimeMillis())) return null;
+			Leases.take(r, owner, leaseMillis);
+			obj.put(r);
+			obj.getTxn().commit();
+			return r;
+		}
+		catch (ConcurrentModificationException ex) {
+			//Somebody else got there first
+			return null;
+		}
+		finally {
+			if (obj.getTxn().isActive()) obj.getTxn().rollback();
+		}
+	}
+
+	public boolean complete(Reminder r) {
+		Objectify obj = ObjectifyService.beginTransaction();
+		try {
+			if (!Leases.canComplete(obj.find(Reminder.class, r.getId()), r.getLeaseOwner())) return false;
+			Leases.release(r);
+			obj.put(r);
+			obj.getTxn().commit();
+			return true;
+		}
+		catch (ConcurrentModificationException ex) {
+			//Changed in the meantime (e.g. removed by its user), which wins
+			return false;
+		}
+		finally {
+			if (obj.getTxn().isActive()) obj.getTxn().rollback();
+		}
+	}
+
+	public List<Long> allocateIds(int count) {
+		List<Long> ids = new ArrayList<Long>(count);
+		for (Key<Reminder> key : ObjectifyService.factory().allocateIds(Reminder.class, count)) {
+			ids.add(key.getId());
+		}
+		return ids;
+	}
+
+	public boolean resave(Long id) {
+		Objectify obj = ObjectifyService.beginTransaction();
+		try {
+			Reminder r = obj.find(Reminder.class, id);
+			if (r == null) return false;
+			obj.put(r);
+			obj.getTxn().commit();
+			return true;
+		}
+		catch (ConcurrentModificationException ex) {
+			//Changed in the meantime, which has saved it in the current layout already
+			return true;
+		}
+		finally {
+			if (obj.getTxn().isActive()) obj.getTxn().rollback();
+		}
+	}
+
+	public void delete(Reminder r) {
+		Objectify obj = ObjectifyService.begin();
+		obj.delete(r);
+	}
+
+	public void deleteAll(List<Reminder> reminders) {
+		if (reminders.isEmpty()) return;
+		Objectify obj = ObjectifyService.begin();
+		obj.delete(reminders);
+	}
+
+	public void archiveAll(List<Reminder> reminders) {
+		if (reminders.isEmpty()) return;
+		Date now = new Date();
+		List<ArchivedReminder> archived = new ArrayList<ArchivedReminder>();
+		for (Reminder r : reminders) {
+			archived.add(new ArchivedReminder(r, now));
+		}
+		Objectify obj = ObjectifyService.begin();
+		//The archive is written first and keeps the id, so a run that dies in between is repeated without losing anything
+		obj.put(archived);
+		obj.delete(reminders);
+	}
+
+	public String loadCheckpoint(String name) {
+		Objectify obj = ObjectifyService.begin();
+		Checkpoint c = obj.find(Checkpoint.class, name);
+		return (c == null) ? null : c.getValue();
+	}
+
+	public void saveCheckpoint(String name, String value) {
+		Objectify obj = ObjectifyService.begin();
+		if (value == null) {
+			obj.delete(Checkpoint.class, name);
+			return;
+		}
+		Checkpoint c = new Checkpoint();
+		c.setName(name);
+		c.setValue(value);
+		c.setUpdated(new Date());
+		obj.put(c);
+	}
+
+	public boolean replaceCheckpoint(String name, String expected, String value) {
+		Objectify obj = ObjectifyService.beginTransaction();
+		try {
+			Checkpoint c = obj.find(Checkpoint.class, name);
+			String current = (c == null) ? null : c.getValue();
+			if (expected == null ? current != null : !expected.equals(current)) return false;
+			if (value == null) {
+				if (c != null) obj.delete(c);
+			}
+			else {
+				if (c == null) {
+					c = new Checkpoint();
+					c.setName(name);
+				}
+				c.setValue(value);
+				c.setUpdated(new Date());
+				obj.put(c);
+			}
+			obj.getTxn().commit();
+			return true;
+		}
+		catch (ConcurrentModificationException ex) {
+			//Somebody else got there first
+			return false;
+		}
+		finally {
+			if (obj.getTxn().isActive()) obj.getTxn().rollback();
+		}
+	}
+}
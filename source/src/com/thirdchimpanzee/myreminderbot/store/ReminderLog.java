@@ -0,0 +1,226 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+
+/**
+ * Append-only log of the new Reminders that have been acknowledged but not yet written to the datastore
+ *
+ * The log is a memory-mapped file of a fixed size. It starts with a header that holds the sequence number of the last
+ * record that is known to be in the datastore, followed by the records :
+ *
+ * length (int) | CRC32 of the payload (int) | payload : sequence number (long), userid, emailAddress, msg, requestDate,
+ * reminderDate, status, repeatMinutes, id
+ *
+ * The id is reserved before the Reminder is appended, so a record that is replayed after it had already been written
+ * overwrites the same entity.
+ *
+ * A record with a length of 0 marks the end of the log. Every append writes the record, a new end marker behind it and then
+ * forces the page(s) to disk, so an acknowledged Reminder survives a crash of the process as well as of the machine.
+ *
+ * On startup replay() reads the records back up to the end marker or up to the first record whose checksum does not match
+ * (a torn write), and returns the ones that are newer than the header. Once everything has been written to the datastore the
+ * log is rewound to the beginning. The sequence numbers keep growing, so stale records left behind by a rewind are never
+ * returned again.
+ *
+ * This class is not thread-safe, the WriteBehindReminderStore serializes the calls.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+final class ReminderLog {
+
+	//The header : the sequence number of the last record written to the datastore
+	private static final int HEADER = 8;
+	//length and checksum of a record
+	private static final int RECORD_HEADER = 8;
+	private static final long NO_DATE = Long.MIN_VALUE;
+	//Datastore ids start at 1
+	private static final long NO_ID = 0;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private long lastSequence;
+	private long flushedSequence;
+
+	/**
+	 * Opens the log, creating the file if it does not exist yet
+	 * @param path The log file
+	 * @param capacity The size of the file in bytes
+	 * @throws IOException
+	 */
+	ReminderLog(File path, int capacity) throws IOException {
+		file = new RandomAccessFile(path, "rw");
+		int size = (int)Math.max(file.length(), Math.max(capacity, HEADER + 4));
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		flushedSequence = buffer.getLong(0);
+		lastSequence = flushedSequence;
+		buffer.position(HEADER);
+	}
+
+	/**
+	 * Reads the Reminders that were appended but are not yet in the datastore and positions the log behind them
+	 * @return The Reminders, in the order in which they were appended
+	 */
+	List<Reminder> replay() {
+		List<Reminder> reminders = new ArrayList<Reminder>();
+		int position = HEADER;
+		while (position + RECORD_HEADER <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length <= 0 || position + RECORD_HEADER + length > buffer.capacity()) break;
+			byte[] payload = new byte[length];
+			buffer.position(position + RECORD_HEADER);
+			buffer.get(payload);
+			if (checksum(payload) != buffer.getInt(position + 4)) break;
+			try {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+				long sequence = in.readLong();
+				if (sequence > flushedSequence) reminders.add(read(in));
+				lastSequence = Math.max(lastSequence, sequence);
+			}
+			catch (IOException ex) {
+				break;
+			}
+			position += RECORD_HEADER + length;
+		}
+		buffer.position(position);
+		return reminders;
+	}
+
+	/**
+	 * Appends a new Reminder and forces it to disk
+	 * @param r The Reminder
+	 * @return The sequence number of the record, or -1 if the log has no room left for it
+	 */
+	long append(Reminder r) {
+		byte[] payload;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeLong(lastSequence + 1);
+			write(out, r);
+			out.flush();
+			payload = bytes.toByteArray();
+		}
+		catch (IOException ex) {
+			//Reminder texts are chat messages, so they are far below the 64K limit of writeUTF
+			return -1;
+		}
+		int position = buffer.position();
+		//Keep room for the end marker behind the record
+		if (position + RECORD_HEADER + payload.length + 4 > buffer.capacity()) return -1;
+		buffer.putInt(position + RECORD_HEADER + payload.length, 0);
+		buffer.position(position + RECORD_HEADER);
+		buffer.put(payload);
+		buffer.putInt(position + 4, checksum(payload));
+		//The length goes last, so a record is only visible to replay() once it is complete
+		buffer.putInt(position, payload.length);
+		buffer.force();
+		return ++lastSequence;
+	}
+
+	/**
+	 * Records that all the records up to a sequence number are in the datastore
+	 * @param sequence The sequence number of the last record written to the datastore
+	 */
+	void markFlushed(long sequence) {
+		if (sequence <= flushedSequence) return;
+		flushedSequence = sequence;
+		buffer.putLong(0, sequence);
+		buffer.force();
+	}
+
+	/**
+	 * Rewinds the log to the beginning. Only allowed once every record has been marked as flushed.
+	 */
+	void rewind() {
+		if (flushedSequence < lastSequence) throw new IllegalStateException("The log still has Reminders that are not in the datastore");
+		buffer.putInt(HEADER, 0);
+		buffer.position(HEADER);
+	}
+
+	/**
+	 * @return The sequence number of the last record appended
+	 */
+	long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @return The number of bytes in use
+	 */
+	int size() {
+		return buffer.position();
+	}
+
+	void close() throws IOException {
+		buffer.force();
+		file.close();
+	}
+
+	private static int checksum(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		return (int)crc.getValue();
+	}
+
+	private static void write(DataOutputStream out, Reminder r) throws IOException {
+		writeString(out, r.getUserid());
+		writeString(out, r.getEmailAddress());
+		writeString(out, r.getMsg());
+		out.writeLong(r.getRequestDate() == null ? NO_DATE : r.getRequestDate().getTime());
+		out.writeLong(r.getReminderDate() == null ? NO_DATE : r.getReminderDate().getTime());
+		writeString(out, r.getStatus() == null ? null : r.getStatus().name());
+		out.writeInt(r.getRepeatMinutes());
+		out.writeLong(r.getId() == null ? NO_ID : r.getId());
+	}
+
+	private static Reminder read(DataInputStream in) throws IOException {
+		Reminder r = new Reminder();
+		r.setUserid(readString(in));
+		r.setEmailAddress(readString(in));
+		r.setMsg(readString(in));
+		long requestDate = in.readLong();
+		r.setRequestDate(requestDate == NO_DATE ? null : new Date(requestDate));
+		long reminderDate = in.readLong();
+		r.setReminderDate(reminderDate == NO_DATE ? null : new Date(reminderDate));
+		String status = readString(in);
+		r.setStatus(status == null ? null : ReminderStatus.valueOf(status));
+		//Records written before repeating Reminders existed end here
+		if (in.available() >= 4) r.setRepeatMinutes(in.readInt());
+		//and those written before the ids were reserved up front here, they get a new id when they are written
+		if (in.available() >= 8) {
+			long id = in.readLong();
+			if (id != NO_ID) r.setId(id);
+		}
+		return r;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) out.writeUTF(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.store;
+
+import java.util.List;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+
+/**
+ * One page of Reminders read from a ReminderStore
+ *
+ * Along with the Reminders, a page carries an opaque cursor that continues the query right after the last Reminder of the
+ * page. The cursor is a plain string so that it can be kept between two chat messages. It is null on the last page.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class ReminderPage {
+
+	private final List<Reminder> reminders;
+	private final String cursor;
+	private final int number;
+
+	public ReminderPage(List<Reminder> reminders, String cursor) {
+		this(reminders, cursor, 1);
+	}
+
+	public ReminderPage(List<Reminder> reminders, String cursor, int number) {
+		this.reminders = reminders;
+		this.cursor = cursor;
+		this.number = number;
+	}
+
+	/**
+	 * @return The Reminders on this page
+	 */
+	public List<Reminder> getReminders() {
+		return reminders;
+	}
+
+	/**
+	 * @return The cursor to read the next page with, or null if this is the last page
+	 */
+	public String getCursor() {
+		return cursor;
+	}
+
+	/**
+	 * @return true if there are more Reminders after this page
+	 */
+	public boolean hasMore() {
+		return cursor != null;
+	}
+
+	/**
+	 * @return The number of this page, starting at 1
+	 */
+	public int getNumber() {
+		return number;
+	}
+}
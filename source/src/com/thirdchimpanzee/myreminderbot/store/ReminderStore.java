@@ -0,0 +1,208 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.store;
+
+import java.util.Date;
+import java.util.List;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+
+/**
+ * Storage for Reminder objects
+ *
+ * All the datastore interactions of the ReminderBotService go through this interface. Two implementations are available and
+ * the one to use is picked by the myreminderbot.store property in WEB-INF\appengine-web.xml:
+ *
+ * objectify : ObjectifyReminderStore, the Google App Engine datastore (default)
+ * memory    : InMemoryReminderStore, a concurrent in-memory store for local performance runs and small single node deployments
+ *
+ * Objects handed out by a store are copies. Changes made to them are only saved by putting them back.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public interface ReminderStore {
+
+	/**
+	 * Saves a Reminder. If the Reminder does not have an id yet, one is allocated and set on it.
+	 * @param r The Reminder to save
+	 */
+	void put(Reminder r);
+
+	/**
+	 * Saves several Reminders in one batch
+	 * @param reminders The Reminders to save
+	 */
+	void putAll(List<Reminder> reminders);
+
+	/**
+	 * @param id The id of the Reminder
+	 * @return The Reminder, or null if there is none with that id
+	 */
+	Reminder find(Long id);
+
+	/**
+	 * Reads a Reminder by its id and checks that it belongs to a user. Like find(), this is a single lookup by key.
+	 * @param id The id of the Reminder
+	 * @param emailAddress The email address of the owner
+	 * @return The Reminder, or null if there is none with that id owned by that user
+	 */
+	Reminder findByIdAndOwner(Long id, String emailAddress);
+
+	/**
+	 * @param emailAddress The email address of the owner
+	 * @param status The status of the Reminders to return
+	 * @return The Reminders of that user that have that status
+	 */
+	List<Reminder> findByOwner(String emailAddress, ReminderStatus status);
+
+	/**
+	 * Reads one page of the Reminders of a user. The Reminders are returned in id order, so that a cursor taken from one page
+	 * continues exactly where that page ended.
+	 * @param emailAddress The email address of the owner
+	 * @param status The status of the Reminders to return
+	 * @param cursor The cursor of the previous page, or null to start at the beginning
+	 * @param offset The number of Reminders to skip after the cursor
+	 * @param limit The maximum number of Reminders on the page
+	 * @return The page, with the cursor of the next page if there are more Reminders
+	 */
+	ReminderPage findPageByOwner(String emailAddress, ReminderStatus status, String cursor, int offset, int limit);
+
+	/**
+	 * @param status The status of the Reminders to return
+	 * @return All the Reminders that have that status
+	 */
+	List<Reminder> findByStatus(ReminderStatus status);
+
+	/**
+	 * @param dueBy The latest trigger date/time to include
+	 * @return The ACTIVE Reminders whose reminderDate is on or before dueBy, oldest first
+	 */
+	List<Reminder> findDue(Date dueBy);
+
+	/**
+	 * @param after Only include Reminders whose reminderDate is after this date/time, or null for no lower bound
+	 * @param dueBy The latest trigger date/time to include
+	 * @param limit The maximum number of Reminders to return
+	 * @return The ACTIVE Reminders whose reminderDate is after after and on or before dueBy, oldest first
+	 */
+	List<Reminder> findDue(Date after, Date dueBy, int limit);
+
+	/**
+	 * Counts the ACTIVE Reminders that are due, without reading them
+	 * @param dueBy The latest trigger date/time to include
+	 * @param limit The count stops at this number
+	 * @return The number of ACTIVE Reminders whose reminderDate is on or before dueBy, at most limit
+	 */
+	int countDue(Date dueBy, int limit);
+
+	/**
+	 * @param dueBy The latest next attempt date/time to include
+	 * @param limit The maximum number of Reminders to return
+	 * @return The Reminders in RETRY whose nextAttempt is on or before dueBy, the earliest first
+	 */
+	List<Reminder> findRetriesDue(Date dueBy, int limit);
+
+	/**
+	 * @return The earliest reminderDate of the ACTIVE Reminders or nextAttempt of the Reminders in RETRY, or null if there are none
+	 */
+	Date findEarliestDue();
+
+	/**
+	 * Atomically claims an ACTIVE (or RETRY) Reminder for a dispatcher. The claim fails if the Reminder is no longer ACTIVE or if another
+	 * owner holds a lease on it that has not expired yet.
+	 * @param id The id of the Reminder
+	 * @param owner The token of the dispatcher claiming the Reminder
+	 * @param leaseMillis How long the claim is valid
+	 * @return The claimed Reminder, or null if it could not be claimed
+	 */
+	Reminder claim(Long id, String owner, long leaseMillis);
+
+	/**
+	 * Atomically writes back a Reminder that has been claimed and handled by a dispatcher, and gives up its lease. Nothing is
+	 * written if the Reminder has been deleted in the meantime or is no longer leased by the owner of the claim, so that a
+	 * Reminder removed by its user does not come back and the changes made by somebody else are not overwritten.
+	 * @param r The Reminder with its new status, still carrying the leaseOwner of its claim
+	 * @return true if the Reminder was written
+	 */
+	boolean complete(Reminder r);
+
+	/**
+	 * Reserves ids for new Reminders, so that the id of a Reminder is known before it is written. A Reminder put with one of
+	 * these ids is stored under it.
+	 * @param count The number of ids
+	 * @return The ids, which are never handed out again
+	 */
+	List<Long> allocateIds(int count);
+
+	/**
+	 * Deletes a Reminder
+	 * @param r The Reminder to delete
+	 */
+	void delete(Reminder r);
+
+	/**
+	 * Deletes several Reminders in one batch
+	 * @param reminders The Reminders to delete
+	 */
+	void deleteAll(List<Reminder> reminders);
+
+	/**
+	 * Reads one page of the Reminders that are done with (SENT, or DEAD after too many failed attempts) and that were triggered
+	 * before a given date, oldest first. Used by the compaction job.
+	 * @param status SENT or DEAD
+	 * @param before The date/time before which the Reminders were triggered
+	 * @param cursor The cursor of the previous page, or null to start at the beginning. It is only valid with the same before date.
+	 * @param limit The maximum number of Reminders on the page
+	 * @return The page, with the cursor of the next page if there are more Reminders
+	 */
+	ReminderPage findFinishedBefore(ReminderStatus status, Date before, String cursor, int limit);
+
+	/**
+	 * Reads one page of all the Reminders, whatever their status, in id order. Used by the ReminderMigrator.
+	 * @param cursor The cursor of the previous page, or null to start at the beginning
+	 * @param limit The maximum number of Reminders on the page
+	 * @return The page, with the cursor of the next page if there are more Reminders
+	 */
+	ReminderPage findAll(String cursor, int limit);
+
+	/**
+	 * Reads a Reminder and saves it again in one transaction, so that it is stored in the current entity layout without
+	 * overwriting a change made in the meantime
+	 * @param id The id of the Reminder
+	 * @return false if there is no Reminder with that id (any more)
+	 */
+	boolean resave(Long id);
+
+	/**
+	 * Moves Reminders out of the Reminder kind into the compact ArchivedReminder kind. Archiving a Reminder twice is harmless.
+	 * @param reminders The Reminders to archive
+	 */
+	void archiveAll(List<Reminder> reminders);
+
+	/**
+	 * @param name The name of a background job
+	 * @return The checkpoint saved by that job, or null if there is none
+	 */
+	String loadCheckpoint(String name);
+
+	/**
+	 * Saves the checkpoint of a background job
+	 * @param name The name of the job
+	 * @param value The checkpoint, or null to remove it
+	 */
+	void saveCheckpoint(String name, String value);
+
+	/**
+	 * Atomically replaces the checkpoint of a background job, if it still has the expected value
+	 * @param name The name of the job
+	 * @param expected The value the checkpoint must have, null if there must be no checkpoint
+	 * @param value The new checkpoint, or null to remove it
+	 * @return true if the checkpoint was replaced, false if it had another value
+	 */
+	boolean replaceCheckpoint(String name, String expected, String value);
+}
@@ -0,0 +1,311 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.store;
+
+import java.util.Date;
+import java.util.List;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+import com.thirdchimpanzee.myreminderbot.metrics.Histogram;
+import com.thirdchimpanzee.myreminderbot.metrics.Metrics;
+
+/**
+ * ReminderStore that records the latency of every call to another ReminderStore
+ *
+ * The ReminderBotService wraps its store in this class, so every datastore call shows up in the
+ * myreminderbot_store_micros metric, labelled with the name of the call. Failed calls are recorded as well.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class TimedReminderStore implements ReminderStore {
+
+	private static final String METRIC = "myreminderbot_store_micros";
+	private static final String HELP = "Latency of the ReminderStore calls in microseconds";
+
+	private final ReminderStore delegate;
+
+	private final Histogram put = timer("put");
+	private final Histogram putAll = timer("putAll");
+	private final Histogram find = timer("find");
+	private final Histogram findByIdAndOwner = timer("findByIdAndOwner");
+	private final Histogram findByOwner = timer("findByOwner");
+	private final Histogram findPageByOwner = timer("findPageByOwner");
+	private final Histogram findByStatus = timer("findByStatus");
+	private final Histogram findDue = timer("findDue");
+	private final Histogram findDueRange = timer("findDueRange");
+	private final Histogram countDue = timer("countDue");
+	private final Histogram findRetriesDue = timer("findRetriesDue");
+	private final Histogram findEarliestDue = timer("findEarliestDue");
+	private final Histogram claim = timer("claim");
+	private final Histogram complete = timer("complete");
+	private final Histogram allocateIds = timer("allocateIds");
+	private final Histogram delete = timer("delete");
+	private final Histogram deleteAll = timer("deleteAll");
+	private final Histogram findFinishedBefore = timer("findFinishedBefore");
+	private final Histogram findAll = timer("findAll");
+	private final Histogram resave = timer("resave");
+	private final Histogram archiveAll = timer("archiveAll");
+	private final Histogram loadCheckpoint = timer("loadCheckpoint");
+	private final Histogram saveCheckpoint = timer("saveCheckpoint");
+	private final Histogram replaceCheckpoint = timer("replaceCheckpoint");
+
+	public TimedReminderStore(ReminderStore delegate) {
+		this.delegate = delegate;
+	}
+
+	private static Histogram timer(String op) {
+		return Metrics.histogram(METRIC, "op=\"" + op + "\"", HELP);
+	}
+
+	/**
+	 * @return The ReminderStore doing the actual work
+	 */
+	public ReminderStore getDelegate() {
+		return delegate;
+	}
+
+	public void put(Reminder r) {
+		long t = System.nanoTime();
+		try {
+			delegate.put(r);
+		}
+		finally {
+			put.recordSince(t);
+		}
+	}
+
+	public void putAll(List<Reminder> reminders) {
+		long t = System.nanoTime();
+		try {
+			delegate.putAll(reminders);
+		}
+		finally {
+			putAll.recordSince(t);
+		}
+	}
+
+	public Reminder find(Long id) {
+		long t = System.nanoTime();
+		try {
+			return delegate.find(id);
+		}
+		finally {
+			find.recordSince(t);
+		}
+	}
+
+	public Reminder findByIdAndOwner(Long id, String emailAddress) {
+		long t = System.nanoTime();
+		try {
+			return delegate.findByIdAndOwner(id, emailAddress);
+		}
+		finally {
+			findByIdAndOwner.recordSince(t);
+		}
+	}
+
+	public List<Reminder> findByOwner(String emailAddress, ReminderStatus status) {
+		long t = System.nanoTime();
+		try {
+			return delegate.findByOwner(emailAddress, status);
+		}
+		finally {
+			findByOwner.recordSince(t);
+		}
+	}
+
+	public ReminderPage findPageByOwner(String emailAddress, ReminderStatus status, String cursor, int offset, int limit) {
+		long t = System.nanoTime();
+		try {
+			return delegate.findPageByOwner(emailAddress, status, cursor, offset, limit);
+		}
+		finally {
+			findPageByOwner.recordSince(t);
+		}
+	}
+
+	public List<Reminder> findByStatus(ReminderStatus status) {
+		long t = System.nanoTime();
+		try {
+			return delegate.findByStatus(status);
+		}
+		finally {
+			findByStatus.recordSince(t);
+		}
+	}
+
+	public List<Reminder> findDue(Date dueBy) {
+		long t = System.nanoTime();
+		try {
+			return delegate.findDue(dueBy);
+		}
+		finally {
+			findDue.recordSince(t);
+		}
+	}
+
+	public List<Reminder> findDue(Date after, Date dueBy, int limit) {
+		long t = System.nanoTime();
+		try {
+			return delegate.findDue(after, dueBy, limit);
+		}
+		finally {
+			findDueRange.recordSince(t);
+		}
+	}
+
+	public int countDue(Date dueBy, int limit) {
+		long t = System.nanoTime();
+		try {
+			return delegate.countDue(dueBy, limit);
+		}
+		finally {
+			countDue.recordSince(t);
+		}
+	}
+
+	public List<Reminder> findRetriesDue(Date dueBy, int limit) {
+		long t = System.nanoTime();
+		try {
+			return delegate.findRetriesDue(dueBy, limit);
+		}
+		finally {
+			findRetriesDue.recordSince(t);
+		}
+	}
+
+	public Date findEarliestDue() {
+		long t = System.nanoTime();
+		try {
+			return delegate.findEarliestDue();
+		}
+		finally {
+			findEarliestDue.recordSince(t);
+		}
+	}
+
+	public Reminder claim(Long id, String owner, long leaseMillis) {
+		long t = System.nanoTime();
+		try {
+			return delegate.claim(id, owner, leaseMillis);
+		}
+		finally {
+			claim.recordSince(t);
+		}
+	}
+
+	public boolean complete(Reminder r) {
+		long t = System.nanoTime();
+		try {
+			return delegate.complete(r);
+		}
+		finally {
+			complete.recordSince(t);
+		}
+	}
+
+	public List<Long> allocateIds(int count) {
+		long t = System.nanoTime();
+		try {
+			return delegate.allocateIds(count);
+		}
+		finally {
+			allocateIds.recordSince(t);
+		}
+	}
+
+	public void delete(Reminder r) {
+		long t = System.nanoTime();
+		try {
+			delegate.delete(r);
+		}
+		finally {
+			delete.recordSince(t);
+		}
+	}
+
+	public void deleteAll(List<Reminder> reminders) {
+		long t = System.nanoTime();
+		try {
+			delegate.deleteAll(reminders);
+		}
+		finally {
+			deleteAll.recordSince(t);
+		}
+	}
+
+	public ReminderPage findFinishedBefore(ReminderStatus status, Date before, String cursor, int limit) {
+		long t = System.nanoTime();
+		try {
+			return delegate.findFinishedBefore(status, before, cursor, limit);
+		}
+		finally {
+			findFinishedBefore.recordSince(t);
+		}
+	}
+
+	public ReminderPage findAll(String cursor, int limit) {
+		long t = System.nanoTime();
+		try {
+			return delegate.findAll(cursor, limit);
+		}
+		finally {
+			findAll.recordSince(t);
+		}
+	}
+
+	public boolean resave(Long id) {
+		long t = System.nanoTime();
+		try {
+			return delegate.resave(id);
+		}
+		finally {
+			resave.recordSince(t);
+		}
+	}
+
+	public void archiveAll(List<Reminder> reminders) {
+		long t = System.nanoTime();
+		try {
+			delegate.archiveAll(reminders);
+		}
+		finally {
+			archiveAll.recordSince(t);
+		}
+	}
+
+	public String loadCheckpoint(String name) {
+		long t = System.nanoTime();
+		try {
+			return delegate.loadCheckpoint(name);
+		}
+		finally {
+			loadCheckpoint.recordSince(t);
+		}
+	}
+
+	public void saveCheckpoint(String name, String value) {
+		long t = System.nanoTime();
+		try {
+			delegate.saveCheckpoint(name, value);
+		}
+		finally {
+			saveCheckpoint.recordSince(t);
+		}
+	}
+
+	public boolean replaceCheckpoint(String name, String expected, String value) {
+		long t = System.nanoTime();
+		try {
+			return delegate.replaceCheckpoint(name, expected, value);
+		}
+		finally {
+			replaceCheckpoint.recordSince(t);
+		}
+	}
+}
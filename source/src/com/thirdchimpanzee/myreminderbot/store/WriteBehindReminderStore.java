@@ -0,0 +1,314 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+import com.thirdchimpanzee.myreminderbot.metrics.Counter;
+import com.thirdchimpanzee.myreminderbot.metrics.Gauge;
+import com.thirdchimpanzee.myreminderbot.metrics.Histogram;
+import com.thirdchimpanzee.myreminderbot.metrics.Metrics;
+
+/**
+ * ReminderStore that acknowledges new Reminders as soon as they are in a local log and writes them to another ReminderStore
+ * in batches
+ *
+ * Adding a Reminder normally waits for a datastore put before the user gets the reply. With write-behind, put() of a new
+ * Reminder (one without an id) only appends it to a ReminderLog on the local disk and returns. A background thread writes
+ * the pending Reminders with a single putAll() every few milliseconds, so a burst of additions costs a handful of batched
+ * datastore calls instead of one call each. When the process is restarted, the Reminders that were still in the log are
+ * written before the store is used, so an acknowledged Reminder is not lost.
+ *
+ * All the other calls first write the pending Reminders, then go to the other store. Reads therefore always see the
+ * Reminders that were added before them. A new Reminder gets its id before it goes into the log, from a block of ids
+ * reserved in the other store (one call per ID_BLOCK additions).
+ *
+ * A crash between a batch write and the update of the log header replays that batch again. The log records carry the ids,
+ * so the replay writes the same entities again rather than adding copies of them, and a Reminder is never lost nor doubled.
+ *
+ * The log needs a writable local file system, which App Engine does not have. Write-behind is off by default and is meant
+ * for the deployments that run on a normal JVM.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class WriteBehindReminderStore implements ReminderStore {
+	private static final Logger _logger = Logger.getLogger(WriteBehindReminderStore.class.getName());
+
+	//The App Engine datastore takes at most 500 entities per batch put
+	private static final int MAX_BATCH = 500;
+	//Number of ids reserved at a time for new Reminders
+	private static final int ID_BLOCK = 100;
+
+	private static final Histogram batchSize = Metrics.histogram("myreminderbot_writebehind_batch_size", "Number of Reminders written per write-behind batch");
+	private static final Counter replayed = Metrics.counter("myreminderbot_writebehind_replayed_total", "Reminders written from the write-behind log on startup");
+	private static final Counter logFull = Metrics.counter("myreminderbot_writebehind_log_full_total", "Additions that had to wait for a batch write because the write-behind log was full");
+
+	private final ReminderStore delegate;
+	private final ReminderLog log;
+	//Serializes the batch writes, so that the log header only moves forward
+	private final Object flushLock = new Object();
+	//Guarded by this, as is the log
+	private List<Reminder> pending = new ArrayList<Reminder>();
+	private final ScheduledExecutorService executor;
+	//The ids reserved for new Reminders, guarded by themselves
+	private final LinkedList<Long> ids = new LinkedList<Long>();
+
+	/**
+	 * Opens the log, writes the Reminders left in it by the previous run and starts the background thread
+	 * @param delegate The ReminderStore to write to
+	 * @param path The log file
+	 * @param capacity The size of the log in bytes
+	 * @param interval How often (in milliseconds) the pending Reminders are written
+	 * @throws IOException If the log cannot be opened
+	 */
+	public WriteBehindReminderStore(ReminderStore delegate, File path, int capacity, long interval) throws IOException {
+		this.delegate = delegate;
+		this.log = new ReminderLog(path, capacity);
+		List<Reminder> recovered = log.replay();
+		if (!recovered.isEmpty()) {
+			_logger.info("Writing " + recovered.size() + " Reminders left in the write-behind log " + path);
+			pending.addAll(recovered);
+			flush();
+			replayed.add(recovered.size());
+		}
+		Metrics.gauge("myreminderbot_writebehind_pending", null, "New Reminders acknowledged but not yet written", new Gauge() {
+			public long get() {
+				return pendingCount();
+			}
+		});
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "WriteBehindReminderStore");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					flush();
+				}
+				catch (Exception ex) {
+					_logger.warning("Error in writing the pending Reminders, will try again : " + ex.getMessage());
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return The ReminderStore doing the actual work
+	 */
+	public ReminderStore getDelegate() {
+		return delegate;
+	}
+
+	synchronized int pendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Writes all the pending Reminders to the other store
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			List<Reminder> batch;
+			long sequence;
+			synchronized (this) {
+				if (pending.isEmpty()) return;
+				batch = pending;
+				pending = new ArrayList<Reminder>();
+				sequence = log.getLastSequence();
+			}
+			try {
+				for (int i = 0; i < batch.size(); i += MAX_BATCH) {
+					List<Reminder> chunk = batch.subList(i, Math.min(batch.size(), i + MAX_BATCH));
+					delegate.putAll(chunk);
+					batchSize.record(chunk.size());
+				}
+			}
+			catch (RuntimeException ex) {
+				//Put them back in front of the ones added in the meantime. Those that did get written are written again under the same id, which is harmless.
+				synchronized (this) {
+					batch.addAll(pending);
+					pending = batch;
+				}
+				throw ex;
+			}
+			synchronized (this) {
+				log.markFlushed(sequence);
+				if (pending.isEmpty()) log.rewind();
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending Reminders and closes the log. The store must not be used afterwards.
+	 */
+	public void close() {
+		executor.shutdown();
+		flush();
+		synchronized (this) {
+			try {
+				log.close();
+			}
+			catch (IOException ex) {
+				_logger.warning("Error in closing the write-behind log : " + ex.getMessage());
+			}
+		}
+	}
+
+	public void put(Reminder r) {
+		if (r.getId() != null) {
+			flush();
+			delegate.put(r);
+			return;
+		}
+		r.setId(nextId());
+		if (append(r)) return;
+		//The log is full : make room by writing what is pending and try once more
+		logFull.inc();
+		flush();
+		if (append(r)) return;
+		delegate.put(r);
+	}
+
+	private Long nextId() {
+		synchronized (ids) {
+			if (ids.isEmpty()) ids.addAll(delegate.allocateIds(ID_BLOCK));
+			return ids.removeFirst();
+		}
+	}
+
+	private synchronized boolean append(Reminder r) {
+		if (log.append(r) < 0) return false;
+		pending.add(r);
+		return true;
+	}
+
+	public void putAll(List<Reminder> reminders) {
+		flush();
+		delegate.putAll(reminders);
+	}
+
+	public Reminder find(Long id) {
+		flush();
+		return delegate.find(id);
+	}
+
+	public Reminder findByIdAndOwner(Long id, String emailAddress) {
+		flush();
+		return delegate.findByIdAndOwner(id, emailAddress);
+	}
+
+	public List<Reminder> findByOwner(String emailAddress, ReminderStatus status) {
+		flush();
+		return delegate.findByOwner(emailAddress, status);
+	}
+
+	public ReminderPage findPageByOwner(String emailAddress, ReminderStatus status, String cursor, int offset, int limit) {
+		flush();
+		return delegate.findPageByOwner(emailAddress, status, cursor, offset, limit);
+	}
+
+	public List<Reminder> findByStatus(ReminderStatus status) {
+		flush();
+		return delegate.findByStatus(status);
+	}
+
+	public List<Reminder> findDue(Date dueBy) {
+		flush();
+		return delegate.findDue(dueBy);
+	}
+
+	public List<Reminder> findDue(Date after, Date dueBy, int limit) {
+		flush();
+		return delegate.findDue(after, dueBy, limit);
+	}
+
+	public int countDue(Date dueBy, int limit) {
+		flush();
+		return delegate.countDue(dueBy, limit);
+	}
+
+	public List<Reminder> findRetriesDue(Date dueBy, int limit) {
+		flush();
+		return delegate.findRetriesDue(dueBy, limit);
+	}
+
+	public Date findEarliestDue() {
+		flush();
+		return delegate.findEarliestDue();
+	}
+
+	public Reminder claim(Long id, String owner, long leaseMillis) {
+		flush();
+		return delegate.claim(id, owner, leaseMillis);
+	}
+
+	public boolean complete(Reminder r) {
+		flush();
+		return delegate.complete(r);
+	}
+
+	public List<Long> allocateIds(int count) {
+		return delegate.allocateIds(count);
+	}
+
+	public void delete(Reminder r) {
+		flush();
+		delegate.delete(r);
+	}
+
+	public void deleteAll(List<Reminder> reminders) {
+		flush();
+		delegate.deleteAll(reminders);
+	}
+
+	public ReminderPage findFinishedBefore(ReminderStatus status, Date before, String cursor, int limit) {
+		flush();
+		return delegate.findFinishedBefore(status, before, cursor, limit);
+	}
+
+	public ReminderPage findAll(String cursor, int limit) {
+		flush();
+		return delegate.findAll(cursor, limit);
+	}
+
+	public boolean resave(Long id) {
+		flush();
+		return delegate.resave(id);
+	}
+
+	public void archiveAll(List<Reminder> reminders) {
+		flush();
+		delegate.archiveAll(reminders);
+	}
+
+	public String loadCheckpoint(String name) {
+		return delegate.loadCheckpoint(name);
+	}
+
+	public void saveCheckpoint(String name, String value) {
+		delegate.saveCheckpoint(name, value);
+	}
+
+	public boolean replaceCheckpoint(String name, String expected, String value) {
+		return delegate.replaceCheckpoint(name, expected, value);
+	}
+}
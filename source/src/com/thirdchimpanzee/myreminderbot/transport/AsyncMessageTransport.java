@@ -0,0 +1,126 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.transport;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.xmpp.Message;
+import com.google.appengine.api.xmpp.SendResponse;
+import com.thirdchimpanzee.myreminderbot.metrics.Counter;
+import com.thirdchimpanzee.myreminderbot.metrics.Gauge;
+import com.thirdchimpanzee.myreminderbot.metrics.Histogram;
+import com.thirdchimpanzee.myreminderbot.metrics.Metrics;
+
+/**
+ * MessageTransport that sends in the background
+ *
+ * Messages are put in a bounded queue and sent by a small pool of daemon threads through another (synchronous) transport,
+ * so the caller gets its Future back straight away. When the queue is full, the caller sends the message itself: that slows
+ * down the producer instead of dropping messages or letting the queue grow without bound, and every such case is counted in
+ * the myreminderbot_transport_backpressure_total metric. The depth of the queue and the time messages wait in it are
+ * exposed as metrics too.
+ *
+ * Failed sends are logged here, as a caller that does not wait for the Future would not see them.
+ *
+ * Note that the App Engine front ends of this SDK do not allow request threads to start threads of their own, so this
+ * transport is for runtimes that do (see myreminderbot.transport in WEB-INF\appengine-web.xml).
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class AsyncMessageTransport implements MessageTransport {
+	private static final Logger _logger = Logger.getLogger(AsyncMessageTransport.class.getName());
+
+	private static final Histogram queueTime = Metrics.histogram("myreminderbot_transport_queue_micros", "Time the outbound messages waited in the queue in microseconds");
+	private static final Counter backpressure = Metrics.counter("myreminderbot_transport_backpressure_total", "Outbound messages sent by the caller because the queue was full");
+	private static final Counter failures = Metrics.counter("myreminderbot_transport_failures_total", "Outbound messages that could not be sent");
+
+	private final MessageTransport delegate;
+	private final BlockingQueue<Runnable> queue;
+	private final ThreadPoolExecutor pool;
+
+	/**
+	 * @param delegate The transport doing the actual sending, it is expected to send on the calling thread
+	 * @param workers The number of sender threads
+	 * @param capacity The maximum number of messages waiting to be sent
+	 */
+	public AsyncMessageTransport(MessageTransport delegate, int workers, int capacity) {
+		this.delegate = delegate;
+		this.queue = new ArrayBlockingQueue<Runnable>(Math.max(1, capacity));
+		final AtomicInteger count = new AtomicInteger();
+		this.pool = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, queue, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MessageTransport-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		Metrics.gauge("myreminderbot_transport_queue_depth", null, "Outbound messages waiting to be sent", new Gauge() {
+			public long get() {
+				return queue.size();
+			}
+		});
+	}
+
+	public Future<Map<String, SendResponse.Status>> send(final Message message) {
+		final long tQueued = System.nanoTime();
+		FutureTask<Map<String, SendResponse.Status>> task = new FutureTask<Map<String, SendResponse.Status>>(new Callable<Map<String, SendResponse.Status>>() {
+			public Map<String, SendResponse.Status> call() throws Exception {
+				queueTime.recordSince(tQueued);
+				try {
+					return delegate.send(message).get();
+				}
+				catch (ExecutionException ex) {
+					if (ex.getCause() instanceof Exception) throw (Exception)ex.getCause();
+					throw ex;
+				}
+			}
+		}) {
+			@Override
+			protected void done() {
+				if (isCancelled()) return;
+				try {
+					get();
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				catch (ExecutionException ex) {
+					failures.inc();
+					_logger.info("Error in sending IM : " + ex.getCause());
+				}
+			}
+		};
+		try {
+			pool.execute(task);
+		}
+		catch (RejectedExecutionException ex) {
+			//The queue is full (or the transport has been shut down), send it on the calling thread
+			backpressure.inc();
+			task.run();
+		}
+		return task;
+	}
+
+	/**
+	 * Stops the sender threads once the messages in the queue have been sent
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.transport;
+
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import com.google.appengine.api.xmpp.Message;
+import com.google.appengine.api.xmpp.SendResponse;
+
+/**
+ * Outbound channel for the XMPP messages of the Bot
+ *
+ * Both the replies of the Chat Servlet and the Reminders sent by the ReminderBotService go through a MessageTransport, which
+ * is picked by the myreminderbot.transport property in WEB-INF\appengine-web.xml:
+ *
+ * sync  : XMPPMessageTransport, sends on the calling thread (default)
+ * async : AsyncMessageTransport, hands the message to a bounded queue served by a pool of sender threads
+ *
+ * The result of a send is a Future, so that a caller that needs the delivery status (the dispatcher) can wait for it, and a
+ * caller that does not (the reply to a chat message) can move on.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public interface MessageTransport {
+
+	/**
+	 * Sends a message
+	 * @param message The message to send
+	 * @return The delivery status of each recipient, keyed by Jabber Id (JID does not implement equals, so it cannot be a key)
+	 */
+	Future<Map<String, SendResponse.Status>> send(Message message);
+}
@@ -0,0 +1,74 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.transport;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.google.appengine.api.xmpp.JID;
+import com.google.appengine.api.xmpp.Message;
+import com.google.appengine.api.xmpp.SendResponse;
+import com.google.appengine.api.xmpp.XMPPService;
+import com.google.appengine.api.xmpp.XMPPServiceFactory;
+import com.thirdchimpanzee.myreminderbot.metrics.Histogram;
+import com.thirdchimpanzee.myreminderbot.metrics.Metrics;
+
+/**
+ * MessageTransport that sends through the App Engine XMPP service on the calling thread
+ *
+ * The Future returned is always complete. A failure of the XMPP service is reported by the Future rather than thrown.
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class XMPPMessageTransport implements MessageTransport {
+
+	private static final Histogram sendTime = Metrics.histogram("myreminderbot_xmpp_send_micros", "Latency of the XMPP sendMessage calls in microseconds");
+
+	private final XMPPService xmpp;
+
+	public XMPPMessageTransport() {
+		this(XMPPServiceFactory.getXMPPService());
+	}
+
+	public XMPPMessageTransport(XMPPService xmpp) {
+		this.xmpp = xmpp;
+	}
+
+	public Future<Map<String, SendResponse.Status>> send(final Message message) {
+		FutureTask<Map<String, SendResponse.Status>> task = new FutureTask<Map<String, SendResponse.Status>>(new Callable<Map<String, SendResponse.Status>>() {
+			public Map<String, SendResponse.Status> call() {
+				return sendNow(message);
+			}
+		});
+		task.run();
+		return task;
+	}
+
+	/**
+	 * Sends a message and waits for the response of the XMPP service
+	 * @param message The message to send
+	 * @return The delivery status of each recipient, keyed by Jabber Id
+	 */
+	private Map<String, SendResponse.Status> sendNow(Message message) {
+		long t = System.nanoTime();
+		try {
+			//The presence check is left out so that it can work over non Google Talk XMPP providers also.
+			SendResponse response = xmpp.sendMessage(message);
+			Map<String, SendResponse.Status> byId = new HashMap<String, SendResponse.Status>();
+			for (Map.Entry<JID, SendResponse.Status> entry : response.getStatusMap().entrySet()) {
+				byId.put(entry.getKey().getId(), entry.getValue());
+			}
+			return byId;
+		}
+		finally {
+			sendTime.recordSince(t);
+		}
+	}
+}
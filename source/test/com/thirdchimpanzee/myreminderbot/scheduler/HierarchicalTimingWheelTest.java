@@ -0,0 +1,74 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * The timing wheel with 10 ms ticks, 4 slots and 2 levels, so that level 1 spans 160 ms and anything later overflows
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class HierarchicalTimingWheelTest {
+
+	//Level 0, level 1 (cascaded once or twice) and the overflow list
+	private static final long[] DEADLINES = {5, 15, 40, 95, 160, 170, 500, 1234};
+
+	@Test
+	public void firesOnTheFirstTickAtOrAfterTheDeadline() {
+		HierarchicalTimingWheel<Long> wheel = new HierarchicalTimingWheel<Long>(10, 4, 2, 0);
+		for (long deadline : DEADLINES) assertTrue(wheel.add(deadline, deadline));
+		Map<Long, Long> firedAt = new HashMap<Long, Long>();
+		List<Long> expired = new ArrayList<Long>();
+		for (long now = 0; now <= 1300; now += 10) {
+			wheel.advanceTo(now, expired);
+			for (Long item : expired) firedAt.put(item, now);
+			expired.clear();
+		}
+		for (long deadline : DEADLINES) {
+			assertEquals("deadline " + deadline, Long.valueOf((deadline + 9) / 10 * 10), firedAt.get(deadline));
+		}
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void firesInDeadlineOrderWhenAdvancedAtOnce() {
+		HierarchicalTimingWheel<Long> wheel = new HierarchicalTimingWheel<Long>(10, 4, 2, 0);
+		for (int i = DEADLINES.length - 1; i >= 0; i--) wheel.add(DEADLINES[i], DEADLINES[i]);
+		assertEquals(DEADLINES.length, wheel.size());
+		List<Long> expired = new ArrayList<Long>();
+		wheel.advanceTo(1233, expired);
+		assertEquals(DEADLINES.length - 1, expired.size());
+		wheel.advanceTo(1240, expired);
+		List<Long> expected = new ArrayList<Long>();
+		for (long deadline : DEADLINES) expected.add(deadline);
+		assertEquals(expected, expired);
+	}
+
+	@Test
+	public void doesNotTakeADeadlineThatHasPassed() {
+		HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<String>(10, 4, 2, 100);
+		assertFalse(wheel.add(95, "late"));
+		assertFalse(wheel.add(100, "now"));
+		assertTrue(wheel.add(101, "next"));
+		List<String> expired = new ArrayList<String>();
+		wheel.advanceTo(109, expired);
+		assertTrue(expired.isEmpty());
+		wheel.advanceTo(110, expired);
+		assertEquals(Arrays.asList("next"), expired);
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+
+/**
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class ActiveReminderCacheTest {
+
+	private static final List<Reminder> REMINDERS = new ArrayList<Reminder>();
+
+	@Test
+	public void putAfterALoad() {
+		ActiveReminderCache cache = new ActiveReminderCache(10, 60 * 1000);
+		assertNull(cache.get("a@example.com"));
+		cache.put("a@example.com", REMINDERS, cache.beginLoad("a@example.com"));
+		assertNotNull(cache.get("a@example.com"));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void loadThatRacedWithAChangeOfTheUserIsNotStored() {
+		ActiveReminderCache cache = new ActiveReminderCache(10, 60 * 1000);
+		long token = cache.beginLoad("a@example.com");
+		cache.invalidate("a@example.com");
+		cache.put("a@example.com", REMINDERS, token);
+		assertNull(cache.get("a@example.com"));
+	}
+
+	@Test
+	public void changesOfOtherUsersDoNotKeepALoadOut() {
+		ActiveReminderCache cache = new ActiveReminderCache(10, 60 * 1000);
+		long token = cache.beginLoad("a@example.com");
+		//e.g. the Reminders sent by a sweep
+		for (int i = 0; i < 100; i++) {
+			cache.invalidate("user" + i + "@example.com");
+		}
+		cache.put("a@example.com", REMINDERS, token);
+		assertNotNull(cache.get("a@example.com"));
+	}
+
+	@Test
+	public void onlyTheLatestLoadIsStored() {
+		ActiveReminderCache cache = new ActiveReminderCache(10, 60 * 1000);
+		long first = cache.beginLoad("a@example.com");
+		long second = cache.beginLoad("a@example.com");
+		cache.put("a@example.com", REMINDERS, first);
+		assertNull(cache.get("a@example.com"));
+		cache.put("a@example.com", REMINDERS, second);
+		assertNotNull(cache.get("a@example.com"));
+	}
+
+	@Test
+	public void entriesExpire() throws Exception {
+		ActiveReminderCache cache = new ActiveReminderCache(10, 1);
+		cache.put("a@example.com", REMINDERS, cache.beginLoad("a@example.com"));
+		Thread.sleep(10);
+		assertNull(cache.get("a@example.com"));
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+import com.thirdchimpanzee.myreminderbot.store.InMemoryReminderStore;
+
+/**
+ * The catch-up drain on the in-memory store, with the default threshold of 500 and rate of 300 Reminders per minute
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class CatchUpDrainTest {
+
+	private static final long MINUTE = 60 * 1000;
+
+	private InMemoryReminderStore store;
+	private CatchUpDrain drain;
+	private long now;
+
+	@Before
+	public void setUp() {
+		store = new InMemoryReminderStore();
+		drain = new CatchUpDrain(store);
+		now = System.currentTimeMillis();
+	}
+
+	@Test
+	public void sendsEverythingBelowTheThreshold() {
+		addOverdue(10);
+		store.saveCheckpoint(CatchUpDrain.CHECKPOINT, "1;2;3");
+		assertEquals(10, drain.select(now, new Date(now)).size());
+		assertNull(store.loadCheckpoint(CatchUpDrain.CHECKPOINT));
+		assertEquals(0, drain.getBacklog());
+	}
+
+	@Test
+	public void drainsTheOldestAtTheRate() {
+		addOverdue(1200);
+		//A new catch-up is credited with one minute
+		List<Reminder> batch = send(now);
+		assertEquals(300, batch.size());
+		assertOldestFirst(batch);
+		assertEquals(900, drain.getBacklog());
+		assertEquals(180, drain.getEta());
+		assertEquals(now + ";300;" + now, store.loadCheckpoint(CatchUpDrain.CHECKPOINT));
+
+		batch = send(now + MINUTE / 2);
+		assertEquals(150, batch.size());
+		assertOldestFirst(batch);
+		assertEquals(750, drain.getBacklog());
+		assertEquals(now + ";450;" + (now + MINUTE / 2), store.loadCheckpoint(CatchUpDrain.CHECKPOINT));
+	}
+
+	@Test
+	public void longPauseIsCappedAndFinishesTheCatchUp() {
+		addOverdue(1200);
+		send(now);
+		//An hour is credited as five minutes, 1500 Reminders, which is more than the 900 left
+		assertEquals(900, send(now + 60 * MINUTE).size());
+		assertNull(store.loadCheckpoint(CatchUpDrain.CHECKPOINT));
+		assertEquals(0, drain.getBacklog());
+		assertEquals(0, drain.getEta());
+	}
+
+	//Selects a batch and sends it, i.e. takes it out of the ACTIVE set
+	private List<Reminder> send(long time) {
+		List<Reminder> batch = drain.select(time, new Date(time));
+		for (Reminder r : batch) {
+			r.setStatus(ReminderStatus.SENT);
+			store.put(r);
+		}
+		return batch;
+	}
+
+	private void addOverdue(int count) {
+		for (int i = 0; i < count; i++) {
+			Reminder r = new Reminder();
+			r.setEmailAddress("user@example.com");
+			r.setMsg("Overdue " + i);
+			r.setRequestDate(new Date(now - 2 * count * MINUTE));
+			r.setReminderDate(new Date(now - (count - i) * MINUTE));
+			r.setStatus(ReminderStatus.ACTIVE);
+			store.put(r);
+		}
+	}
+
+	private void assertOldestFirst(List<Reminder> batch) {
+		//Nothing older than the batch is left behind
+		Date oldestLeft = store.findEarliestDue();
+		for (int i = 1; i < batch.size(); i++) {
+			assertTrue(!batch.get(i).getReminderDate().before(batch.get(i - 1).getReminderDate()));
+		}
+		assertTrue(oldestLeft.after(batch.get(batch.size() - 1).getReminderDate()));
+	}
+}
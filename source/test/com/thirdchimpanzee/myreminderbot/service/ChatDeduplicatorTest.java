@@ -0,0 +1,81 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.thirdchimpanzee.myreminderbot.metrics.Counter;
+import com.thirdchimpanzee.myreminderbot.metrics.Metrics;
+import com.thirdchimpanzee.myreminderbot.service.ChatDeduplicator.Outcome;
+
+/**
+ * The deduplication of chat messages: a message is pending from begin() until done() or forget()
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class ChatDeduplicatorTest {
+
+	private static final String USER = "user@example.com";
+
+	private final ChatDeduplicator dedup = new ChatDeduplicator(60 * 1000, 1000, 0.01);
+
+	@Test
+	public void duplicateOnceDone() {
+		assertEquals(Outcome.NEW, dedup.begin(USER, "10m Call Dentist"));
+		dedup.done(USER, "10m Call Dentist");
+		assertEquals(Outcome.DUPLICATE, dedup.begin(USER, "10m Call Dentist"));
+		assertEquals(Outcome.DUPLICATE, dedup.begin("User@Example.com", "  10M   call dentist "));
+		assertEquals(Outcome.NEW, dedup.begin("other@example.com", "10m Call Dentist"));
+		assertEquals(Outcome.NEW, dedup.begin(USER, "10m Call Dentist again"));
+	}
+
+	@Test
+	public void pendingUntilDone() {
+		assertEquals(Outcome.NEW, dedup.begin(USER, "1h Pay rent"));
+		assertEquals(Outcome.PENDING, dedup.begin(USER, "1h Pay rent"));
+		dedup.done(USER, "1h Pay rent");
+		assertEquals(Outcome.DUPLICATE, dedup.begin(USER, "1h Pay rent"));
+	}
+
+	@Test
+	public void newAgainAfterForget() {
+		Counter falsePositives = Metrics.counter("myreminderbot_chat_dedup_total", "result=\"false_positive\"", "Chat messages checked for duplicates, by result");
+		long before = falsePositives.get();
+		assertEquals(Outcome.NEW, dedup.begin(USER, "every 1d Standup"));
+		dedup.forget(USER, "every 1d Standup");
+		//A forgotten message was never added to the filters, so the retry is not a false positive either
+		assertEquals(Outcome.NEW, dedup.begin(USER, "every 1d Standup"));
+		assertEquals(before, falsePositives.get());
+		assertEquals(0.0, dedup.expectedFalsePositiveRate(), 0);
+		dedup.done(USER, "every 1d Standup");
+		assertEquals(Outcome.DUPLICATE, dedup.begin(USER, "every 1d Standup"));
+	}
+
+	@Test
+	public void newAgainAfterTheWindow() throws Exception {
+		ChatDeduplicator shortWindow = new ChatDeduplicator(50, 1000, 0.01);
+		assertEquals(Outcome.NEW, shortWindow.begin(USER, "10m Stretch"));
+		shortWindow.done(USER, "10m Stretch");
+		Thread.sleep(60);
+		assertEquals(Outcome.NEW, shortWindow.begin(USER, "10m Stretch"));
+	}
+
+	@Test
+	public void switchedOff() {
+		ChatDeduplicator off = new ChatDeduplicator(0, 1000, 0.01);
+		assertEquals(Outcome.NEW, off.begin(USER, "10m Stretch"));
+		off.done(USER, "10m Stretch");
+		assertEquals(Outcome.NEW, off.begin(USER, "10m Stretch"));
+	}
+
+	@Test
+	public void keyFoldsCaseAndSpaces() {
+		assertEquals("user@example.com\n10m call dentist", ChatDeduplicator.key("USER@example.com", " 10m\tCall   Dentist "));
+	}
+}
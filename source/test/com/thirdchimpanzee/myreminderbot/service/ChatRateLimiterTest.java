@@ -0,0 +1,78 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The admission control of the chat endpoint: the token bucket per user and the cap on concurrent messages
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class ChatRateLimiterTest {
+
+	@Test
+	public void burstThenRejected() {
+		ChatRateLimiter limiter = new ChatRateLimiter(1, 3, 0, 100);
+		assertTrue(limiter.tryAcquire("user@example.com"));
+		assertTrue(limiter.tryAcquire("user@example.com"));
+		assertTrue(limiter.tryAcquire("user@example.com"));
+		assertFalse(limiter.tryAcquire("user@example.com"));
+	}
+
+	@Test
+	public void bucketPerUser() {
+		ChatRateLimiter limiter = new ChatRateLimiter(1, 1, 0, 100);
+		assertTrue(limiter.tryAcquire("user@example.com"));
+		assertFalse(limiter.tryAcquire("user@example.com"));
+		assertTrue(limiter.tryAcquire("other@example.com"));
+	}
+
+	@Test
+	public void refillsOverTime() throws Exception {
+		//10 tokens per millisecond
+		ChatRateLimiter limiter = new ChatRateLimiter(600000, 1, 0, 100);
+		assertTrue(limiter.tryAcquire("user@example.com"));
+		Thread.sleep(10);
+		assertTrue(limiter.tryAcquire("user@example.com"));
+	}
+
+	@Test
+	public void noRateLimit() {
+		ChatRateLimiter limiter = new ChatRateLimiter(0, 1, 0, 100);
+		for (int i = 0; i < 100; i++) assertTrue(limiter.tryAcquire("user@example.com"));
+	}
+
+	@Test
+	public void forgottenUserStartsWithAFullBucket() {
+		//One bucket per stripe, so two users of the same stripe push each other out
+		ChatRateLimiter limiter = new ChatRateLimiter(1, 1, 0, 16);
+		String user = "user@example.com";
+		String other = null;
+		for (int i = 0; other == null; i++) {
+			String candidate = "user" + i + "@example.com";
+			if ((candidate.hashCode() & 0x7fffffff) % 16 == (user.hashCode() & 0x7fffffff) % 16) other = candidate;
+		}
+		assertTrue(limiter.tryAcquire(user));
+		assertFalse(limiter.tryAcquire(user));
+		assertTrue(limiter.tryAcquire(other));
+		assertTrue(limiter.tryAcquire(user));
+	}
+
+	@Test
+	public void concurrentCap() {
+		ChatRateLimiter limiter = new ChatRateLimiter(0, 1, 2, 100);
+		assertTrue(limiter.enter());
+		assertTrue(limiter.enter());
+		assertFalse(limiter.enter());
+		limiter.exit();
+		assertTrue(limiter.enter());
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+import com.thirdchimpanzee.myreminderbot.store.InMemoryReminderStore;
+
+/**
+ * The next due watermark on the in-memory store, with the default maximum idle time of 5 minutes
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class DueWatermarkTest {
+
+	private static final long MINUTE = 60 * 1000;
+	private static final long HOUR = 60 * MINUTE;
+
+	private InMemoryReminderStore store;
+	private DueWatermark watermark;
+	private long now;
+
+	@Before
+	public void setUp() {
+		store = new InMemoryReminderStore();
+		watermark = new DueWatermark(store);
+		now = System.currentTimeMillis();
+	}
+
+	@Test
+	public void notIdleWithoutAWatermark() {
+		assertFalse(watermark.isIdle(now, now + MINUTE));
+		watermark.lower(new Date(now + HOUR));
+		assertNull(store.loadCheckpoint(DueWatermark.CHECKPOINT));
+	}
+
+	@Test
+	public void idleUntilTheNextReminderIsDue() {
+		put(now + HOUR);
+		watermark.refresh(now);
+		assertTrue(watermark.isIdle(now, now + MINUTE));
+		assertFalse(watermark.isIdle(now, now + HOUR));
+	}
+
+	@Test
+	public void fullRunAfterTheMaximumIdleTime() {
+		watermark.refresh(now);
+		assertTrue(watermark.isIdle(now + 4 * MINUTE, now + 4 * MINUTE));
+		assertFalse(watermark.isIdle(now + 5 * MINUTE, now + 5 * MINUTE));
+	}
+
+	@Test
+	public void lowerOnlyMovesItEarlier() {
+		put(now + HOUR);
+		watermark.refresh(now);
+		watermark.lower(new Date(now + 2 * HOUR));
+		assertEquals((now + HOUR) + ";" + now, store.loadCheckpoint(DueWatermark.CHECKPOINT));
+		watermark.lower(new Date(now + 10 * MINUTE));
+		assertEquals((now + 10 * MINUTE) + ";" + now, store.loadCheckpoint(DueWatermark.CHECKPOINT));
+		assertFalse(watermark.isIdle(now, now + 10 * MINUTE));
+	}
+
+	@Test
+	public void recomputeKeepsAConcurrentLowering() {
+		//A Reminder due in a minute is added by another request while the recompute is querying the datastore
+		InMemoryReminderStore racing = new InMemoryReminderStore() {
+			private boolean raced = false;
+
+			@Override
+			public Date findEarliestDue() {
+				if (!raced) {
+					raced = true;
+					new DueWatermark(this).lower(new Date(now + MINUTE));
+				}
+				return super.findEarliestDue();
+			}
+		};
+		store = racing;
+		put(now + HOUR);
+		racing.saveCheckpoint(DueWatermark.CHECKPOINT, (now + HOUR) + ";" + now);
+		new DueWatermark(racing).refresh(now);
+		assertEquals((now + MINUTE) + ";" + now, racing.loadCheckpoint(DueWatermark.CHECKPOINT));
+	}
+
+	@Test
+	public void removedRecomputesOnlyTheReminderItPointsAt() {
+		Reminder first = put(now + MINUTE);
+		put(now + HOUR);
+		watermark.refresh(now);
+		watermark.removed(new Date(now + HOUR));
+		assertEquals((now + MINUTE) + ";" + now, store.loadCheckpoint(DueWatermark.CHECKPOINT));
+		store.delete(first);
+		watermark.removed(first.getReminderDate());
+		assertEquals((now + HOUR) + ";" + now, store.loadCheckpoint(DueWatermark.CHECKPOINT));
+	}
+
+	@Test
+	public void emptyStoreIsIdle() {
+		watermark.refresh(now);
+		assertEquals(Long.MAX_VALUE + ";" + now, store.loadCheckpoint(DueWatermark.CHECKPOINT));
+		assertTrue(watermark.isIdle(now, now + HOUR));
+	}
+
+	private Reminder put(long reminderDate) {
+		Reminder r = new Reminder();
+		r.setEmailAddress("user@example.com");
+		r.setMsg("Call Dentist");
+		r.setRequestDate(new Date(now));
+		r.setReminderDate(new Date(reminderDate));
+		r.setStatus(ReminderStatus.ACTIVE);
+		store.put(r);
+		return r;
+	}
+}
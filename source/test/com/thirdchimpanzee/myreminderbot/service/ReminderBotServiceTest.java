@@ -0,0 +1,70 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+
+/**
+ * The ReminderBotService on top of the in-memory store
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class ReminderBotServiceTest {
+
+	private static ReminderBotService service;
+
+	@BeforeClass
+	public static void setUpClass() {
+		System.setProperty(ReminderBotConfig.STORE, "memory");
+		service = ReminderBotService.getInstance();
+	}
+
+	@Test
+	public void remove() throws Exception {
+		Reminder r = add("remove@example.com", "Call Dentist");
+		assertEquals("success", service.removeReminderByIDandEmailId(r.getId().toString(), "remove@example.com"));
+		assertNull(service.getStore().find(r.getId()));
+		assertEquals(0, service.getAllRemindersByEmailId("remove@example.com", ReminderStatus.ACTIVE).size());
+	}
+
+	@Test
+	public void removeNeedsTheOwner() throws Exception {
+		Reminder r = add("owner@example.com", "Call Dentist");
+		assertEquals("fail", service.removeReminderByIDandEmailId(r.getId().toString(), "other@example.com"));
+		assertNotNull(service.getStore().find(r.getId()));
+	}
+
+	@Test
+	public void removeDoesNotGoByTheCachedList() throws Exception {
+		Reminder r = add("sent@example.com", "Pay rent");
+		//Caches the list, then the Reminder is sent behind the cache's back (e.g. by another instance)
+		assertEquals(1, service.getAllRemindersByEmailId("sent@example.com", ReminderStatus.ACTIVE).size());
+		Reminder sent = service.getStore().find(r.getId());
+		sent.setStatus(ReminderStatus.SENT);
+		service.getStore().put(sent);
+		assertEquals("fail", service.removeReminderByIDandEmailId(r.getId().toString(), "sent@example.com"));
+		assertNotNull(service.getStore().find(r.getId()));
+	}
+
+	private static Reminder add(String emailAddress, String msg) throws Exception {
+		Date now = new Date();
+		assertEquals("success", service.addReminder(emailAddress + "/chat", emailAddress, msg, now, new Date(now.getTime() + 60 * 60 * 1000), ReminderStatus.ACTIVE));
+		List<Reminder> added = service.getStore().findByOwner(emailAddress, ReminderStatus.ACTIVE);
+		return added.get(added.size() - 1);
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.thirdchimpanzee.myreminderbot.MessageParseException;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderCommand;
+
+/**
+ * The Reminder syntax: compound durations, repeating Reminders and values that are too large
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class ReminderCommandParserTest {
+
+	@Test
+	public void singleUnit() throws Exception {
+		assertCommand(10, 0, "Dentist Appointment", "10m Dentist Appointment");
+		assertCommand(2 * 60, 0, "Call Dentist", "2H Call Dentist");
+		assertCommand(3 * 24 * 60, 0, "Pay rent", "  3d Pay rent");
+	}
+
+	@Test
+	public void compoundDuration() throws Exception {
+		assertCommand(90, 0, "Call Dentist", "1h30m Call Dentist");
+		assertCommand(2 * 24 * 60 + 4 * 60, 0, "Standup", "2d4h Standup");
+		assertCommand(24 * 60 + 60 + 1, 0, "Standup", "1d1h1m Standup");
+	}
+
+	@Test
+	public void compoundDurationNeedsTheUnitsInOrder() {
+		assertInvalid(ReminderCommandParser.INVALID_FORMAT, "30m1h Call Dentist");
+		assertInvalid(ReminderCommandParser.INVALID_FORMAT, "1h1h Call Dentist");
+		assertInvalid(ReminderCommandParser.INVALID_FORMAT, "1h30 Call Dentist");
+		assertInvalid(ReminderCommandParser.INVALID_FORMAT, "1x Call Dentist");
+		assertInvalid(ReminderCommandParser.INVALID_VALUE, "1hm Call Dentist");
+	}
+
+	@Test
+	public void needsAReminderText() {
+		assertInvalid(ReminderCommandParser.INVALID_FORMAT, "10m");
+		assertInvalid(ReminderCommandParser.INVALID_FORMAT, "10m   ");
+		assertInvalid(ReminderCommandParser.INVALID_FORMAT, "Call Dentist");
+	}
+
+	@Test
+	public void blankMessage() throws Exception {
+		assertNull(ReminderCommandParser.parse(null));
+		assertNull(ReminderCommandParser.parse("   "));
+	}
+
+	@Test
+	public void every() throws Exception {
+		assertCommand(24 * 60, 24 * 60, "Standup", "every 1d Standup");
+		assertCommand(10, 90, "Stretch", "10m every 1h30m Stretch");
+		assertCommand(10, 60, "Stretch", "10m EVERY  1h Stretch");
+	}
+
+	@Test
+	public void everyThatIsPartOfTheText() throws Exception {
+		assertCommand(10, 0, "every time", "10m every time");
+		assertCommand(10, 0, "everyone", "10m everyone");
+	}
+
+	@Test
+	public void everyNeedsAValidInterval() {
+		assertInvalid(ReminderCommandParser.INVALID_FORMAT, "every week Standup");
+		assertInvalid(ReminderCommandParser.INVALID_INTERVAL, "every 4m Standup");
+		assertInvalid(ReminderCommandParser.INVALID_INTERVAL, "10m every 1m Stretch");
+	}
+
+	@Test
+	public void overflow() throws Exception {
+		//Integer.MAX_VALUE minutes is a little over 1491308 days
+		assertCommand(1491308 * 24 * 60, 0, "Far away", "1491308d Far away");
+		assertInvalid(ReminderCommandParser.INVALID_VALUE, "1491309d Too far");
+		assertInvalid(ReminderCommandParser.INVALID_VALUE, "1491308d23h Too far");
+		assertInvalid(ReminderCommandParser.INVALID_VALUE, "99999999999999999999m Too far");
+		assertInvalid(ReminderCommandParser.INVALID_VALUE, "every 99999999999999999999m Too far");
+	}
+
+	private static void assertCommand(int minutes, int repeatMinutes, String text, String message) throws Exception {
+		ReminderCommand command = ReminderCommandParser.parse(message);
+		assertEquals(minutes, command.getMinutes());
+		assertEquals(repeatMinutes, command.getRepeatMinutes());
+		assertEquals(text, command.getMessage());
+	}
+
+	private static void assertInvalid(String error, String message) {
+		try {
+			ReminderCommandParser.parse(message);
+			fail("Parsed " + message);
+		}
+		catch (MessageParseException ex) {
+			assertEquals(error, ex.getMessage());
+		}
+	}
+}
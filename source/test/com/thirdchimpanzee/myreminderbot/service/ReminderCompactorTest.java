@@ -0,0 +1,74 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+import com.thirdchimpanzee.myreminderbot.store.InMemoryReminderStore;
+
+/**
+ * The compaction job on the in-memory store, with the default retention of a week
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class ReminderCompactorTest {
+
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	private InMemoryReminderStore store;
+	private Date now;
+
+	@Before
+	public void setUp() {
+		store = new InMemoryReminderStore();
+		now = new Date();
+	}
+
+	@Test
+	public void compactsSentAndDeadReminders() {
+		Reminder sent = put("Standup", ReminderStatus.SENT, new Date(now.getTime() - 8 * DAY));
+		Reminder dead = put("Send email", ReminderStatus.DEAD, new Date(now.getTime() - 9 * DAY));
+		assertEquals(2, new ReminderCompactor(store).compact());
+		assertNull(store.find(sent.getId()));
+		assertNull(store.find(dead.getId()));
+		assertEquals(2, store.archivedSize());
+		assertNull(store.loadCheckpoint(ReminderCompactor.CHECKPOINT));
+		assertNull(store.loadCheckpoint(ReminderCompactor.DEAD_CHECKPOINT));
+	}
+
+	@Test
+	public void keepsRecentAndPendingReminders() {
+		Reminder recent = put("Standup", ReminderStatus.SENT, new Date(now.getTime() - DAY));
+		Reminder active = put("Call Dentist", ReminderStatus.ACTIVE, new Date(now.getTime() - 8 * DAY));
+		Reminder retry = put("Pay rent", ReminderStatus.RETRY, new Date(now.getTime() - 8 * DAY));
+		assertEquals(0, new ReminderCompactor(store).compact());
+		assertNotNull(store.find(recent.getId()));
+		assertNotNull(store.find(active.getId()));
+		assertNotNull(store.find(retry.getId()));
+		assertEquals(0, store.archivedSize());
+	}
+
+	private Reminder put(String msg, ReminderStatus status, Date reminderDate) {
+		Reminder r = new Reminder();
+		r.setEmailAddress("user@example.com");
+		r.setMsg(msg);
+		r.setRequestDate(now);
+		r.setReminderDate(reminderDate);
+		r.setStatus(status);
+		store.put(r);
+		return r;
+	}
+}
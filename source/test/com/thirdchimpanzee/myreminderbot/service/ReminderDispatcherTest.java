@@ -0,0 +1,96 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+
+/**
+ * Splitting a digest over several messages
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class ReminderDispatcherTest {
+
+	@Test
+	public void everyPartHasRoomForTheSameHeader() {
+		//The header takes 21 characters and each line 4 + 16, so 3 lines fit into 100 characters
+		List<List<Reminder>> parts = ReminderDispatcher.split(reminders(10, 16), 100);
+		assertEquals(4, parts.size());
+		assertEquals(3, parts.get(0).size());
+		assertEquals(3, parts.get(1).size());
+		assertEquals(3, parts.get(2).size());
+		assertEquals(1, parts.get(3).size());
+		assertFits(parts, 100);
+	}
+
+	@Test
+	public void keepsTheOrder() {
+		List<Reminder> reminders = reminders(10, 16);
+		List<Reminder> joined = new ArrayList<Reminder>();
+		for (List<Reminder> part : ReminderDispatcher.split(reminders, 100)) joined.addAll(part);
+		assertEquals(reminders, joined);
+	}
+
+	@Test
+	public void singlePartHasNoNumber() {
+		List<List<Reminder>> parts = ReminderDispatcher.split(reminders(2, 5), 100);
+		assertEquals(1, parts.size());
+		assertEquals("Reminders :\r\n- aaaaa\r\n- aaaaa", ReminderDispatcher.digest(parts.get(0), 1, 1));
+	}
+
+	@Test
+	public void longReminderGetsAPartOfItsOwn() {
+		List<Reminder> reminders = reminders(1, 10);
+		reminders.add(reminder(200));
+		reminders.addAll(reminders(1, 10));
+		List<List<Reminder>> parts = ReminderDispatcher.split(reminders, 100);
+		assertEquals(3, parts.size());
+		assertEquals(1, parts.get(1).size());
+		assertEquals(200, parts.get(1).get(0).getMsg().length());
+	}
+
+	@Test
+	public void randomLengthsFit() {
+		Random random = new Random(42);
+		List<Reminder> reminders = new ArrayList<Reminder>();
+		for (int i = 0; i < 2000; i++) reminders.add(reminder(1 + random.nextInt(150)));
+		List<List<Reminder>> parts = ReminderDispatcher.split(reminders, 200);
+		//Over a thousand parts, so the part numbers are wider than 999/999
+		assertTrue(parts.size() >= 1000);
+		assertFits(parts, 200);
+	}
+
+	private static void assertFits(List<List<Reminder>> parts, int maxLength) {
+		for (int i = 0; i < parts.size(); i++) {
+			String text = ReminderDispatcher.digest(parts.get(i), i + 1, parts.size());
+			assertTrue("part " + (i + 1) + " is " + text.length() + " characters", text.length() <= maxLength);
+		}
+	}
+
+	private static List<Reminder> reminders(int count, int length) {
+		List<Reminder> reminders = new ArrayList<Reminder>();
+		for (int i = 0; i < count; i++) reminders.add(reminder(length));
+		return reminders;
+	}
+
+	private static Reminder reminder(int length) {
+		StringBuilder SB = new StringBuilder();
+		for (int i = 0; i < length; i++) SB.append('a');
+		Reminder R = new Reminder();
+		R.setMsg(SB.toString());
+		return R;
+	}
+}
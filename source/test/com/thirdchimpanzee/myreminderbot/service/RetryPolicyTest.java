@@ -0,0 +1,66 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * The retry backoff with a base of 1s, a cap of 10s and 5 attempts
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class RetryPolicyTest {
+
+	private final RetryPolicy policy = new RetryPolicy(1000, 10000, 5);
+
+	@Test
+	public void delayDoublesUpToTheCap() {
+		assertDelay(1, 1000);
+		assertDelay(2, 2000);
+		assertDelay(3, 4000);
+		assertDelay(4, 8000);
+		assertDelay(5, 10000);
+		assertDelay(40, 10000);
+	}
+
+	@Test
+	public void delayIsJittered() {
+		Set<Long> delays = new HashSet<Long>();
+		for (int i = 0; i < 100; i++) delays.add(policy.delay(3));
+		assertTrue(delays.size() > 1);
+	}
+
+	@Test
+	public void exhaustedAfterMaxAttempts() {
+		assertFalse(policy.isExhausted(0));
+		assertFalse(policy.isExhausted(4));
+		assertTrue(policy.isExhausted(5));
+	}
+
+	@Test
+	public void capIsAtLeastTheBase() {
+		RetryPolicy capped = new RetryPolicy(1000, 10, 5);
+		for (int i = 0; i < 100; i++) {
+			long delay = capped.delay(3);
+			assertTrue(delay >= 500 && delay < 1000);
+		}
+	}
+
+	//Half of the delay is fixed and the other half is random
+	private void assertDelay(int attempts, long delay) {
+		for (int i = 0; i < 100; i++) {
+			long actual = policy.delay(attempts);
+			assertTrue("attempt " + attempts + " waited " + actual, actual >= delay / 2 && actual < delay);
+		}
+	}
+}
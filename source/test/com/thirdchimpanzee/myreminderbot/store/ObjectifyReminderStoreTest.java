@@ -0,0 +1,202 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+
+/**
+ * Runs each query of the ObjectifyReminderStore once against the local datastore
+ *
+ * The InMemoryReminderStore used by the benchmarks does not go through Objectify, so a filter the datastore rejects only
+ * shows up here. Run with mvn test -Pdatastore-tests (see the README).
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class ObjectifyReminderStoreTest {
+
+	private static final String OWNER = "user@example.com";
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+	private ObjectifyReminderStore store;
+	private Date now;
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+		store = new ObjectifyReminderStore();
+		now = new Date();
+		store.put(reminder("Call Dentist", ReminderStatus.ACTIVE, new Date(now.getTime() - 60 * 1000)));
+		store.put(reminder("Pay rent", ReminderStatus.ACTIVE, new Date(now.getTime() + 60 * 60 * 1000)));
+		store.put(reminder("Standup", ReminderStatus.SENT, new Date(now.getTime() - 2 * 60 * 1000)));
+		Reminder retry = reminder("Send email", ReminderStatus.RETRY, new Date(now.getTime() - 3 * 60 * 1000));
+		retry.setNextAttempt(new Date(now.getTime() - 1000));
+		store.put(retry);
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void findByOwner() {
+		assertEquals(2, store.findByOwner(OWNER, ReminderStatus.ACTIVE).size());
+	}
+
+	@Test
+	public void findPageByOwner() {
+		assertEquals(2, store.findPageByOwner(OWNER, ReminderStatus.ACTIVE, null, 0, 10).getReminders().size());
+	}
+
+	@Test
+	public void findFinishedBefore() {
+		assertEquals(1, store.findFinishedBefore(ReminderStatus.SENT, now, null, 10).getReminders().size());
+		assertEquals(0, store.findFinishedBefore(ReminderStatus.DEAD, now, null, 10).getReminders().size());
+	}
+
+	@Test
+	public void findAll() {
+		assertEquals(4, store.findAll(null, 10).getReminders().size());
+	}
+
+	@Test
+	public void findByStatus() {
+		assertEquals(1, store.findByStatus(ReminderStatus.RETRY).size());
+	}
+
+	@Test
+	public void findDue() {
+		assertEquals(1, store.findDue(now).size());
+		assertEquals(1, store.findDue(null, now, 10).size());
+		assertEquals(1, store.countDue(now, 10));
+	}
+
+	@Test
+	public void findRetriesDue() {
+		assertEquals(1, store.findRetriesDue(now, 10).size());
+	}
+
+	@Test
+	public void findEarliestDue() {
+		Date earliest = store.findEarliestDue();
+		assertNotNull(earliest);
+		assertTrue(earliest.before(now));
+	}
+
+	@Test
+	public void claim() {
+		Reminder due = store.findDue(now).get(0);
+		assertNotNull(store.claim(due.getId(), "test", 60 * 1000));
+		//Not even the same owner gets a lease that has not expired
+		assertNull(store.claim(due.getId(), "test", 60 * 1000));
+	}
+
+	@Test
+	public void putKeepsAnAllocatedId() {
+		Long id = store.allocateIds(1).get(0);
+		Reminder r = reminder("Water the plants", ReminderStatus.ACTIVE, now);
+		r.setId(id);
+		store.put(r);
+		//Written twice, as a replay of the write-behind log does
+		store.put(r);
+		assertEquals("Water the plants", store.find(id).getMsg());
+		assertEquals(5, store.findAll(null, 10).getReminders().size());
+	}
+
+	@Test
+	public void complete() {
+		Reminder due = store.findDue(now).get(0);
+		Reminder claimed = store.claim(due.getId(), "test", 60 * 1000);
+		claimed.setStatus(ReminderStatus.SENT);
+		//Not by another claim
+		Reminder other = store.find(due.getId());
+		other.setLeaseOwner("other");
+		assertFalse(store.complete(other));
+		assertTrue(store.complete(claimed));
+		Reminder sent = store.find(due.getId());
+		assertEquals(ReminderStatus.SENT, sent.getStatus());
+		assertNull(sent.getLeaseOwner());
+		//Only once
+		assertFalse(store.complete(claimed));
+	}
+
+	@Test
+	public void completeDoesNotBringBackARemovedReminder() {
+		Reminder due = store.findDue(now).get(0);
+		Reminder claimed = store.claim(due.getId(), "test", 60 * 1000);
+		store.delete(store.find(due.getId()));
+		claimed.setStatus(ReminderStatus.SENT);
+		assertFalse(store.complete(claimed));
+		assertNull(store.find(due.getId()));
+	}
+
+	@Test
+	public void savesWithoutTheNotSavedFields() throws Exception {
+		Reminder r = store.findDue(now).get(0);
+		Entity raw = DatastoreServiceFactory.getDatastoreService().get(KeyFactory.createKey("Reminder", r.getId()));
+		assertFalse(raw.hasProperty("legacyLayout"));
+	}
+
+	@Test
+	public void resaveMigratesTheLegacyLayout() throws Exception {
+		//As saved before the resource was split off : a userid property and every property indexed
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		Entity legacy = new Entity("Reminder");
+		legacy.setProperty("userid", OWNER + "/gmail.1234");
+		legacy.setProperty("emailAddress", OWNER);
+		legacy.setProperty("msg", "Call Dentist");
+		legacy.setProperty("requestDate", now);
+		legacy.setProperty("reminderDate", new Date(now.getTime() + 60 * 60 * 1000));
+		legacy.setProperty("status", ReminderStatus.ACTIVE.name());
+		Long id = datastore.put(legacy).getId();
+
+		Reminder r = store.find(id);
+		assertTrue(r.isLegacyLayout());
+		assertEquals(OWNER + "/gmail.1234", r.getUserid());
+		assertTrue(store.resave(id));
+
+		Entity raw = datastore.get(KeyFactory.createKey("Reminder", id));
+		assertFalse(raw.hasProperty("userid"));
+		assertFalse(raw.hasProperty("legacyLayout"));
+		assertEquals("gmail.1234", raw.getProperty("resource"));
+		assertTrue(raw.isUnindexedProperty("msg"));
+		assertTrue(raw.isUnindexedProperty("requestDate"));
+		assertTrue(raw.isUnindexedProperty("leaseOwner"));
+		assertTrue(raw.isUnindexedProperty("leaseExpiry"));
+		assertFalse(raw.isUnindexedProperty("reminderDate"));
+		assertFalse(store.find(id).isLegacyLayout());
+	}
+
+	private static Reminder reminder(String msg, ReminderStatus status, Date reminderDate) {
+		Reminder r = new Reminder();
+		r.setEmailAddress(OWNER);
+		r.setMsg(msg);
+		r.setRequestDate(new Date());
+		r.setReminderDate(reminderDate);
+		r.setStatus(status);
+		return r;
+	}
+}
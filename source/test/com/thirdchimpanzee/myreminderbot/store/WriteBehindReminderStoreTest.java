@@ -0,0 +1,128 @@
+/**
+ * My Reminder Bot
+ * Copyright (c) 2011 by Romin Irani. All Rights Reserved.
+ */
+package com.thirdchimpanzee.myreminderbot.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thirdchimpanzee.myreminderbot.entity.Reminder;
+import com.thirdchimpanzee.myreminderbot.entity.ReminderStatus;
+
+/**
+ * Replays of the write-behind log after a crash, with the in-memory store standing in for the datastore
+ *
+ * @author irani_r
+ * @version 1.0
+ *
+ */
+public class WriteBehindReminderStoreTest {
+
+	private static final int CAPACITY = 64 * 1024;
+	//Long enough for the background thread to never flush during a test
+	private static final long INTERVAL = 60 * 60 * 1000;
+
+	private File path;
+
+	@Before
+	public void setUp() throws Exception {
+		path = File.createTempFile("reminders", ".log");
+		path.delete();
+	}
+
+	@After
+	public void tearDown() {
+		path.delete();
+	}
+
+	@Test
+	public void replayAfterAPartialFlushDoesNotDoubleTheReminders() throws Exception {
+		CrashingStore datastore = new CrashingStore();
+		WriteBehindReminderStore store = new WriteBehindReminderStore(datastore, path, CAPACITY, INTERVAL);
+		Reminder first = reminder("Call Dentist");
+		Reminder second = reminder("Pay rent");
+		store.put(first);
+		store.put(second);
+		assertNotNull(first.getId());
+		assertNotNull(second.getId());
+
+		//The batch is written, but the process dies before the log header is updated
+		datastore.crash = true;
+		try {
+			store.flush();
+			fail();
+		}
+		catch (IllegalStateException ex) {
+		}
+		assertEquals(2, datastore.findAll(null, 10).getReminders().size());
+
+		datastore.crash = false;
+		WriteBehindReminderStore restarted = new WriteBehindReminderStore(datastore, path, CAPACITY, INTERVAL);
+		List<Reminder> all = datastore.findAll(null, 10).getReminders();
+		assertEquals(2, all.size());
+		assertEquals("Call Dentist", datastore.find(first.getId()).getMsg());
+		assertEquals("Pay rent", datastore.find(second.getId()).getMsg());
+		restarted.close();
+	}
+
+	@Test
+	public void replayStopsAtATornRecord() throws Exception {
+		ReminderLog log = new ReminderLog(path, CAPACITY);
+		Reminder first = reminder("Call Dentist");
+		first.setId(7L);
+		log.append(first);
+		Reminder second = reminder("Pay rent");
+		second.setId(8L);
+		log.append(second);
+		log.close();
+
+		//The last byte of the second record never made it to disk
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		int last = log.size() - 1;
+		file.seek(last);
+		int b = file.read();
+		file.seek(last);
+		file.write(b ^ 0xff);
+		file.close();
+
+		List<Reminder> replayed = new ReminderLog(path, CAPACITY).replay();
+		assertEquals(1, replayed.size());
+		assertEquals(Long.valueOf(7), replayed.get(0).getId());
+		assertEquals("Call Dentist", replayed.get(0).getMsg());
+		assertEquals(ReminderStatus.ACTIVE, replayed.get(0).getStatus());
+	}
+
+	private static Reminder reminder(String msg) {
+		Reminder r = new Reminder();
+		r.setUserid("user@example.com/chat");
+		r.setMsg(msg);
+		r.setRequestDate(new Date());
+		r.setReminderDate(new Date(System.currentTimeMillis() + 60 * 1000));
+		r.setStatus(ReminderStatus.ACTIVE);
+		return r;
+	}
+
+	/**
+	 * Fails right after a batch has been written, when crash is set
+	 */
+	private static class CrashingStore extends InMemoryReminderStore {
+		volatile boolean crash;
+
+		@Override
+		public synchronized void putAll(List<Reminder> reminders) {
+			super.putAll(reminders);
+			if (crash) throw new IllegalStateException("crash");
+		}
+	}
+}